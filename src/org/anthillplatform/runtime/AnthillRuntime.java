@@ -5,12 +5,18 @@ import com.mashape.unirest.http.options.Option;
 import com.mashape.unirest.http.options.Options;
 import org.anthillplatform.runtime.services.*;
 import org.anthillplatform.runtime.util.ApplicationInfo;
+import org.anthillplatform.runtime.util.ConnectionManager;
 import org.anthillplatform.runtime.util.Listener;
+import org.anthillplatform.runtime.util.RpcMetrics;
+import org.anthillplatform.runtime.util.Scheduler;
 import org.anthillplatform.runtime.util.Storage;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.security.GeneralSecurityException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.NoSuchElementException;
@@ -24,6 +30,10 @@ import java.util.Set;
  */
 public class AnthillRuntime
 {
+    // how many TLS sessions to keep for resumption, and for how long (in seconds)
+    public static final int SSL_SESSION_CACHE_SIZE = 64;
+    public static final int SSL_SESSION_TIMEOUT = 86400;
+
     private static AnthillRuntime instance;
 
     private ApplicationInfo applicationInfo;
@@ -34,6 +44,8 @@ public class AnthillRuntime
 
     private Storage storage;
     private Listener listener;
+    private ConnectionManager connectionManager;
+    private SSLContext sslContext;
 
     public static AnthillRuntime Get() { return instance; }
 
@@ -193,6 +205,7 @@ public class AnthillRuntime
 
         this.storage = storage;
         this.listener = listener;
+        this.connectionManager = new ConnectionManager(this);
 
         registerServices();
 
@@ -201,6 +214,8 @@ public class AnthillRuntime
 
     public void release()
     {
+        connectionManager.closeAll();
+
         try
         {
             Unirest.shutdown();
@@ -211,6 +226,79 @@ public class AnthillRuntime
         }
     }
 
+    /**
+     * @return a TLS context shared by the secure connections, built on the first call. As its session cache
+     *         is shared too, reconnects and new sessions to the same host do abbreviated handshakes.
+     */
+    public synchronized SSLContext getSSLContext() throws GeneralSecurityException
+    {
+        if (sslContext == null)
+        {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+
+            SSLSessionContext sessions = context.getClientSessionContext();
+
+            if (sessions != null)
+            {
+                sessions.setSessionCacheSize(SSL_SESSION_CACHE_SIZE);
+                sessions.setSessionTimeout(SSL_SESSION_TIMEOUT);
+            }
+
+            sslContext = context;
+        }
+
+        return sslContext;
+    }
+
+    /**
+     * Replaces the shared TLS context (for example, one with custom trust managers),
+     * takes effect on the connections opened after
+     */
+    public synchronized void setSSLContext(SSLContext sslContext)
+    {
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * Builds the shared TLS context in the background (loading the default trust managers takes a while),
+     * so the first connection would not have to wait for it
+     */
+    public void prepareSSLContext()
+    {
+        Scheduler.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    getSSLContext();
+                }
+                catch (GeneralSecurityException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        }, 0);
+    }
+
+    /**
+     * @return a manager that opens the WebSocket connections of the services' sessions
+     */
+    public ConnectionManager getConnectionManager()
+    {
+        return connectionManager;
+    }
+
+    /**
+     * @return metrics of all JSON-RPC sessions, aggregated (see getConnectionManager for the pending calls)
+     */
+    public RpcMetrics getMetrics()
+    {
+        return connectionManager.getMetrics();
+    }
+
     public ApplicationInfo getApplicationInfo()
     {
         return applicationInfo;
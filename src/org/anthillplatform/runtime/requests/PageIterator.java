@@ -0,0 +1,194 @@
+package org.anthillplatform.runtime.requests;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Walks through a paginated list (offset / limit) one item at a time, requesting the pages as it goes.
+ *
+ * While the items of a page are being consumed, up to lookAhead next pages are already being requested,
+ * so the network and the processing overlap. The list ends with the first page shorter than the page size.
+ *
+ * hasNext / next block until the page needed arrives, so the iterator should not be consumed on the thread
+ * the requests complete on. A failed request ends the iteration with a PageException.
+ */
+public class PageIterator<T> implements Iterator<T>
+{
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int DEFAULT_LOOK_AHEAD = 1;
+
+    public interface PageFetcher<T>
+    {
+        /**
+         * Requests a page, the callback should be called once it's done (on any thread)
+         */
+        void fetch(int offset, int limit, PageCallback<T> callback);
+    }
+
+    public interface PageCallback<T>
+    {
+        /**
+         * @param items the items of the page, could be null if the request has failed
+         */
+        void complete(Request.Result result, List<T> items);
+    }
+
+    public static class PageException extends RuntimeException
+    {
+        public final Request.Result result;
+
+        public PageException(Request.Result result)
+        {
+            super("Failed to fetch a page: " + result);
+            this.result = result;
+        }
+    }
+
+    private class Page implements PageCallback<T>
+    {
+        private boolean done;
+        private Request.Result result;
+        private List<T> items;
+
+        @Override
+        public void complete(Request.Result result, List<T> items)
+        {
+            synchronized (PageIterator.this)
+            {
+                if (done)
+                    return;
+
+                this.done = true;
+                this.result = result;
+                this.items = items;
+
+                PageIterator.this.notifyAll();
+            }
+        }
+    }
+
+    private final PageFetcher<T> fetcher;
+    private final int pageSize;
+    private final int lookAhead;
+
+    // requested pages, in order
+    private final ArrayDeque<Page> pages;
+    private int nextOffset;
+    private boolean ended;
+    private Iterator<T> current;
+
+    public PageIterator(PageFetcher<T> fetcher)
+    {
+        this(fetcher, DEFAULT_PAGE_SIZE, DEFAULT_LOOK_AHEAD);
+    }
+
+    /**
+     * @param pageSize how many items to request at once
+     * @param lookAhead how many pages to request ahead of the one being consumed
+     */
+    public PageIterator(PageFetcher<T> fetcher, int pageSize, int lookAhead)
+    {
+        this(fetcher, pageSize, lookAhead, 0);
+    }
+
+    public PageIterator(PageFetcher<T> fetcher, int pageSize, int lookAhead, int offset)
+    {
+        if (pageSize <= 0)
+            throw new IllegalArgumentException("pageSize should be positive");
+
+        this.fetcher = fetcher;
+        this.pageSize = pageSize;
+        this.lookAhead = Math.max(0, lookAhead);
+        this.pages = new ArrayDeque<Page>();
+        this.nextOffset = offset;
+    }
+
+    private void requestPages()
+    {
+        while (!ended && pages.size() <= lookAhead)
+        {
+            Page page = new Page();
+            int offset = nextOffset;
+
+            pages.add(page);
+            nextOffset += pageSize;
+
+            fetcher.fetch(offset, pageSize, page);
+        }
+    }
+
+    @Override
+    public synchronized boolean hasNext()
+    {
+        while (current == null || !current.hasNext())
+        {
+            current = null;
+
+            requestPages();
+
+            Page page = pages.peek();
+
+            if (page == null)
+                return false;
+
+            while (!page.done)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    close();
+                    throw new PageException(Request.Result.failed);
+                }
+            }
+
+            pages.poll();
+
+            if (page.result != Request.Result.success || page.items == null)
+            {
+                close();
+                throw new PageException(page.result != Request.Result.success ?
+                    page.result : Request.Result.dataCorrupted);
+            }
+
+            if (page.items.size() < pageSize)
+            {
+                // that's the last one, the pages requested after it are of no use
+                close();
+            }
+
+            current = page.items.iterator();
+        }
+
+        return true;
+    }
+
+    @Override
+    public synchronized T next()
+    {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        return current.next();
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stops requesting new pages, the items already received could still be consumed
+     */
+    public synchronized void close()
+    {
+        ended = true;
+        pages.clear();
+    }
+}
@@ -15,6 +15,8 @@ import org.anthillplatform.runtime.util.InputStreamRequest;
 
 import java.io.InputStream;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public abstract class Request
 {
@@ -180,7 +182,7 @@ public abstract class Request
             public void completed(HttpResponse<String> response)
             {
                 responseHeaders = response.getHeaders();
-                responseContentType = response.getHeaders().getFirst("Content-Type");
+                responseContentType = headerOf(response.getHeaders(), "Content-Type");
 
                 if (response.getStatus() >= 300)
                 {
@@ -241,7 +243,7 @@ public abstract class Request
                     {
                         if (response.getStatus() >= 200 && response.getStatus() < 400)
                         {
-                            String newToken = response.getHeaders().getFirst("Access-Token");
+                            String newToken = headerOf(response.getHeaders(), "Access-Token");
 
                             if (newToken != null)
                             {
@@ -286,6 +288,25 @@ public abstract class Request
         });
     }
 
+    /**
+     * Header names are case insensitive, but the response headers are stored as received
+     */
+    private static String headerOf(Headers headers, String name)
+    {
+        String value = headers.getFirst(name);
+
+        if (value != null)
+            return value;
+
+        for (Map.Entry<String, List<String>> entry : headers.entrySet())
+        {
+            if (name.equalsIgnoreCase(entry.getKey()) && !entry.getValue().isEmpty())
+                return entry.getValue().get(0);
+        }
+
+        return null;
+    }
+
     public void post()
     {
         post(null);
@@ -3,11 +3,10 @@ package org.anthillplatform.runtime.services;
 import org.anthillplatform.runtime.AnthillRuntime;
 import org.anthillplatform.runtime.requests.JsonRequest;
 import org.anthillplatform.runtime.requests.Request;
-import org.anthillplatform.runtime.util.Utils;
+import org.anthillplatform.runtime.util.Timestamps;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.text.SimpleDateFormat;
 import java.util.*;
 
 /**
@@ -63,11 +62,6 @@ public class BlogService extends Service
         }
     }
 
-    private static SimpleDateFormat getTimeFormat()
-    {
-        return Utils.DATE_FORMAT;
-    }
-
     public static class BlogEntry
     {
         public JSONObject data;
@@ -86,10 +80,8 @@ public class BlogService extends Service
 
             try
             {
-                SimpleDateFormat format = getTimeFormat();
-
-                dateCreate = format.parse(payload.getString("create_date"));
-                dateUpdate = format.parse(payload.getString("update_date"));
+                dateCreate = Timestamps.parse(payload.getString("create_date"));
+                dateUpdate = Timestamps.parse(payload.getString("update_date"));
             }
             catch (Exception ignored)
             {
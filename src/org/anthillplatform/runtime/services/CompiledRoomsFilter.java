@@ -0,0 +1,389 @@
+package org.anthillplatform.runtime.services;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A RoomsFilter turned into a predicate over the room settings (see GameService.RoomsFilter.compile),
+ * to check rooms locally the way the server does.
+ *
+ * Each condition is parsed once into a comparator of its own type (numbers, strings, or anything else),
+ * with the operands already unwrapped, so checking a room only takes a lookup of each key in its settings.
+ * The exact value conditions go first, as those usually rule a room out the soonest. Once compiled,
+ * the predicate does not change along with the filter, and can be shared between threads.
+ */
+public final class CompiledRoomsFilter
+{
+    /**
+     * A check of a single settings value, never called with a null one
+     */
+    static abstract class Condition
+    {
+        abstract boolean test(Object value);
+
+        /**
+         * @return true for the exact value conditions, which are checked first
+         */
+        boolean isExact()
+        {
+            return false;
+        }
+    }
+
+    private static final Condition Never = new Condition()
+    {
+        @Override
+        boolean test(Object value)
+        {
+            return false;
+        }
+    };
+
+    private static class NumberEquals extends Condition
+    {
+        private final double operand;
+
+        private NumberEquals(double operand)
+        {
+            this.operand = operand;
+        }
+
+        @Override
+        boolean test(Object value)
+        {
+            return value instanceof Number && ((Number) value).doubleValue() == operand;
+        }
+
+        @Override
+        boolean isExact()
+        {
+            return true;
+        }
+    }
+
+    private static class ValueEquals extends Condition
+    {
+        private final Object operand;
+
+        /**
+         * @param operand a copy of it is kept if it's an object or an array, so it could not be changed later
+         */
+        private ValueEquals(Object operand)
+        {
+            this.operand = copyOf(operand);
+        }
+
+        @Override
+        boolean test(Object value)
+        {
+            return valueEquals(value, operand);
+        }
+
+        @Override
+        boolean isExact()
+        {
+            return true;
+        }
+    }
+
+    private static class Not extends Condition
+    {
+        private final Condition condition;
+
+        private Not(Condition condition)
+        {
+            this.condition = condition;
+        }
+
+        @Override
+        boolean test(Object value)
+        {
+            return !condition.test(value);
+        }
+    }
+
+    /**
+     * Numbers within the bounds, either of which may be missing
+     */
+    private static class NumberRange extends Condition
+    {
+        private final boolean hasLow, hasHigh;
+        private final double low, high;
+        private final boolean lowInclusive, highInclusive;
+
+        private NumberRange(boolean hasLow, double low, boolean lowInclusive,
+                            boolean hasHigh, double high, boolean highInclusive)
+        {
+            this.hasLow = hasLow;
+            this.low = low;
+            this.lowInclusive = lowInclusive;
+            this.hasHigh = hasHigh;
+            this.high = high;
+            this.highInclusive = highInclusive;
+        }
+
+        @Override
+        boolean test(Object value)
+        {
+            if (!(value instanceof Number))
+                return false;
+
+            double v = ((Number) value).doubleValue();
+
+            if (hasLow)
+            {
+                int result = Double.compare(v, low);
+
+                if (result < 0 || (result == 0 && !lowInclusive))
+                    return false;
+            }
+
+            if (hasHigh)
+            {
+                int result = Double.compare(v, high);
+
+                if (result > 0 || (result == 0 && !highInclusive))
+                    return false;
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Strings within the bounds (in String.compareTo order), a null bound is missing
+     */
+    private static class StringRange extends Condition
+    {
+        private final String low, high;
+        private final boolean lowInclusive, highInclusive;
+
+        private StringRange(String low, boolean lowInclusive, String high, boolean highInclusive)
+        {
+            this.low = low;
+            this.lowInclusive = lowInclusive;
+            this.high = high;
+            this.highInclusive = highInclusive;
+        }
+
+        @Override
+        boolean test(Object value)
+        {
+            if (!(value instanceof String))
+                return false;
+
+            String v = ((String) value);
+
+            if (low != null)
+            {
+                int result = v.compareTo(low);
+
+                if (result < 0 || (result == 0 && !lowInclusive))
+                    return false;
+            }
+
+            if (high != null)
+            {
+                int result = v.compareTo(high);
+
+                if (result > 0 || (result == 0 && !highInclusive))
+                    return false;
+            }
+
+            return true;
+        }
+    }
+
+    private final String[] keys;
+    private final Condition[] conditions;
+
+    CompiledRoomsFilter(JSONObject filters)
+    {
+        int count = filters.length();
+
+        this.keys = new String[count];
+        this.conditions = new Condition[count];
+
+        int exact = 0;
+        int other = count;
+
+        for (String key : filters.keySet())
+        {
+            Condition condition = conditionOf(filters.get(key));
+
+            // exact ones from the start, the rest from the end
+            int index = condition.isExact() ? exact++ : --other;
+
+            keys[index] = key;
+            conditions[index] = condition;
+        }
+    }
+
+    /**
+     * @return true if the settings match every condition, a key missing from the settings matches none
+     */
+    public boolean matches(JSONObject settings)
+    {
+        for (int i = 0; i < keys.length; i++)
+        {
+            Object value = settings != null ? settings.opt(keys[i]) : null;
+
+            if (value == null || value == JSONObject.NULL || !conditions[i].test(value))
+                return false;
+        }
+
+        return true;
+    }
+
+    public boolean matches(GameService.Room room)
+    {
+        return matches(room.settings);
+    }
+
+    /**
+     * @param showFull false to leave the full rooms out
+     * @return the rooms matching, in the same order
+     */
+    public List<GameService.Room> filter(Collection<GameService.Room> rooms, boolean showFull)
+    {
+        ArrayList<GameService.Room> result = new ArrayList<GameService.Room>(rooms.size());
+
+        for (GameService.Room room : rooms)
+        {
+            if ((showFull || !room.isFull()) && matches(room.settings))
+            {
+                result.add(room);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Parses a single condition of a filter: either an exact value, or an object with "@func"
+     */
+    static Condition conditionOf(Object condition)
+    {
+        if (!(condition instanceof JSONObject) || !((JSONObject) condition).has("@func"))
+            return equalsTo(condition);
+
+        JSONObject cond = ((JSONObject) condition);
+        String func = cond.optString("@func");
+
+        if ("between".equals(func))
+        {
+            Object a = cond.opt("@a");
+            Object b = cond.opt("@b");
+
+            return a != null && b != null ? rangeOf(a, true, b, true) : Never;
+        }
+
+        Object operand = cond.opt("@value");
+
+        if (operand == null)
+            return Never;
+
+        switch (func)
+        {
+            case "!=":
+                return new Not(equalsTo(operand));
+            case ">":
+                return rangeOf(operand, false, null, false);
+            case ">=":
+                return rangeOf(operand, true, null, false);
+            case "<":
+                return rangeOf(null, false, operand, false);
+            case "<=":
+                return rangeOf(null, false, operand, true);
+            default:
+                return Never;
+        }
+    }
+
+    private static Condition equalsTo(Object operand)
+    {
+        if (operand instanceof Number)
+            return new NumberEquals(((Number) operand).doubleValue());
+
+        return new ValueEquals(operand);
+    }
+
+    /**
+     * @param low a lower bound, or null if there is none
+     * @param high an upper bound, or null if there is none
+     */
+    private static Condition rangeOf(Object low, boolean lowInclusive, Object high, boolean highInclusive)
+    {
+        boolean numbers = (low == null || low instanceof Number) && (high == null || high instanceof Number);
+        boolean strings = (low == null || low instanceof String) && (high == null || high instanceof String);
+
+        if (low == null && high == null)
+            return Never;
+
+        if (numbers)
+        {
+            return new NumberRange(
+                low != null, low != null ? ((Number) low).doubleValue() : 0, lowInclusive,
+                high != null, high != null ? ((Number) high).doubleValue() : 0, highInclusive);
+        }
+
+        if (strings)
+            return new StringRange(((String) low), lowInclusive, ((String) high), highInclusive);
+
+        // bounds of different types, or ones that cannot be compared
+        return Never;
+    }
+
+    /**
+     * @return a deep copy of an object or an array (keeping the types of the values, unlike a copy through
+     *         a JSON text), or the value itself otherwise
+     */
+    private static Object copyOf(Object value)
+    {
+        if (value instanceof JSONObject)
+        {
+            JSONObject object = ((JSONObject) value);
+            JSONObject copy = new JSONObject();
+
+            for (String key : object.keySet())
+            {
+                copy.put(key, copyOf(object.opt(key)));
+            }
+
+            return copy;
+        }
+
+        if (value instanceof JSONArray)
+        {
+            JSONArray array = ((JSONArray) value);
+            JSONArray copy = new JSONArray();
+
+            for (int i = 0, t = array.length(); i < t; i++)
+            {
+                copy.put(copyOf(array.opt(i)));
+            }
+
+            return copy;
+        }
+
+        return value;
+    }
+
+    static boolean valueEquals(Object a, Object b)
+    {
+        if (a instanceof Number && b instanceof Number)
+            return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+
+        if (a instanceof JSONObject && b instanceof JSONObject)
+            return ((JSONObject) a).similar(b);
+
+        if (a instanceof JSONArray && b instanceof JSONArray)
+            return ((JSONArray) a).similar(b);
+
+        return a != null && a.equals(b);
+    }
+}
@@ -3,11 +3,10 @@ package org.anthillplatform.runtime.services;
 import org.anthillplatform.runtime.AnthillRuntime;
 import org.anthillplatform.runtime.requests.JsonRequest;
 import org.anthillplatform.runtime.requests.Request;
-import org.anthillplatform.runtime.util.Utils;
+import org.anthillplatform.runtime.util.Timestamps;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.text.SimpleDateFormat;
 import java.util.*;
 
 /**
@@ -105,11 +104,6 @@ public class EventService extends Service
         }
     }
 
-    private static SimpleDateFormat getTimeFormat()
-    {
-        return Utils.DATE_FORMAT;
-    }
-
     public enum EventKind
     {
         account,
@@ -205,10 +199,8 @@ public class EventService extends Service
 
             try
             {
-                SimpleDateFormat format = getTimeFormat();
-
-                timeStart = format.parse(time.getString("start"));
-                timeEnd = format.parse(time.getString("end"));
+                timeStart = Timestamps.parse(time.getString("start"));
+                timeEnd = Timestamps.parse(time.getString("end"));
                 timeLeft = time.getInt("left");
             }
             catch (Exception ignored)
@@ -2,21 +2,23 @@ package org.anthillplatform.runtime.services;
 
 import org.anthillplatform.runtime.AnthillRuntime;
 import org.anthillplatform.runtime.util.ApplicationInfo;
+import org.anthillplatform.runtime.util.ConnectionManager;
 import org.anthillplatform.runtime.requests.JsonRequest;
 import org.anthillplatform.runtime.requests.Request;
 import org.anthillplatform.runtime.util.JsonRPC;
-import org.anthillplatform.runtime.util.Utils;
+import org.anthillplatform.runtime.util.RpcMetrics;
+import org.anthillplatform.runtime.util.Timestamps;
 import org.anthillplatform.runtime.util.WebSocketJsonRPC;
 import org.java_websocket.handshake.ServerHandshake;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import javax.net.ssl.SSLContext;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
 import java.util.*;
+import java.util.concurrent.Executor;
 
 /**
  * Game servers hosting & matchmaking service for Anthill platform
@@ -29,6 +31,39 @@ public class GameService extends Service
     public static final String ID = "game";
     public static final String API_VERSION = "0.2";
 
+    // the rooms cache is off unless enabled with setRoomsCacheTTL
+    public static final long DEFAULT_ROOMS_CACHE_TTL = 0;
+    public static final int DEFAULT_JOIN_FAN_OUT = 3;
+    public static final int DEFAULT_RECORDS_URL_LENGTH = 2000;
+    public static final int DEFAULT_RECORDS_CONCURRENCY = 4;
+    public static final long DEFAULT_RECORDS_CACHE_TTL = 5000;
+    public static final long DEFAULT_RECORDS_CACHE_STALE_TTL = 60000;
+
+    /**
+     * Ranks the rooms to join: the ones closest to being full first (so the games would start sooner),
+     * the full ones last
+     */
+    public static final Comparator<Room> FullestFirst = new Comparator<Room>()
+    {
+        @Override
+        public int compare(Room a, Room b)
+        {
+            if (a.isFull() != b.isFull())
+                return a.isFull() ? 1 : -1;
+
+            return Integer.compare(a.maxPlayers - a.players, b.maxPlayers - b.players);
+        }
+    };
+
+    private WebSocketJsonRPC.Options partySessionOptions = new WebSocketJsonRPC.Options();
+    private final RoomsCache roomsCache = new RoomsCache(this, DEFAULT_ROOMS_CACHE_TTL);
+    private final RegionProber regionProber = new RegionProber();
+    private volatile boolean useProbedRegion;
+    private final PlayerRecordsCache recordsCache = new PlayerRecordsCache(this,
+        DEFAULT_RECORDS_CACHE_TTL, DEFAULT_RECORDS_CACHE_STALE_TTL);
+    private volatile int recordsUrlLength = DEFAULT_RECORDS_URL_LENGTH;
+    private volatile int recordsConcurrency = DEFAULT_RECORDS_CONCURRENCY;
+
     public interface JoinGameCallback
     {
         void success(String roomId, String key, String host, int[] ports, JSONObject settings);
@@ -105,6 +140,13 @@ public class GameService extends Service
             this.profile = data.optJSONObject("profile");
         }
 
+        public PartyMember(String account, int role, JSONObject profile)
+        {
+            this.account = account;
+            this.role = role;
+            this.profile = profile;
+        }
+
         public String getAccount()
         {
             return account;
@@ -160,8 +202,12 @@ public class GameService extends Service
     public static class PartySession
     {
         private PartySessionRPC jsonRPC;
+        private final RpcMetrics metrics = new RpcMetrics();
         private Listener listener;
-        private HashMap<String, InternalMessageHandler> internalHandlers;
+        private final MemberView memberView = new MemberView();
+        private Executor dispatchExecutor;
+        private WebSocketJsonRPC.Options options;
+        private ConnectionManager connectionManager;
 
         private static final String MESSAGE_TYPE_PLAYER_JOINED = "player_joined";
         private static final String MESSAGE_TYPE_PLAYER_LEFT = "player_left";
@@ -174,11 +220,24 @@ public class GameService extends Service
         public PartySession(Listener listener)
         {
             this.listener = listener;
+            this.options = new WebSocketJsonRPC.Options();
+        }
+
+        /**
+         * Connection options (encoding, send queue size etc), take effect on open()
+         */
+        public void setOptions(WebSocketJsonRPC.Options options)
+        {
+            this.options = options;
         }
 
-        private interface InternalMessageHandler
+        /**
+         * A manager to open the connection with (see AnthillRuntime.getConnectionManager),
+         * required by open()
+         */
+        public void setConnectionManager(ConnectionManager connectionManager)
         {
-            void onMessage(String messageType, JSONObject payload);
+            this.connectionManager = connectionManager;
         }
 
         public interface Listener
@@ -199,11 +258,100 @@ public class GameService extends Service
             void onCustomMessage(String messageType, JSONObject payload);
         }
 
+        /**
+         * A Listener that receives the frequent party events without the extra objects: members as a view
+         * reused from one event to another, and the ports as an int[]. If the session's listener implements it,
+         * these variants are called instead of Listener.onPlayerJoined, onPlayerLeft and onGameStarted
+         * (extend TypedListenerAdapter to leave those out).
+         */
+        public interface TypedListener extends Listener
+        {
+            /**
+             * @param member only valid during the call, see MemberView.copy
+             */
+            void onPlayerJoined(MemberView member);
+
+            /**
+             * @param member only valid during the call, see MemberView.copy
+             */
+            void onPlayerLeft(MemberView member);
+
+            void onGameStarted(String roomId, String slot, String key, String host, int[] ports,
+                               JSONObject roomSettings);
+        }
+
+        /**
+         * A TypedListener to extend, so the Listener variants it replaces (which are never called for it)
+         * would not have to be implemented
+         */
+        public static abstract class TypedListenerAdapter implements TypedListener
+        {
+            @Override
+            public final void onPlayerJoined(PartyMember member)
+            {
+                //
+            }
+
+            @Override
+            public final void onPlayerLeft(PartyMember member)
+            {
+                //
+            }
+
+            @Override
+            public final void onGameStarted(String roomId, String slot, String key, String host,
+                                            ArrayList<Integer> ports, JSONObject roomSettings)
+            {
+                //
+            }
+        }
+
+        /**
+         * A party member of an event, the same instance is reused for the next events
+         */
+        public static class MemberView
+        {
+            private String account;
+            private int role;
+            private JSONObject profile;
+
+            private MemberView set(JSONObject data)
+            {
+                this.account = data.optString("account");
+                this.role = data.optInt("role", 0);
+                this.profile = data.optJSONObject("profile");
+                return this;
+            }
+
+            public String getAccount()
+            {
+                return account;
+            }
+
+            public int getRole()
+            {
+                return role;
+            }
+
+            public JSONObject getProfile()
+            {
+                return profile;
+            }
+
+            /**
+             * @return the member, to keep beyond the event
+             */
+            public PartyMember copy()
+            {
+                return new PartyMember(account, role, profile);
+            }
+        }
+
         private class PartySessionRPC extends WebSocketJsonRPC
         {
-            public PartySessionRPC(URI serverURI)
+            public PartySessionRPC(URI serverURI, WebSocketJsonRPC.Options options)
             {
-                super(serverURI);
+                super(serverURI, options);
             }
 
             @Override
@@ -221,6 +369,7 @@ public class GameService extends Service
             @Override
             public void onClose(int i, String s, boolean b)
             {
+                super.onClose(i, s, b);
                 listener.onClose(i, s, b);
             }
 
@@ -236,6 +385,20 @@ public class GameService extends Service
             jsonRPC.close();
         }
 
+        /**
+         * If set, incoming party events are processed (and the listener is called) on the executor,
+         * in the order they were received, instead of the socket's reading thread.
+         */
+        public void setDispatchExecutor(Executor dispatchExecutor)
+        {
+            this.dispatchExecutor = dispatchExecutor;
+
+            if (jsonRPC != null)
+            {
+                jsonRPC.setDispatcher(dispatchExecutor, null);
+            }
+        }
+
         public PartySessionRPC getRPC()
         {
             return jsonRPC;
@@ -247,6 +410,31 @@ public class GameService extends Service
             return jsonRPC != null && jsonRPC.isOpen();
         }
 
+        /**
+         * @return false when too many frames are waiting to be sent, and the caller should hold off sending more
+         */
+        public boolean isWritable()
+        {
+            return isOpen() && jsonRPC.isWritable();
+        }
+
+        /**
+         * @return a smoothed round trip time to the server (in milliseconds), measured with the heartbeat
+         *         pings (see WebSocketJsonRPC.Options.heartbeatInterval), or -1 if not known yet
+         */
+        public double getRtt()
+        {
+            return jsonRPC != null ? jsonRPC.getRtt() : -1;
+        }
+
+        /**
+         * @return metrics of the session, kept across reconnects
+         */
+        public RpcMetrics getMetrics()
+        {
+            return metrics;
+        }
+
         public boolean sendCustomMessage(JSONObject payload, JsonRPC.ResponseHandler callback)
         {
             if (!isOpen())
@@ -255,9 +443,8 @@ public class GameService extends Service
             JSONObject args = new JSONObject();
 
             args.put("payload", payload);
-            jsonRPC.request("send_message", callback, args);
 
-            return true;
+            return jsonRPC.request("send_message", callback, args);
         }
 
         public boolean closeParty(JSONObject message, JsonRPC.ResponseHandler callback)
@@ -268,9 +455,8 @@ public class GameService extends Service
             JSONObject args = new JSONObject();
 
             args.put("message", message);
-            jsonRPC.request("close_party", callback, args);
 
-            return true;
+            return jsonRPC.request("close_party", callback, args);
         }
 
         public boolean join(JSONObject memberProfile, JsonRPC.ResponseHandler callback)
@@ -290,9 +476,7 @@ public class GameService extends Service
             if (checkMembers != null)
                 args.put("check_members", checkMembers);
 
-            jsonRPC.request("join_party", callback, args);
-
-            return true;
+            return jsonRPC.request("join_party", callback, args);
         }
 
         public boolean leave(JsonRPC.ResponseHandler callback)
@@ -302,9 +486,7 @@ public class GameService extends Service
 
             JSONObject args = new JSONObject();
 
-            jsonRPC.request("leave_party", callback, args);
-
-            return true;
+            return jsonRPC.request("leave_party", callback, args);
         }
 
         public boolean startGame(JSONObject message, JsonRPC.ResponseHandler callback)
@@ -315,13 +497,18 @@ public class GameService extends Service
             JSONObject args = new JSONObject();
 
             args.put("message", message);
-            jsonRPC.request("start_game", callback, args);
 
-            return true;
+            return jsonRPC.request("start_game", callback, args);
         }
 
         public void open(String location, HashMap<String, String> args)
         {
+            if (connectionManager == null)
+            {
+                listener.onError(new IllegalStateException("No connection manager set"));
+                return;
+            }
+
             URI uri;
 
             try
@@ -365,139 +552,39 @@ public class GameService extends Service
                 return;
             }
 
-            if (uri.getScheme().equals("https"))
+            try
             {
-                try
-                {
-                    uri = new URI("wss", null, uri.getHost(), uri.getPort(), uri.getPath(),
-                        uri.getQuery(), uri.getFragment());
-                    jsonRPC = new PartySessionRPC(uri);
-
-                    SSLContext context = SSLContext.getInstance( "TLS" );
+                String scheme = uri.getScheme().equals("https") ? "wss" : "ws";
 
-                    context.init(null, null, null);
-
-                    jsonRPC.setSocket(context.getSocketFactory().createSocket());
-                }
-                catch (Exception e)
-                {
-                    e.printStackTrace();
-                    listener.onError(e);
-                    return;
-                }
+                uri = new URI(scheme, null, uri.getHost(), uri.getPort(), uri.getPath(),
+                    uri.getQuery(), uri.getFragment());
             }
-            else
+            catch (URISyntaxException e)
             {
-                try
-                {
-                    uri = new URI("ws", null, uri.getHost(), uri.getPort(), uri.getPath(),
-                        uri.getQuery(), uri.getFragment());
-                    jsonRPC = new PartySessionRPC(uri);
-                }
-                catch (URISyntaxException e)
-                {
-                    e.printStackTrace();
-                    listener.onError(e);
-                    return;
-                }
+                e.printStackTrace();
+                listener.onError(e);
+                return;
             }
 
+            jsonRPC = new PartySessionRPC(uri, options);
+            jsonRPC.setMetrics(metrics);
+
             init();
 
-            jsonRPC.connect();
+            try
+            {
+                connectionManager.connect(jsonRPC);
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+                listener.onError(e);
+            }
         }
 
         private void init()
         {
-            internalHandlers = new HashMap<String, InternalMessageHandler>();
-
-            internalHandlers.put(MESSAGE_TYPE_PLAYER_JOINED, new InternalMessageHandler()
-            {
-                @Override
-                public void onMessage(String messageType, JSONObject payload)
-                {
-                    listener.onPlayerJoined(new PartyMember(payload));
-                }
-            });
-
-            internalHandlers.put(MESSAGE_TYPE_PLAYER_LEFT, new InternalMessageHandler()
-            {
-                @Override
-                public void onMessage(String messageType, JSONObject payload)
-                {
-                    listener.onPlayerLeft(new PartyMember(payload));
-                }
-            });
-
-            internalHandlers.put(MESSAGE_TYPE_GAME_STARTING, new InternalMessageHandler()
-            {
-                @Override
-                public void onMessage(String messageType, JSONObject payload)
-                {
-                    listener.onGameStarting(payload);
-                }
-            });
-
-            internalHandlers.put(MESSAGE_TYPE_GAME_START_FAILED, new InternalMessageHandler()
-            {
-                @Override
-                public void onMessage(String messageType, JSONObject payload)
-                {
-                    listener.onGameStartFailed(payload.optInt("code", 500),
-                        payload.optString("reason", "error"));
-                }
-            });
-
-            internalHandlers.put(MESSAGE_TYPE_PARTY_CLOSED, new InternalMessageHandler()
-            {
-                @Override
-                public void onMessage(String messageType, JSONObject payload)
-                {
-                    listener.onPartyClosed(payload);
-                }
-            });
-
-            internalHandlers.put(MESSAGE_TYPE_CUSTOM, new InternalMessageHandler()
-            {
-                @Override
-                public void onMessage(String messageType, JSONObject payload)
-                {
-                    listener.onCustomMessage(messageType, payload);
-                }
-            });
-
-            internalHandlers.put(MESSAGE_TYPE_GAME_STARTED, new InternalMessageHandler()
-            {
-                @Override
-                public void onMessage(String messageType, JSONObject payload)
-                {
-                    String roomId = payload.optString("id");
-                    String slot = payload.optString("slot");
-                    String key = payload.optString("key");
-
-                    JSONObject location = payload.optJSONObject("location");
-                    JSONObject roomSettings = payload.optJSONObject("settings");
-
-                    if (roomId == null || key == null || location == null || roomSettings == null)
-                    {
-                        listener.onError(500, "Bad " + MESSAGE_TYPE_GAME_STARTED + " message received", "");
-                        return;
-                    }
-
-                    String host = location.optString("host");
-                    JSONArray ports = location.optJSONArray("ports");
-
-                    ArrayList<Integer> _ports = new ArrayList<Integer>();
-
-                    for (int i = 0, t = ports.length(); i < t; i++)
-                    {
-                        int port = ports.optInt(i, 0);
-                        _ports.add(port);
-                    }
-
-                    listener.onGameStarted(roomId, slot, key, host, _ports, roomSettings);
-                }
-            });
+            jsonRPC.setDispatcher(dispatchExecutor, null);
 
             jsonRPC.addHandler("message", new JsonRPC.MethodHandler()
             {
@@ -515,17 +602,7 @@ public class GameService extends Service
                         return false;
                     }
 
-                    InternalMessageHandler internalHandler = internalHandlers.get(messageType);
-
-                    if (internalHandler == null)
-                    {
-                        listener.onError(500, "Unkonwn message type received", messageType);
-                        return false;
-                    }
-
-                    internalHandler.onMessage(messageType, payload);
-
-                    return null;
+                    return decode(messageType, payload) ? null : false;
                 }
             });
 
@@ -569,6 +646,107 @@ public class GameService extends Service
                 }
             });
         }
+
+        private boolean decode(String messageType, JSONObject payload)
+        {
+            TypedListener typed = listener instanceof TypedListener ? ((TypedListener) listener) : null;
+
+            switch (messageType)
+            {
+                case MESSAGE_TYPE_PLAYER_JOINED:
+                {
+                    if (typed != null)
+                        typed.onPlayerJoined(memberView.set(payload));
+                    else
+                        listener.onPlayerJoined(new PartyMember(payload));
+
+                    return true;
+                }
+                case MESSAGE_TYPE_PLAYER_LEFT:
+                {
+                    if (typed != null)
+                        typed.onPlayerLeft(memberView.set(payload));
+                    else
+                        listener.onPlayerLeft(new PartyMember(payload));
+
+                    return true;
+                }
+                case MESSAGE_TYPE_GAME_STARTING:
+                {
+                    listener.onGameStarting(payload);
+                    return true;
+                }
+                case MESSAGE_TYPE_GAME_START_FAILED:
+                {
+                    listener.onGameStartFailed(payload.optInt("code", 500),
+                        payload.optString("reason", "error"));
+                    return true;
+                }
+                case MESSAGE_TYPE_PARTY_CLOSED:
+                {
+                    listener.onPartyClosed(payload);
+                    return true;
+                }
+                case MESSAGE_TYPE_CUSTOM:
+                {
+                    listener.onCustomMessage(messageType, payload);
+                    return true;
+                }
+                case MESSAGE_TYPE_GAME_STARTED:
+                {
+                    decodeGameStarted(payload, typed);
+                    return true;
+                }
+                default:
+                {
+                    listener.onError(500, "Unkonwn message type received", messageType);
+                    return false;
+                }
+            }
+        }
+
+        private void decodeGameStarted(JSONObject payload, TypedListener typed)
+        {
+            String roomId = payload.optString("id");
+            String slot = payload.optString("slot");
+            String key = payload.optString("key");
+
+            JSONObject location = payload.optJSONObject("location");
+            JSONObject roomSettings = payload.optJSONObject("settings");
+
+            if (roomId == null || key == null || location == null || roomSettings == null)
+            {
+                listener.onError(500, "Bad " + MESSAGE_TYPE_GAME_STARTED + " message received", "");
+                return;
+            }
+
+            String host = location.optString("host");
+            JSONArray ports = location.optJSONArray("ports");
+            int count = ports != null ? ports.length() : 0;
+
+            if (typed != null)
+            {
+                int[] _ports = new int[count];
+
+                for (int i = 0; i < count; i++)
+                {
+                    _ports[i] = ports.optInt(i, 0);
+                }
+
+                typed.onGameStarted(roomId, slot, key, host, _ports, roomSettings);
+            }
+            else
+            {
+                ArrayList<Integer> _ports = new ArrayList<Integer>(count);
+
+                for (int i = 0; i < count; i++)
+                {
+                    _ports.add(ports.optInt(i, 0));
+                }
+
+                listener.onGameStarted(roomId, slot, key, host, _ports, roomSettings);
+            }
+        }
     }
 
     public class PlayerRecord
@@ -659,12 +837,92 @@ public class GameService extends Service
     public static class RoomsFilter
     {
         private JSONObject filters;
+        private CompiledRoomsFilter compiled;
 
         public RoomsFilter()
         {
             this.filters = new JSONObject();
         }
 
+        private RoomsFilter(JSONObject filters)
+        {
+            this.filters = filters;
+        }
+
+        /**
+         * @return a copy of the filter, not affected by the further changes to this one
+         */
+        public RoomsFilter copy()
+        {
+            return new RoomsFilter(new JSONObject(filters.toString()));
+        }
+
+        /**
+         * Checks room settings against the filter, the way the server does: a key missing from the settings
+         * (or a value of a type that cannot be compared) does not match any condition.
+         */
+        public boolean matches(JSONObject settings)
+        {
+            return compile().matches(settings);
+        }
+
+        /**
+         * @return the filter as a predicate to check many rooms with, not affected by the further changes
+         *         to this one. It is only compiled again after a change.
+         */
+        public CompiledRoomsFilter compile()
+        {
+            CompiledRoomsFilter compiled = this.compiled;
+
+            if (compiled == null)
+            {
+                compiled = new CompiledRoomsFilter(filters);
+                this.compiled = compiled;
+            }
+
+            return compiled;
+        }
+
+        /**
+         * @return true if every room matching the other filter matches this one as well,
+         *         so rooms listed with this filter could be filtered down to the other one locally
+         */
+        boolean covers(RoomsFilter other)
+        {
+            for (String key : filters.keySet())
+            {
+                Object condition = filters.get(key);
+                Object narrower = other.filters.opt(key);
+
+                if (narrower == null)
+                    return false;
+
+                if (isCondition(narrower))
+                {
+                    if (!isCondition(condition) || !((JSONObject) narrower).similar(condition))
+                        return false;
+                }
+                else if (!CompiledRoomsFilter.conditionOf(condition).test(narrower))
+                {
+                    // the other one asks for an exact value, which should pass this condition
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private static boolean isCondition(Object condition)
+        {
+            return condition instanceof JSONObject && ((JSONObject) condition).has("@func");
+        }
+
+        private void put(String key, Object condition)
+        {
+            filters.put(key, condition);
+            compiled = null;
+        }
+
         private <T> JSONObject condition(String func, T value)
         {
             JSONObject object = new JSONObject();
@@ -677,37 +935,37 @@ public class GameService extends Service
 
         public <T> RoomsFilter putEquals(String key, T value)
         {
-            filters.put(key, value);
+            put(key, value);
             return this;
         }
 
         public <T> RoomsFilter putGreater(String key, T value)
         {
-            filters.put(key, condition(">", value));
+            put(key, condition(">", value));
             return this;
         }
 
         public <T> RoomsFilter putGreaterOrEqual(String key, T value)
         {
-            filters.put(key, condition(">=", value));
+            put(key, condition(">=", value));
             return this;
         }
 
         public <T> RoomsFilter putLess(String key, T value)
         {
-            filters.put(key, condition("<", value));
+            put(key, condition("<", value));
             return this;
         }
 
         public <T> RoomsFilter putLessOrEqual(String key, T value)
         {
-            filters.put(key, condition("<=", value));
+            put(key, condition("<=", value));
             return this;
         }
 
         public <T> RoomsFilter putNotEqual(String key, T value)
         {
-            filters.put(key, condition("!=", value));
+            put(key, condition("!=", value));
             return this;
         }
 
@@ -719,7 +977,7 @@ public class GameService extends Service
             cond.put("@a", a);
             cond.put("@b", b);
 
-            filters.put(key, cond);
+            put(key, cond);
             return this;
         }
 
@@ -832,6 +1090,14 @@ public class GameService extends Service
         return AnthillRuntime.Get(ID, GameService.class);
     }
 
+    /**
+     * Connection options (like binary encoding) for the party sessions opened after this call
+     */
+    public void setPartySessionOptions(WebSocketJsonRPC.Options partySessionOptions)
+    {
+        this.partySessionOptions = partySessionOptions;
+    }
+
     public void getStatus(final GetGamesStatusCallback callback)
     {
         JsonRequest jsonRequest = new JsonRequest(getLocation() + "/status",
@@ -909,6 +1175,53 @@ public class GameService extends Service
         jsonRequest.get();
     }
 
+    /**
+     * Requests the regions, and measures the latency to each of them (see RegionProber). Once done,
+     * the fastest region is available with getRegionProber().getBestRegion(), to pass to listGames, joinGame,
+     * createParty or openNewPartySession (or used by them automatically, see setUseProbedRegion).
+     */
+    public void probeRegions(LoginService.AccessToken accessToken, final RegionProber.ProbeCallback callback)
+    {
+        getRegions(accessToken, new ListRegionsCallback()
+        {
+            @Override
+            public void result(GameService service, Request request, Request.Result result,
+                               List<Region> regions, String myRegion)
+            {
+                if (result != Request.Result.success || regions == null)
+                {
+                    if (callback != null)
+                    {
+                        callback.complete(null);
+                    }
+
+                    return;
+                }
+
+                regionProber.probe(regions, callback);
+            }
+        });
+    }
+
+    public RegionProber getRegionProber()
+    {
+        return regionProber;
+    }
+
+    /**
+     * If enabled (disabled by default), listGames, joinGame, createParty and openNewPartySession called
+     * without a region use the fastest one probed (see probeRegions) instead of leaving it to the server.
+     */
+    public void setUseProbedRegion(boolean useProbedRegion)
+    {
+        this.useProbedRegion = useProbedRegion;
+    }
+
+    private String preferredRegion(String region)
+    {
+        return region != null || !useProbedRegion ? region : regionProber.getBestRegion();
+    }
+
     public void createGame(LoginService.AccessToken accessToken, String gameServerName, RoomSettings createSettings,
                            final JoinGameCallback callback)
     {
@@ -964,6 +1277,10 @@ public class GameService extends Service
         listGames(accessToken, gameServerName, filter, callback, false, true, null);
     }
 
+    /**
+     * Lists the rooms matching the filter. If the rooms cache is enabled (see setRoomsCacheTTL), repeated
+     * listings with the same filter, or with a narrower one, are answered from the cache and filtered locally.
+     */
     public void listGames(
         LoginService.AccessToken accessToken,
         String gameServerName,
@@ -972,6 +1289,47 @@ public class GameService extends Service
         boolean myRegionOnly,
         boolean showFull,
         String region)
+    {
+        region = preferredRegion(region);
+
+        if (roomsCache.getTTL() > 0)
+        {
+            roomsCache.list(accessToken, gameServerName, filter, callback, myRegionOnly, showFull, region);
+        }
+        else
+        {
+            requestGames(accessToken, gameServerName, filter, callback, myRegionOnly, showFull, region);
+        }
+    }
+
+    /**
+     * Enables the rooms cache (disabled by default): the room lists are reused for a while, so a listing
+     * could be a bit out of date. A couple of seconds is usually enough for the matchmaking polls.
+     * The lists are kept per access token, so a listing is never answered with what another player was given.
+     *
+     * @param ttl how long (in milliseconds) the room lists are reused for, or 0 to request them every time
+     */
+    public void setRoomsCacheTTL(long ttl)
+    {
+        roomsCache.setTTL(ttl);
+    }
+
+    /**
+     * Forgets the room lists cached, so the next listings would be requested from the server
+     */
+    public void invalidateRoomsCache()
+    {
+        roomsCache.clear();
+    }
+
+    void requestGames(
+        LoginService.AccessToken accessToken,
+        String gameServerName,
+        RoomsFilter filter,
+        final ListGamesCallback callback,
+        boolean myRegionOnly,
+        boolean showFull,
+        String region)
     {
         ApplicationInfo applicationInfo = getRuntime().getApplicationInfo();
 
@@ -1070,6 +1428,131 @@ public class GameService extends Service
         jsonRequest.post(null);
     }
 
+    /**
+     * Joins one of the rooms (for example, listed with listGames), trying DEFAULT_JOIN_FAN_OUT of them at once
+     */
+    public void joinAnyGame(LoginService.AccessToken accessToken, List<Room> rooms, JoinGameCallback callback)
+    {
+        joinAnyGame(accessToken, rooms, FullestFirst, DEFAULT_JOIN_FAN_OUT, callback);
+    }
+
+    /**
+     * Joins one of the rooms: they are ranked, and fanOut of them are joined at once. Once a join fails,
+     * the next room in the ranking is tried, and the first one to succeed is reported to the callback.
+     *
+     * The other rooms that happen to accept the join as well are left alone: the slot reserved there
+     * expires on its own, since the player never connects to it.
+     *
+     * @param ranking an order to try the rooms in, or null to keep the order given
+     */
+    public void joinAnyGame(LoginService.AccessToken accessToken, List<Room> rooms, Comparator<Room> ranking,
+                            int fanOut, JoinGameCallback callback)
+    {
+        List<Room> candidates = new ArrayList<Room>(rooms);
+
+        if (ranking != null)
+        {
+            Collections.sort(candidates, ranking);
+        }
+
+        if (candidates.isEmpty())
+        {
+            callback.fail(null, Request.Result.notFound);
+            return;
+        }
+
+        new SpeculativeJoin(accessToken, candidates, callback).start(Math.max(1, fanOut));
+    }
+
+    private class SpeculativeJoin
+    {
+        private final LoginService.AccessToken accessToken;
+        private final List<Room> candidates;
+        private final JoinGameCallback callback;
+
+        private int next;
+        private int pending;
+        private boolean done;
+
+        private SpeculativeJoin(LoginService.AccessToken accessToken, List<Room> candidates,
+                                JoinGameCallback callback)
+        {
+            this.accessToken = accessToken;
+            this.candidates = candidates;
+            this.callback = callback;
+        }
+
+        private void start(int fanOut)
+        {
+            for (int i = 0; i < fanOut; i++)
+            {
+                if (!tryNext())
+                    break;
+            }
+        }
+
+        private boolean tryNext()
+        {
+            Room room;
+
+            synchronized (this)
+            {
+                if (done || next >= candidates.size())
+                    return false;
+
+                room = candidates.get(next++);
+                pending++;
+            }
+
+            joinGame(accessToken, room.id, new JoinGameCallback()
+            {
+                @Override
+                public void success(String roomId, String key, String host, int[] ports, JSONObject settings)
+                {
+                    synchronized (SpeculativeJoin.this)
+                    {
+                        pending--;
+
+                        if (done)
+                            return;
+
+                        done = true;
+                    }
+
+                    callback.success(roomId, key, host, ports, settings);
+                }
+
+                @Override
+                public void fail(Request request, Request.Result result)
+                {
+                    synchronized (SpeculativeJoin.this)
+                    {
+                        pending--;
+
+                        if (done)
+                            return;
+                    }
+
+                    if (tryNext())
+                        return;
+
+                    synchronized (SpeculativeJoin.this)
+                    {
+                        // the others might still succeed
+                        if (done || pending > 0)
+                            return;
+
+                        done = true;
+                    }
+
+                    callback.fail(request, result);
+                }
+            });
+
+            return true;
+        }
+    }
+
     public void joinGameMulti(
         LoginService.AccessToken accessToken,
         ArrayList<JoinMultiWrapper> players,
@@ -1198,6 +1681,7 @@ public class GameService extends Service
         boolean myRegionOnly, String region)
     {
         ApplicationInfo applicationInfo = getRuntime().getApplicationInfo();
+        region = preferredRegion(region);
 
         JsonRequest jsonRequest = new JsonRequest(
             getLocation() + "/join/" + applicationInfo.applicationName + "/" + gameServerName + "/" +
@@ -1301,10 +1785,225 @@ public class GameService extends Service
         jsonRequest.get();
     }
 
+    /**
+     * Lists the records of the accounts. The accounts are passed in the query string, so a long list is split
+     * into several requests, each under the URL length limit (see setRecordsRequestLimits), run in parallel;
+     * the callback is called once, with the records of all of them merged (or the first failure).
+     */
     public void listMultipleAccountsRecords(
         LoginService.AccessToken accessToken,
         List<String> accountIds,
         final ListMultiplePlayersRecordsCallback callback)
+    {
+        List<List<String>> chunks = chunkAccounts(accessToken, accountIds);
+
+        if (chunks.size() == 1)
+        {
+            requestAccountsRecords(accessToken, chunks.get(0), callback);
+            return;
+        }
+
+        new RecordsFanOut(accessToken, chunks, callback).start(Math.max(1, recordsConcurrency));
+    }
+
+    /**
+     * Same as listMultipleAccountsRecords, but through the records cache (see setRecordsCacheTTL):
+     * the accounts cached are answered at once, even if stale (those are refreshed in the background),
+     * and only the rest are requested. If all of them are cached, the callback gets no request.
+     */
+    public void listCachedAccountsRecords(
+        LoginService.AccessToken accessToken,
+        List<String> accountIds,
+        ListMultiplePlayersRecordsCallback callback)
+    {
+        if (recordsCache.getTTL() > 0)
+        {
+            recordsCache.list(accessToken, accountIds, callback);
+        }
+        else
+        {
+            listMultipleAccountsRecords(accessToken, accountIds, callback);
+        }
+    }
+
+    /**
+     * @param ttl how long (in milliseconds) the player records are considered fresh, or 0 to request them every time
+     * @param staleTTL how long after that the records are still served, while being refreshed
+     */
+    public void setRecordsCacheTTL(long ttl, long staleTTL)
+    {
+        recordsCache.setTTL(ttl, staleTTL);
+    }
+
+    /**
+     * Forgets the player records cached, so the next lookups would be requested from the server
+     */
+    public void invalidateRecordsCache()
+    {
+        recordsCache.clear();
+    }
+
+    public void invalidateRecordsCache(String accountId)
+    {
+        recordsCache.remove(accountId);
+    }
+
+    /**
+     * @param urlLength a limit of the URL length of a single listMultipleAccountsRecords request
+     * @param concurrency how many of those requests may run at once
+     */
+    public void setRecordsRequestLimits(int urlLength, int concurrency)
+    {
+        this.recordsUrlLength = urlLength;
+        this.recordsConcurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Splits the accounts (without the duplicates) into the lists that fit into the URL length limit
+     * once encoded, at least one account per list
+     */
+    private List<List<String>> chunkAccounts(LoginService.AccessToken accessToken, List<String> accountIds)
+    {
+        // the URL without the accounts: location + "/players?accounts=[]&access_token=..."
+        int base = getLocation().length() + "/players?accounts=%5B%5D".length() +
+            (accessToken != null ? "&access_token=".length() + encodedLength(accessToken.get()) : 0);
+
+        int limit = recordsUrlLength;
+
+        List<List<String>> chunks = new ArrayList<List<String>>();
+        List<String> chunk = new ArrayList<String>();
+        int length = base;
+
+        for (String id : new LinkedHashSet<String>(accountIds))
+        {
+            // "id" and a comma: %22 + id + %22 + %2C
+            int idLength = encodedLength(id) + 9;
+
+            if (!chunk.isEmpty() && length + idLength > limit)
+            {
+                chunks.add(chunk);
+                chunk = new ArrayList<String>();
+                length = base;
+            }
+
+            chunk.add(id);
+            length += idLength;
+        }
+
+        chunks.add(chunk);
+        return chunks;
+    }
+
+    private static int encodedLength(String value)
+    {
+        try
+        {
+            return URLEncoder.encode(value, "UTF-8").length();
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            return value.length() * 3;
+        }
+    }
+
+    /**
+     * A listMultipleAccountsRecords split into several requests, no more than a given number at once
+     */
+    private class RecordsFanOut
+    {
+        private final LoginService.AccessToken accessToken;
+        private final List<List<String>> chunks;
+        private final ListMultiplePlayersRecordsCallback callback;
+        private final HashMap<String, List<PlayerRecord>> records;
+
+        private int next;
+        private int pending;
+        private boolean done;
+
+        private RecordsFanOut(LoginService.AccessToken accessToken, List<List<String>> chunks,
+                              ListMultiplePlayersRecordsCallback callback)
+        {
+            this.accessToken = accessToken;
+            this.chunks = chunks;
+            this.callback = callback;
+            this.records = new HashMap<String, List<PlayerRecord>>();
+        }
+
+        private void start(int concurrency)
+        {
+            for (int i = 0; i < concurrency; i++)
+            {
+                if (!requestNext())
+                    break;
+            }
+        }
+
+        private boolean requestNext()
+        {
+            List<String> chunk;
+
+            synchronized (this)
+            {
+                if (done || next >= chunks.size())
+                    return false;
+
+                chunk = chunks.get(next++);
+                pending++;
+            }
+
+            requestAccountsRecords(accessToken, chunk, new ListMultiplePlayersRecordsCallback()
+            {
+                @Override
+                public void result(GameService service, Request request, Request.Result result,
+                                   Map<String, List<PlayerRecord>> records)
+                {
+                    synchronized (RecordsFanOut.this)
+                    {
+                        pending--;
+
+                        if (done)
+                            return;
+
+                        if (result != Request.Result.success)
+                        {
+                            // the rest would not make it whole anyway
+                            done = true;
+                        }
+                        else
+                        {
+                            RecordsFanOut.this.records.putAll(records);
+                        }
+                    }
+
+                    if (result != Request.Result.success)
+                    {
+                        callback.result(service, request, result, null);
+                        return;
+                    }
+
+                    if (requestNext())
+                        return;
+
+                    synchronized (RecordsFanOut.this)
+                    {
+                        if (done || pending > 0)
+                            return;
+
+                        done = true;
+                    }
+
+                    callback.result(service, request, result, RecordsFanOut.this.records);
+                }
+            });
+
+            return true;
+        }
+    }
+
+    private void requestAccountsRecords(
+        LoginService.AccessToken accessToken,
+        List<String> accountIds,
+        final ListMultiplePlayersRecordsCallback callback)
     {
         JsonRequest jsonRequest = new JsonRequest(getLocation() + "/players",
             new Request.RequestCallback()
@@ -1375,6 +2074,7 @@ public class GameService extends Service
         final CreateEmptyPartyCallback callback)
     {
         ApplicationInfo applicationInfo = getRuntime().getApplicationInfo();
+        region = preferredRegion(region);
 
         JsonRequest jsonRequest = new JsonRequest(
             getLocation() + "/party/create/" + applicationInfo.applicationName + "/" +
@@ -1512,6 +2212,7 @@ public class GameService extends Service
             LoginService.AccessToken accessToken, PartySession.Listener listener)
     {
         ApplicationInfo applicationInfo = getRuntime().getApplicationInfo();
+        region = preferredRegion(region);
 
         HashMap<String, String> args = new HashMap<String, String>();
 
@@ -1536,6 +2237,8 @@ public class GameService extends Service
         args.put("access_token", accessToken.get());
 
         PartySession partySession = new PartySession(listener);
+        partySession.setOptions(partySessionOptions);
+        partySession.setConnectionManager(getRuntime().getConnectionManager());
         partySession.open(
             getLocation() + "/party/create/" +
             applicationInfo.applicationName + "/" + applicationInfo.applicationVersion +
@@ -1569,6 +2272,8 @@ public class GameService extends Service
         args.put("access_token", accessToken.get());
 
         PartySession partySession = new PartySession(listener);
+        partySession.setOptions(partySessionOptions);
+        partySession.setConnectionManager(getRuntime().getConnectionManager());
         partySession.open(
             getLocation() + "/party/" + partyId + "/session",
             args);
@@ -1597,7 +2302,7 @@ public class GameService extends Service
 
         fields.put("account", account);
         fields.put("reason", reason);
-        fields.put("expires", Utils.DATE_FORMAT.format(expires));
+        fields.put("expires", Timestamps.format(expires));
 
         jsonRequest.setAPIVersion(getAPIVersion());
         jsonRequest.setToken(accessToken);
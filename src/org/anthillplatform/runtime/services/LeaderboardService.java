@@ -1,6 +1,7 @@
 package org.anthillplatform.runtime.services;
 
 import org.anthillplatform.runtime.requests.JsonRequest;
+import org.anthillplatform.runtime.requests.PageIterator;
 import org.anthillplatform.runtime.requests.Request;
 import org.anthillplatform.runtime.requests.StringRequest;
 import org.anthillplatform.runtime.AnthillRuntime;
@@ -71,6 +72,35 @@ public class LeaderboardService extends Service
         getLeaderboard(accessToken, name, order, 100, 0, profileCallback);
     }
 
+    /**
+     * @return an iterator over the leaderboard entries, requesting them page by page (see PageIterator)
+     */
+    public PageIterator<LeaderboardResult.Entry> iterateLeaderboard(
+        final LoginService.AccessToken accessToken,
+        final String name,
+        final String order,
+        int pageSize,
+        int lookAhead)
+    {
+        return new PageIterator<LeaderboardResult.Entry>(new PageIterator.PageFetcher<LeaderboardResult.Entry>()
+        {
+            @Override
+            public void fetch(int offset, int limit,
+                              final PageIterator.PageCallback<LeaderboardResult.Entry> callback)
+            {
+                getLeaderboard(accessToken, name, order, limit, offset, new GetLeaderboardCallback()
+                {
+                    @Override
+                    public void complete(LeaderboardService service, Request request, Request.Result result,
+                                         LeaderboardResult data)
+                    {
+                        callback.complete(result, data != null ? data.getEntries() : null);
+                    }
+                });
+            }
+        }, pageSize, lookAhead);
+    }
+
     public void getLeaderboard(
         LoginService.AccessToken accessToken,
         String name,
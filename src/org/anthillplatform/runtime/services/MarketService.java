@@ -2,9 +2,10 @@ package org.anthillplatform.runtime.services;
 
 import org.anthillplatform.runtime.AnthillRuntime;
 import org.anthillplatform.runtime.requests.JsonRequest;
+import org.anthillplatform.runtime.requests.PageIterator;
 import org.anthillplatform.runtime.requests.Request;
 import org.anthillplatform.runtime.util.ApplicationInfo;
-import org.anthillplatform.runtime.util.Utils;
+import org.anthillplatform.runtime.util.Timestamps;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -12,7 +13,6 @@ import org.json.JSONObject;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -311,11 +311,6 @@ public class MarketService extends Service
         jsonRequest.post(fields);
     }
 
-    private static SimpleDateFormat getTimeFormat()
-    {
-        return Utils.DATE_FORMAT;
-    }
-
     public void postOrder(
         String marketName,
         String giveItem,
@@ -366,7 +361,7 @@ public class MarketService extends Service
         {
             fields.put("payload", orderPayload.toString());
         }
-        fields.put("deadline", getTimeFormat().format(deadline));
+        fields.put("deadline", Timestamps.format(deadline));
 
         jsonRequest.setAPIVersion(getAPIVersion());
         jsonRequest.setToken(accessToken);
@@ -478,6 +473,45 @@ public class MarketService extends Service
             takeAmount, takeAmountComparison, takePayload, sortOrder, accessToken, callback, 0, 1000);
     }
 
+    /**
+     * @return an iterator over the orders matching the filters (see listOrders),
+     *         requesting them page by page (see PageIterator)
+     */
+    public PageIterator<MarketOrderEntry> iterateOrders(
+        final String marketName,
+        final String ownerId,
+        final String giveItem,
+        final int giveAmount,
+        final ListOrderComparison giveAmountComparison,
+        final JSONObject givePayload,
+        final String takeItem,
+        final int takeAmount,
+        final ListOrderComparison takeAmountComparison,
+        final JSONObject takePayload,
+        final MarkerEntriesOrder sortOrder,
+        final LoginService.AccessToken accessToken,
+        int pageSize,
+        int lookAhead)
+    {
+        return new PageIterator<MarketOrderEntry>(new PageIterator.PageFetcher<MarketOrderEntry>()
+        {
+            @Override
+            public void fetch(int offset, int limit, final PageIterator.PageCallback<MarketOrderEntry> callback)
+            {
+                listOrders(marketName, ownerId, giveItem, giveAmount, giveAmountComparison, givePayload, takeItem,
+                    takeAmount, takeAmountComparison, takePayload, sortOrder, accessToken,
+                    new ListMarketOrdersCallback()
+                {
+                    @Override
+                    public void complete(Request request, Request.Result result, List<MarketOrderEntry> entries)
+                    {
+                        callback.complete(result, entries);
+                    }
+                }, offset, limit);
+            }
+        }, pageSize, lookAhead);
+    }
+
     public void listOrders(
         String marketName,
         String ownerId,
@@ -534,7 +568,7 @@ public class MarketService extends Service
 
                                 try
                                 {
-                                    e.time = getTimeFormat().parse(entry.getString("time"));
+                                    e.time = Timestamps.parse(entry.getString("time"));
                                 }
                                 catch (ParseException | JSONException ex)
                                 {
@@ -543,7 +577,7 @@ public class MarketService extends Service
 
                                 try
                                 {
-                                    e.deadline = getTimeFormat().parse(entry.getString("deadline"));
+                                    e.deadline = Timestamps.parse(entry.getString("deadline"));
                                 }
                                 catch (ParseException | JSONException ex)
                                 {
@@ -672,7 +706,7 @@ public class MarketService extends Service
 
                                 try
                                 {
-                                    e.time = getTimeFormat().parse(entry.getString("time"));
+                                    e.time = Timestamps.parse(entry.getString("time"));
                                 }
                                 catch (ParseException | JSONException ex)
                                 {
@@ -681,7 +715,7 @@ public class MarketService extends Service
 
                                 try
                                 {
-                                    e.deadline = getTimeFormat().parse(entry.getString("deadline"));
+                                    e.deadline = Timestamps.parse(entry.getString("deadline"));
                                 }
                                 catch (ParseException | JSONException ex)
                                 {
@@ -735,7 +769,7 @@ public class MarketService extends Service
 
                     try
                     {
-                        e.time = getTimeFormat().parse(result.getString("time"));
+                        e.time = Timestamps.parse(result.getString("time"));
                     }
                     catch (ParseException | JSONException ex)
                     {
@@ -744,7 +778,7 @@ public class MarketService extends Service
 
                     try
                     {
-                        e.deadline = getTimeFormat().parse(result.getString("deadline"));
+                        e.deadline = Timestamps.parse(result.getString("deadline"));
                     }
                     catch (ParseException | JSONException ex)
                     {
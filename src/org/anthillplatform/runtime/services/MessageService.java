@@ -2,22 +2,31 @@ package org.anthillplatform.runtime.services;
 
 import org.anthillplatform.runtime.AnthillRuntime;
 import org.anthillplatform.runtime.requests.JsonRequest;
+import org.anthillplatform.runtime.requests.PageIterator;
 import org.anthillplatform.runtime.requests.Request;
+import org.anthillplatform.runtime.util.Backoff;
+import org.anthillplatform.runtime.util.DedupWindow;
 import org.anthillplatform.runtime.util.JsonRPC;
+import org.anthillplatform.runtime.util.RpcMetrics;
+import org.anthillplatform.runtime.util.Scheduler;
+import org.anthillplatform.runtime.util.Timestamps;
 import org.anthillplatform.runtime.util.WebSocketJsonRPC;
 import org.java_websocket.handshake.ServerHandshake;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import javax.net.ssl.SSLContext;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
 
-import static org.anthillplatform.runtime.util.Utils.DATE_FORMAT;
 
 /**
  * A messaging service for Anthill platform
@@ -29,6 +38,15 @@ public class MessageService extends Service
     public static final String ID = "message";
     public static final String API_VERSION = "0.2";
 
+    // how many messages to fetch per request when syncing the message store, and how many requests at most
+    // per sync (see syncMessages)
+    public static final int SYNC_PAGE_SIZE = 100;
+    public static final int SYNC_MAX_PAGES = 50;
+
+    private WebSocketJsonRPC.Options sessionOptions = new WebSocketJsonRPC.Options();
+    private MessageStore messageStore;
+    private SyncCursor syncCursor;
+
     public interface GetMessagesCallback
     {
         void complete(MessageDestination replyTo, Request.Result result);
@@ -45,6 +63,44 @@ public class MessageService extends Service
         void onLastReadMessage(String recipientClass, String recipientKey, Date time, String messageId);
     }
 
+    /**
+     * See getMessagesSince
+     */
+    private interface MessagesSinceCallback
+    {
+        /**
+         * @param messages the messages found, the most recent first
+         * @param next the offset to go on from if the pages ran out before the time was reached, or -1
+         */
+        void complete(List<Message> messages, int next, Request.Result result);
+    }
+
+    public interface SyncMessagesCallback
+    {
+        /**
+         * @param received how many new messages have been stored
+         * @param more true if the sync was cut short by SYNC_MAX_PAGES, and some older messages are still
+         *             missing; call syncMessages again to go on from where it stopped
+         */
+        void complete(int received, boolean more, Request.Result result);
+    }
+
+    /**
+     * Where a sync cut short by SYNC_MAX_PAGES goes on from: the offset it stopped at, and the time
+     * it was supposed to reach
+     */
+    private static class SyncCursor
+    {
+        private final Date since;
+        private final int offset;
+
+        private SyncCursor(Date since, int offset)
+        {
+            this.since = since;
+            this.offset = offset;
+        }
+    }
+
     /**
      * Please note that you should not create an instance of the service yourself,
      * and use AnthillRuntime.Get(MessageService.ID, MessageService.class) to get existing one instead
@@ -86,7 +142,7 @@ public class MessageService extends Service
 
             try
             {
-                tmp = DATE_FORMAT.parse(data.optString("time"));
+                tmp = Timestamps.parse(data.optString("time"));
             }
             catch (ParseException e)
             {
@@ -112,6 +168,28 @@ public class MessageService extends Service
 
             this.time = tmp;
         }
+
+        public Message(String uuid, String recipientClass, String recipient, String sender, String type,
+                       JSONObject payload, Date time, int gamespace, Set<String> flags)
+        {
+            this.uuid = uuid;
+            this.recipientClass = recipientClass;
+            this.recipient = recipient;
+            this.sender = sender;
+            this.type = type;
+            this.payload = payload;
+            this.time = time;
+            this.gamespace = gamespace;
+            this.flags = flags;
+        }
+
+        /**
+         * @return a copy of the message with a different payload
+         */
+        public Message withPayload(JSONObject payload)
+        {
+            return new Message(uuid, recipientClass, recipient, sender, type, payload, time, gamespace, flags);
+        }
     }
 
     public static class LastReadMessage
@@ -131,7 +209,7 @@ public class MessageService extends Service
 
             try
             {
-                tmp = DATE_FORMAT.parse(data.optString("time"));
+                tmp = Timestamps.parse(data.optString("time"));
             }
             catch (ParseException e)
             {
@@ -161,16 +239,101 @@ public class MessageService extends Service
             void onMessageUpdated(String messageId, String sender, int gamespace, JSONObject payload);
         }
 
+        /**
+         * Gets notified about automatic reconnects, see setAutoReconnect.
+         * While the session is reconnecting, Listener.onClose is not called.
+         */
+        public interface ReconnectListener
+        {
+            void onReconnecting(int attempt, long delay);
+            void onReconnected();
+        }
+
+        /**
+         * Receives the messages of a given type (or recipient class), see addMessageHandler
+         */
+        public interface MessageHandler
+        {
+            void onMessage(Message message);
+        }
+
+        // how long to wait for more handler changes before reopening the session with the new subscription
+        public static final long RESUBSCRIBE_DELAY = 250;
+
+        // how long a connection replaced by a resubscription is kept to receive the responses to its requests
+        public static final long RETIRE_TIMEOUT = 5000;
+        private static final long RETIRE_CHECK_INTERVAL = 100;
 
-        private MessageSessionRPC jsonRPC;
+        // how many recent messages to remember the recipients of, see setDispatchExecutor
+        private static final int DISPATCH_RECIPIENTS_CAPACITY = 1024;
+
+        public static final long DEFAULT_READ_RECEIPTS_DELAY = 1000;
+        public static final int DEFAULT_READ_RECEIPTS_THRESHOLD = 32;
+
+        private static class ReadReceipt
+        {
+            private final String messageId;
+            private final Date time;
+
+            private ReadReceipt(String messageId, Date time)
+            {
+                this.messageId = messageId;
+                this.time = time;
+            }
+        }
+
+        private volatile MessageSessionRPC jsonRPC;
+        private final RpcMetrics metrics = new RpcMetrics();
         private Listener listener;
         private final Set<String> messageTypes;
 
+        private MessageService messageService;
+        private LoginService.AccessToken accessToken;
+        private WebSocketJsonRPC.Options options;
+
+        private boolean autoReconnect;
+        private boolean recoverMissedMessages;
+        private Backoff backoff;
+        private ReconnectListener reconnectListener;
+        private Executor dispatchExecutor;
+        private ScheduledFuture<?> pendingReconnect;
+        private volatile boolean closeRequested;
+        private boolean reconnecting;
+
+        // the time of the most recent delivered message, and ids of messages delivered within the same second
+        private Date lastMessageTime;
+        private final Set<String> lastMessageIds;
+        // until a message is delivered, the time of the most recent message in the history when the session
+        // was first opened (null if there was none) is where the recovery starts from, see recoverMissedMessages
+        private Date historyTime;
+        private boolean historyTimeKnown;
+        private Date firstOpenedTime;
+        private DedupWindow dedupWindow;
+
+        private final ConcurrentHashMap<String, CopyOnWriteArrayList<MessageHandler>> typeHandlers;
+        private final ConcurrentHashMap<String, CopyOnWriteArrayList<MessageHandler>> classHandlers;
+        // message types the current connection is subscribed to, null for all of them
+        private Set<String> subscribedTypes;
+        private ScheduledFuture<?> pendingResubscribe;
+        private boolean resubscribing;
+        // a connection with the new subscription, opening while the current one is still in use
+        private MessageSessionRPC replacement;
+
+        // the latest message marked as read per recipient, not sent yet
+        private final LinkedHashMap<String, ReadReceipt> readReceipts;
+        private ScheduledFuture<?> pendingReadReceipts;
+        private long readReceiptsDelay;
+        private int readReceiptsThreshold;
+
         private class MessageSessionRPC extends WebSocketJsonRPC
         {
-            public MessageSessionRPC(URI serverURI)
+            private final Set<String> subscription;
+
+            public MessageSessionRPC(URI serverURI, WebSocketJsonRPC.Options options, Set<String> subscription)
             {
-                super(serverURI);
+                super(serverURI, options);
+
+                this.subscription = subscription;
             }
 
             @Override
@@ -182,18 +345,31 @@ public class MessageService extends Service
             @Override
             public void onOpen(ServerHandshake serverHandshake)
             {
-                listener.onOpen();
+                replaced(this);
+
+                if (this != jsonRPC)
+                    return;
+
+                opened();
             }
 
             @Override
             public void onClose(int i, String s, boolean b)
             {
-                listener.onClose(i, s, b);
+                super.onClose(i, s, b);
+
+                if (replacementFailed(this) || this != jsonRPC)
+                    return;
+
+                closed(i, s, b);
             }
 
             @Override
             public void onError(Exception e)
             {
+                if (this != jsonRPC)
+                    return;
+
                 listener.onError(e);
             }
         }
@@ -202,11 +378,387 @@ public class MessageService extends Service
         {
             this.listener = listener;
             this.messageTypes = messageTypes;
+            this.recoverMissedMessages = true;
+            this.backoff = new Backoff();
+            this.lastMessageIds = new HashSet<String>();
+            this.options = new WebSocketJsonRPC.Options();
+            this.typeHandlers = new ConcurrentHashMap<String, CopyOnWriteArrayList<MessageHandler>>();
+            this.classHandlers = new ConcurrentHashMap<String, CopyOnWriteArrayList<MessageHandler>>();
+            this.readReceipts = new LinkedHashMap<String, ReadReceipt>();
+            this.readReceiptsDelay = DEFAULT_READ_RECEIPTS_DELAY;
+            this.readReceiptsThreshold = DEFAULT_READ_RECEIPTS_THRESHOLD;
+        }
+
+        /**
+         * Routes the messages of a given type to the handler instead of Listener.onMessage
+         * (which only receives the messages no handler has been registered for).
+         *
+         * If the session was created with a set of message types, the type is added to the subscription:
+         * the session reopens itself shortly (see RESUBSCRIBE_DELAY, so several changes in a row only cause
+         * one reopen), and the messages sent in between are recovered like after a reconnect.
+         */
+        public void addMessageHandler(String messageType, MessageHandler handler)
+        {
+            addHandler(typeHandlers, messageType, handler);
+        }
+
+        public void removeMessageHandler(String messageType, MessageHandler handler)
+        {
+            removeHandler(typeHandlers, messageType, handler);
+        }
+
+        /**
+         * Routes the messages sent to a given recipient class (for example, "social-group") to the handler,
+         * whatever their type. As long as there are such handlers, the session is subscribed to all message types.
+         */
+        public void addRecipientClassHandler(String recipientClass, MessageHandler handler)
+        {
+            addHandler(classHandlers, recipientClass, handler);
+        }
+
+        public void removeRecipientClassHandler(String recipientClass, MessageHandler handler)
+        {
+            removeHandler(classHandlers, recipientClass, handler);
+        }
+
+        private void addHandler(ConcurrentHashMap<String, CopyOnWriteArrayList<MessageHandler>> handlers,
+                                String key, MessageHandler handler)
+        {
+            synchronized (this)
+            {
+                CopyOnWriteArrayList<MessageHandler> list = handlers.get(key);
+
+                if (list == null)
+                {
+                    list = new CopyOnWriteArrayList<MessageHandler>();
+                    handlers.put(key, list);
+                }
+
+                list.add(handler);
+            }
+
+            subscriptionChanged();
+        }
+
+        private void removeHandler(ConcurrentHashMap<String, CopyOnWriteArrayList<MessageHandler>> handlers,
+                                   String key, MessageHandler handler)
+        {
+            synchronized (this)
+            {
+                CopyOnWriteArrayList<MessageHandler> list = handlers.get(key);
+
+                if (list == null || !list.remove(handler))
+                    return;
+
+                if (list.isEmpty())
+                {
+                    handlers.remove(key);
+                }
+            }
+
+            subscriptionChanged();
+        }
+
+        /**
+         * @return message types the session should be subscribed to, or null for all of them
+         */
+        private synchronized Set<String> getSubscription()
+        {
+            if (messageTypes == null || !classHandlers.isEmpty())
+                return null;
+
+            Set<String> subscription = new HashSet<String>(messageTypes);
+            subscription.addAll(typeHandlers.keySet());
+            return subscription;
+        }
+
+        /**
+         * @return message types the session is currently subscribed to, or null if to all of them
+         */
+        public synchronized Set<String> getSubscribedMessageTypes()
+        {
+            return subscribedTypes != null ? Collections.unmodifiableSet(subscribedTypes) : null;
+        }
+
+        private synchronized void subscriptionChanged()
+        {
+            if (jsonRPC == null || closeRequested || pendingResubscribe != null)
+                return;
+
+            pendingResubscribe = Scheduler.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    resubscribe();
+                }
+            }, RESUBSCRIBE_DELAY);
+        }
+
+        /**
+         * Opens a connection with the new subscription next to the current one, which keeps serving the session
+         * until the new one is open (see replaced)
+         */
+        private void resubscribe()
+        {
+            synchronized (this)
+            {
+                pendingResubscribe = null;
+
+                // a session that is not open yet checks the subscription again once it is (see opened)
+                if (closeRequested || reconnecting || replacement != null || !isOpen())
+                    return;
+
+                Set<String> subscription = getSubscription();
+
+                if (subscription == null ? subscribedTypes == null : subscription.equals(subscribedTypes))
+                    return;
+            }
+
+            connect(true);
+        }
+
+        /**
+         * Switches the session over to the replacement once it is open. The old connection is closed once
+         * it has received the responses to its requests (or after RETIRE_TIMEOUT), see retire.
+         */
+        private void replaced(MessageSessionRPC rpc)
+        {
+            MessageSessionRPC old;
+
+            synchronized (this)
+            {
+                if (rpc != replacement)
+                    return;
+
+                old = jsonRPC;
+                jsonRPC = rpc;
+                replacement = null;
+                subscribedTypes = rpc.subscription;
+            }
+
+            if (old != null)
+            {
+                retire(old);
+            }
         }
 
+        /**
+         * @return true if the connection was a replacement that has failed to open, the current one is kept then
+         */
+        private boolean replacementFailed(MessageSessionRPC rpc)
+        {
+            synchronized (this)
+            {
+                if (rpc != replacement)
+                    return false;
+
+                replacement = null;
+                resubscribing = false;
+            }
+
+            return true;
+        }
+
+        private void retire(final MessageSessionRPC old)
+        {
+            final long deadline = System.currentTimeMillis() + RETIRE_TIMEOUT;
+
+            Scheduler.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (old.isOpen() && old.getPendingRequestsCount() > 0 &&
+                        System.currentTimeMillis() < deadline)
+                    {
+                        Scheduler.schedule(this, RETIRE_CHECK_INTERVAL);
+                        return;
+                    }
+
+                    // whatever is still pending fails, see WebSocketJsonRPC.onClose
+                    old.close();
+                }
+            }, 0);
+        }
+
+        /**
+         * Connection options (encoding, send queue size etc), take effect on the next (re)connect
+         */
+        public void setOptions(WebSocketJsonRPC.Options options)
+        {
+            this.options = options;
+        }
+
+        /**
+         * If enabled, once the connection is lost the session would reopen itself after a randomized exponential
+         * delay (see Backoff), subscribing to the same message types. Disabled by default.
+         */
+        public void setAutoReconnect(boolean autoReconnect)
+        {
+            this.autoReconnect = autoReconnect;
+        }
+
+        public void setBackoff(Backoff backoff)
+        {
+            this.backoff = backoff;
+        }
+
+        public void setReconnectListener(ReconnectListener reconnectListener)
+        {
+            this.reconnectListener = reconnectListener;
+        }
+
+        /**
+         * If enabled (default), after an automatic reconnect messages sent during the gap are requested
+         * with getMessages and delivered to Listener.onMessage.
+         */
+        public void setRecoverMissedMessages(boolean recoverMissedMessages)
+        {
+            this.recoverMissedMessages = recoverMissedMessages;
+        }
+
+        /**
+         * Keeps ids of the last capacity messages delivered, so a message that arrives again (after a reconnect,
+         * or already seen in the history, see markDelivered) is not passed to Listener.onMessage twice.
+         * The memory taken is fixed (see DedupWindow). Disabled by default.
+         *
+         * @param capacity how many ids to keep, or 0 to disable
+         */
+        public synchronized void setDedupWindow(int capacity)
+        {
+            this.dedupWindow = capacity > 0 ? new DedupWindow(capacity) : null;
+        }
+
+        /**
+         * Marks a message as delivered (for example, if it was received with getMessages),
+         * so the session would not deliver it again. Only works with the dedup window enabled.
+         *
+         * @return false if the message has been delivered already
+         */
+        public synchronized boolean markDelivered(String messageId)
+        {
+            return dedupWindow == null || dedupWindow.add(messageId);
+        }
+
+        /**
+         * If set, incoming messages are processed (and the listener is called) on the executor instead of
+         * the socket's reading thread. Messages for the same recipient class/key are delivered in order,
+         * messages for different recipients may be delivered in parallel. Deletions and updates of a message
+         * are delivered after the message itself.
+         */
+        public void setDispatchExecutor(Executor dispatchExecutor)
+        {
+            this.dispatchExecutor = dispatchExecutor;
+
+            if (jsonRPC != null)
+            {
+                applyDispatcher(jsonRPC);
+            }
+        }
+
+        private void applyDispatcher(MessageSessionRPC rpc)
+        {
+            if (dispatchExecutor == null)
+            {
+                rpc.setDispatcher(null, null);
+                return;
+            }
+
+            rpc.setDispatcher(dispatchExecutor, new JsonRPC.DispatchKey()
+            {
+                // recipients of the messages received lately, so a deletion or an update of a message
+                // could not overtake the message itself
+                private final LinkedHashMap<String, String> recipients = new LinkedHashMap<String, String>()
+                {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+                    {
+                        return size() > DISPATCH_RECIPIENTS_CAPACITY;
+                    }
+                };
+
+                @Override
+                public Object keyOf(String method, Object params)
+                {
+                    if (!(params instanceof JSONObject))
+                        return null;
+
+                    JSONObject args = ((JSONObject) params);
+                    String messageId = args.optString("message_id");
+
+                    if ("message".equals(method))
+                    {
+                        String recipient = args.optString("recipient_class") + "/" + args.optString("recipient_key");
+
+                        synchronized (recipients)
+                        {
+                            recipients.put(messageId, recipient);
+                        }
+
+                        return recipient;
+                    }
+
+                    if ("message_deleted".equals(method) || "message_updated".equals(method))
+                    {
+                        String recipient;
+
+                        synchronized (recipients)
+                        {
+                            recipient = recipients.get(messageId);
+                        }
+
+                        // a message received long ago is only ordered with its own deletion and updates
+                        return recipient != null ? recipient : messageId;
+                    }
+
+                    return null;
+                }
+            });
+        }
+
+        /**
+         * Closes the session. The pending read receipts are sent first, and the connection waits
+         * for them to be written before closing (see WebSocketJsonRPC.Options.closeFlushTimeout).
+         */
         public void close()
         {
-            jsonRPC.close();
+            flushReadReceipts();
+
+            closeRequested = true;
+
+            synchronized (this)
+            {
+                if (pendingReconnect != null)
+                {
+                    pendingReconnect.cancel(false);
+                    pendingReconnect = null;
+                }
+
+                if (pendingResubscribe != null)
+                {
+                    pendingResubscribe.cancel(false);
+                    pendingResubscribe = null;
+                }
+            }
+
+            MessageSessionRPC opening;
+
+            synchronized (this)
+            {
+                opening = replacement;
+                replacement = null;
+            }
+
+            if (opening != null)
+            {
+                opening.close();
+            }
+
+            if (jsonRPC != null)
+            {
+                jsonRPC.close();
+            }
         }
 
         public MessageSessionRPC getRPC()
@@ -220,6 +772,31 @@ public class MessageService extends Service
             return jsonRPC != null && jsonRPC.isOpen();
         }
 
+        /**
+         * @return false when too many frames are waiting to be sent, and the caller should hold off sending more
+         */
+        public boolean isWritable()
+        {
+            return isOpen() && jsonRPC.isWritable();
+        }
+
+        /**
+         * @return a smoothed round trip time to the server (in milliseconds), measured with the heartbeat
+         *         pings (see WebSocketJsonRPC.Options.heartbeatInterval), or -1 if not known yet
+         */
+        public double getRtt()
+        {
+            return jsonRPC != null ? jsonRPC.getRtt() : -1;
+        }
+
+        /**
+         * @return metrics of the session, kept across reconnects
+         */
+        public RpcMetrics getMetrics()
+        {
+            return metrics;
+        }
+
         public boolean sendMessage(String recipientClass, String recipientKey, String messageType,
                                    JSONObject message)
         {
@@ -246,9 +823,128 @@ public class MessageService extends Service
 
             args.put("message_id", messageId);
 
-            jsonRPC.request("mark_as_read", callback, args);
+            return jsonRPC.request("mark_as_read", callback, args);
+        }
 
-            return true;
+        /**
+         * Marks a message as read, in a batch: the receipts are sent after a short delay (see setReadReceipts),
+         * and only the latest message of each recipient is sent, since marking it as read covers the earlier ones.
+         */
+        public void markMessageAsRead(Message message)
+        {
+            markMessageAsRead(message.recipientClass, message.recipient, message.uuid, message.time);
+        }
+
+        /**
+         * @param time the time of the message, if known, so an earlier message marked later
+         *             would not replace the latest one
+         */
+        public void markMessageAsRead(String recipientClass, String recipientKey, String messageId, Date time)
+        {
+            boolean flush = false;
+
+            synchronized (this)
+            {
+                String key = recipientClass + "/" + recipientKey;
+                ReadReceipt existing = readReceipts.get(key);
+
+                if (existing != null && existing.time != null && time != null && time.before(existing.time))
+                    return;
+
+                readReceipts.put(key, new ReadReceipt(messageId, time));
+
+                if (readReceipts.size() >= readReceiptsThreshold)
+                {
+                    flush = true;
+                }
+                else
+                {
+                    scheduleReadReceipts();
+                }
+            }
+
+            if (flush)
+            {
+                flushReadReceipts();
+            }
+        }
+
+        private synchronized void scheduleReadReceipts()
+        {
+            if (pendingReadReceipts != null)
+                return;
+
+            pendingReadReceipts = Scheduler.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    synchronized (MessageSession.this)
+                    {
+                        pendingReadReceipts = null;
+                    }
+
+                    flushReadReceipts();
+                }
+            }, readReceiptsDelay);
+        }
+
+        /**
+         * @param delay how long (in milliseconds) the read receipts are collected before being sent
+         * @param threshold how many recipients may have pending receipts before they are sent right away
+         */
+        public synchronized void setReadReceipts(long delay, int threshold)
+        {
+            this.readReceiptsDelay = delay;
+            this.readReceiptsThreshold = Math.max(1, threshold);
+        }
+
+        /**
+         * Sends the pending read receipts now. If the session is not open, they are sent once it opens.
+         * The receipts that could not be sent (the send queue is full) are kept and retried after a delay.
+         */
+        public void flushReadReceipts()
+        {
+            LinkedHashMap<String, ReadReceipt> receipts;
+
+            synchronized (this)
+            {
+                if (pendingReadReceipts != null)
+                {
+                    pendingReadReceipts.cancel(false);
+                    pendingReadReceipts = null;
+                }
+
+                if (readReceipts.isEmpty() || !isOpen())
+                    return;
+
+                receipts = new LinkedHashMap<String, ReadReceipt>(readReceipts);
+                readReceipts.clear();
+            }
+
+            boolean failed = false;
+
+            for (Map.Entry<String, ReadReceipt> entry : receipts.entrySet())
+            {
+                if (markMessageAsRead(entry.getValue().messageId, null))
+                    continue;
+
+                failed = true;
+
+                synchronized (this)
+                {
+                    // unless a later one has been marked meanwhile
+                    if (!readReceipts.containsKey(entry.getKey()))
+                    {
+                        readReceipts.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+
+            if (failed && !closeRequested)
+            {
+                scheduleReadReceipts();
+            }
         }
 
         public boolean sendMessage(String recipientClass, String recipientKey, String messageType,
@@ -264,59 +960,381 @@ public class MessageService extends Service
             args.put("message_type", messageType);
             args.put("message", message);
 
-            if (flags != null)
+            if (flags != null)
+            {
+                JSONArray _flags = new JSONArray();
+                for (String flag : flags)
+                {
+                    _flags.put(flag);
+                }
+                args.put("flags", _flags);
+            }
+            else
+            {
+                args.put("flags", EmptyFlags);
+            }
+
+            return jsonRPC.request("send_message", callback, args);
+        }
+
+        public boolean deleteMessage(String messageId, JsonRPC.ResponseHandler callback)
+        {
+            if (!isOpen())
+                return false;
+
+            JSONObject args = new JSONObject();
+            args.put("message_id", messageId);
+
+            return jsonRPC.request("delete_message", callback, args);
+        }
+
+        public boolean updateMessage(String messageId, JSONObject payload, JsonRPC.ResponseHandler callback)
+        {
+            if (!isOpen())
+                return false;
+
+            JSONObject args = new JSONObject();
+            args.put("message_id", messageId);
+            args.put("payload", payload);
+
+            return jsonRPC.request("update_message", callback, args);
+        }
+
+        public void open(MessageService messageService, LoginService.AccessToken accessToken)
+        {
+            this.messageService = messageService;
+            this.accessToken = accessToken;
+            this.closeRequested = false;
+
+            connect();
+        }
+
+        private void opened()
+        {
+            boolean reconnected;
+            boolean resubscribed;
+
+            synchronized (this)
+            {
+                reconnected = reconnecting;
+                resubscribed = resubscribing;
+                reconnecting = false;
+                resubscribing = false;
+
+                if (firstOpenedTime == null)
+                {
+                    firstOpenedTime = new Date();
+                }
+            }
+
+            backoff.reset();
+
+            if (!reconnected && !resubscribed && recoverMissedMessages)
+            {
+                requestHistoryTime();
+            }
+
+            if (resubscribed)
+            {
+                // the same session to the listener, only the subscription has changed
+                if (recoverMissedMessages)
+                {
+                    recoverMissedMessages();
+                }
+            }
+            else
+            {
+                listener.onOpen();
+
+                if (reconnected)
+                {
+                    if (reconnectListener != null)
+                    {
+                        reconnectListener.onReconnected();
+                    }
+
+                    if (recoverMissedMessages)
+                    {
+                        recoverMissedMessages();
+                    }
+                }
+            }
+
+            // the handlers might have changed while connecting
+            subscriptionChanged();
+            flushReadReceipts();
+        }
+
+        private void closed(int code, String reason, boolean remote)
+        {
+            synchronized (this)
+            {
+                if (replacement != null)
+                {
+                    // the replacement (still opening) takes over, and recovers what is missed meanwhile
+                    jsonRPC = replacement;
+                    replacement = null;
+                    subscribedTypes = jsonRPC.subscription;
+                    return;
+                }
+
+                resubscribing = false;
+            }
+
+            // 4000-4999 are the application codes the server uses to refuse the session (bad token etc),
+            // reconnecting would not help with those
+            if (autoReconnect && !closeRequested && (code < 4000 || code > 4999))
+            {
+                long delay = backoff.nextDelay();
+
+                if (delay >= 0)
+                {
+                    scheduleReconnect(delay);
+                    return;
+                }
+            }
+
+            listener.onClose(code, reason, remote);
+        }
+
+        private synchronized void scheduleReconnect(long delay)
+        {
+            reconnecting = true;
+
+            if (reconnectListener != null)
+            {
+                reconnectListener.onReconnecting(backoff.getAttempt(), delay);
+            }
+
+            pendingReconnect = Scheduler.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    synchronized (MessageSession.this)
+                    {
+                        pendingReconnect = null;
+                    }
+
+                    if (!closeRequested)
+                    {
+                        connect();
+                    }
+                }
+            }, delay);
+        }
+
+        /**
+         * Remembers the time of the most recent message in the history, so a session that has not received
+         * anything yet would know where to recover the missed messages from (in the server's time)
+         */
+        private void requestHistoryTime()
+        {
+            synchronized (this)
+            {
+                if (historyTimeKnown || lastMessageTime != null)
+                    return;
+            }
+
+            final ArrayList<Message> latest = new ArrayList<Message>();
+
+            messageService.getMessages(latest, new ArrayList<LastReadMessage>(), 0, 1, accessToken,
+                new GetMessagesCallback()
+            {
+                @Override
+                public void complete(MessageDestination replyTo, Request.Result result)
+                {
+                    if (result != Request.Result.success)
+                        return;
+
+                    synchronized (MessageSession.this)
+                    {
+                        historyTime = latest.isEmpty() ? null : latest.get(0).time;
+                        historyTimeKnown = true;
+                    }
+                }
+            });
+        }
+
+        /**
+         * Requests the messages sent after the most recent one delivered (or, if none was, after the most recent
+         * one in the history when the session was first opened), page by page, and delivers them in order,
+         * through the dispatcher of the connection (see setDispatchExecutor) as the live ones
+         */
+        private void recoverMissedMessages()
+        {
+            final Date since;
+            final Set<String> subscription;
+
+            synchronized (this)
+            {
+                if (lastMessageTime != null)
+                {
+                    since = lastMessageTime;
+                }
+                else if (historyTimeKnown)
+                {
+                    since = historyTime;
+                }
+                else
+                {
+                    // the history could not be checked, the local time is the best guess
+                    since = firstOpenedTime;
+                }
+
+                subscription = subscribedTypes;
+            }
+
+            messageService.getMessagesSince(since, 0, SYNC_MAX_PAGES, accessToken, new MessagesSinceCallback()
+            {
+                @Override
+                public void complete(List<Message> messages, int next, Request.Result result)
+                {
+                    if (result != Request.Result.success)
+                        return;
+
+                    Collections.sort(messages, new Comparator<Message>()
+                    {
+                        @Override
+                        public int compare(Message a, Message b)
+                        {
+                            return a.time.compareTo(b.time);
+                        }
+                    });
+
+                    MessageSessionRPC rpc = jsonRPC;
+
+                    for (final Message message : messages)
+                    {
+                        if (subscription != null && !subscription.contains(message.type))
+                            continue;
+
+                        Runnable delivery = new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                deliver(message.type, message.recipientClass, message.recipient, message.uuid,
+                                    message.time, message.sender, message.gamespace, message.payload,
+                                    message.flags);
+                            }
+                        };
+
+                        if (rpc == null)
+                        {
+                            delivery.run();
+                            continue;
+                        }
+
+                        // ordered with the live messages (and the deletions and updates) of the same recipient,
+                        // just as if it was received from the connection
+                        JSONObject params = new JSONObject();
+                        params.put("message_id", message.uuid);
+                        params.put("recipient_class", message.recipientClass);
+                        params.put("recipient_key", message.recipient);
+
+                        rpc.dispatch("message", params, delivery);
+                    }
+                }
+            });
+        }
+
+        private void deliver(String messageType, String recipientClass, String recipientKey,
+                             String messageId, Date time, String sender, int gamespace,
+                             JSONObject payload, Set<String> flags)
+        {
+            synchronized (this)
+            {
+                if (dedupWindow != null && !dedupWindow.add(messageId))
+                {
+                    // seen recently
+                    return;
+                }
+
+                if (lastMessageTime == null || time.after(lastMessageTime))
+                {
+                    lastMessageTime = time;
+                    lastMessageIds.clear();
+                }
+                else if (time.equals(lastMessageTime) && lastMessageIds.contains(messageId))
+                {
+                    // already delivered
+                    return;
+                }
+
+                if (time.equals(lastMessageTime))
+                {
+                    lastMessageIds.add(messageId);
+                }
+            }
+
+            MessageStore store = messageService.getMessageStore();
+            List<MessageHandler> byType = typeHandlers.get(messageType);
+            List<MessageHandler> byClass = classHandlers.get(recipientClass);
+            Message message = null;
+
+            if (store != null || byType != null || byClass != null)
+            {
+                message = new Message(messageId, recipientClass, recipientKey, sender, messageType,
+                    payload, time, gamespace, flags);
+            }
+
+            if (store != null)
+            {
+                try
+                {
+                    store.put(message);
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+
+            if (byType == null && byClass == null)
+            {
+                listener.onMessage(messageType, recipientClass, recipientKey,
+                    messageId, time, sender, gamespace, payload, flags);
+                return;
+            }
+
+            if (byType != null)
             {
-                JSONArray _flags = new JSONArray();
-                for (String flag : flags)
+                for (MessageHandler handler : byType)
                 {
-                    _flags.put(flag);
+                    handler.onMessage(message);
                 }
-                args.put("flags", _flags);
             }
-            else
+
+            if (byClass != null)
             {
-                args.put("flags", EmptyFlags);
+                for (MessageHandler handler : byClass)
+                {
+                    handler.onMessage(message);
+                }
             }
-
-            jsonRPC.request("send_message", callback, args);
-
-            return true;
-        }
-
-        public boolean deleteMessage(String messageId, JsonRPC.ResponseHandler callback)
-        {
-            if (!isOpen())
-                return false;
-
-            JSONObject args = new JSONObject();
-            args.put("message_id", messageId);
-            jsonRPC.request("delete_message", callback, args);
-
-            return true;
         }
 
-        public boolean updateMessage(String messageId, JSONObject payload, JsonRPC.ResponseHandler callback)
+        private void connect()
         {
-            if (!isOpen())
-                return false;
-
-            JSONObject args = new JSONObject();
-            args.put("message_id", messageId);
-            args.put("payload", payload);
-            jsonRPC.request("update_message", callback, args);
-
-            return true;
+            connect(false);
         }
 
-        public void open(MessageService messageService, LoginService.AccessToken accessToken)
+        /**
+         * @param replace true to open a replacement for the current connection (see resubscribe),
+         *                instead of replacing it right away
+         */
+        private void connect(boolean replace)
         {
             HashMap<String, String> args = new HashMap<String, String>();
             args.put("access_token", accessToken.get());
 
-            if (messageTypes != null)
+            Set<String> subscription = getSubscription();
+
+            if (subscription != null)
             {
                 JSONArray messageTypes_ = new JSONArray();
-                for (String messageType : messageTypes)
+                for (String messageType : subscription)
                 {
                     messageTypes_.put(messageType);
                 }
@@ -367,55 +1385,71 @@ public class MessageService extends Service
                 return;
             }
 
-            if (uri.getScheme().equals("https"))
+            try
             {
-                try
-                {
-                    uri = new URI("wss", null, uri.getHost(), uri.getPort(), uri.getPath(),
-                        uri.getQuery(), uri.getFragment());
-                    jsonRPC = new MessageSessionRPC(uri);
+                String scheme = uri.getScheme().equals("https") ? "wss" : "ws";
 
-                    SSLContext context = SSLContext.getInstance( "TLS" );
+                uri = new URI(scheme, null, uri.getHost(), uri.getPort(), uri.getPath(),
+                    uri.getQuery(), uri.getFragment());
+            }
+            catch (URISyntaxException e)
+            {
+                e.printStackTrace();
+                listener.onError(e);
+                return;
+            }
 
-                    context.init(null, null, null);
+            MessageSessionRPC rpc = new MessageSessionRPC(uri, options, subscription);
+            rpc.setMetrics(metrics);
 
-                    jsonRPC.setSocket(context.getSocketFactory().createSocket());
-                }
-                catch (Exception e)
-                {
-                    e.printStackTrace();
-                    listener.onError(e);
-                    return;
-                }
-            }
-            else
+            init(rpc);
+
+            synchronized (this)
             {
-                try
+                if (replace)
                 {
-                    uri = new URI("ws", null, uri.getHost(), uri.getPort(), uri.getPath(),
-                        uri.getQuery(), uri.getFragment());
-                    jsonRPC = new MessageSessionRPC(uri);
+                    replacement = rpc;
+                    resubscribing = true;
                 }
-                catch (URISyntaxException e)
+                else
                 {
-                    e.printStackTrace();
-                    listener.onError(e);
-                    return;
+                    jsonRPC = rpc;
+                    subscribedTypes = subscription;
                 }
             }
 
-            init();
+            try
+            {
+                messageService.getRuntime().getConnectionManager().connect(rpc);
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+                listener.onError(e);
 
-            jsonRPC.connect();
+                if (replace)
+                {
+                    replacementFailed(rpc);
+                }
+            }
         }
 
-        private void init()
+        private void init(final MessageSessionRPC rpc)
         {
-            jsonRPC.addHandler("message", new JsonRPC.MethodHandler()
+            applyDispatcher(rpc);
+
+            rpc.addHandler("message", new JsonRPC.MethodHandler()
             {
                 @Override
                 public Object called(Object params)
                 {
+                    if (rpc != jsonRPC)
+                    {
+                        // a connection being replaced (or not in use yet), the messages are recovered
+                        // by the one in use
+                        return null;
+                    }
+
                     JSONObject args = ((JSONObject) params);
 
                     int gamespace = args.optInt("gamespace_id");
@@ -430,7 +1464,7 @@ public class MessageService extends Service
 
                     try
                     {
-                        time = DATE_FORMAT.parse(args.optString("time", ""));
+                        time = Timestamps.parse(args.optString("time", ""));
                     }
                     catch (ParseException e)
                     {
@@ -473,18 +1507,24 @@ public class MessageService extends Service
                         flags = null;
                     }
 
-                    listener.onMessage(messageType, recipientClass, recipientKey,
+                    deliver(messageType, recipientClass, recipientKey,
                             messageId, time, sender, gamespace, payload, flags);
 
                     return null;
                 }
             });
 
-            jsonRPC.addHandler("message_deleted", new JsonRPC.MethodHandler()
+            rpc.addHandler("message_deleted", new JsonRPC.MethodHandler()
             {
                 @Override
                 public Object called(Object params)
                 {
+                    if (rpc != jsonRPC)
+                    {
+                        // the connection in use receives it too
+                        return null;
+                    }
+
                     JSONObject args = ((JSONObject) params);
 
                     int gamespace = args.optInt("gamespace_id");
@@ -496,17 +1536,37 @@ public class MessageService extends Service
                         return false;
                     }
 
+                    MessageStore store = messageService.getMessageStore();
+
+                    if (store != null)
+                    {
+                        try
+                        {
+                            store.delete(messageId);
+                        }
+                        catch (IOException e)
+                        {
+                            e.printStackTrace();
+                        }
+                    }
+
                     listener.onMessageDeleted(messageId, sender, gamespace);
 
                     return null;
                 }
             });
 
-            jsonRPC.addHandler("message_updated", new JsonRPC.MethodHandler()
+            rpc.addHandler("message_updated", new JsonRPC.MethodHandler()
             {
                 @Override
                 public Object called(Object params)
                 {
+                    if (rpc != jsonRPC)
+                    {
+                        // the connection in use receives it too
+                        return null;
+                    }
+
                     JSONObject args = ((JSONObject) params);
 
                     int gamespace = args.optInt("gamespace_id");
@@ -519,6 +1579,20 @@ public class MessageService extends Service
                         return false;
                     }
 
+                    MessageStore store = messageService.getMessageStore();
+
+                    if (store != null)
+                    {
+                        try
+                        {
+                            store.update(messageId, payload);
+                        }
+                        catch (IOException e)
+                        {
+                            e.printStackTrace();
+                        }
+                    }
+
                     listener.onMessageUpdated(messageId, sender, gamespace, payload);
 
                     return null;
@@ -549,6 +1623,230 @@ public class MessageService extends Service
         }
     }
 
+    /**
+     * Connection options (like binary encoding) for the sessions opened after this call
+     */
+    public void setSessionOptions(WebSocketJsonRPC.Options sessionOptions)
+    {
+        this.sessionOptions = sessionOptions;
+    }
+
+    /**
+     * Sets a local store to keep the message history in. Once set, the messages (and their deletions and
+     * updates) received by the sessions are stored as they come, and syncMessages fills in the rest.
+     * The history could then be read from the store directly, without requests.
+     */
+    public void setMessageStore(MessageStore messageStore)
+    {
+        this.messageStore = messageStore;
+    }
+
+    public MessageStore getMessageStore()
+    {
+        return messageStore;
+    }
+
+    /**
+     * Downloads the messages the store (see setMessageStore) does not have yet. The history is requested
+     * page by page from the most recent message, until the time of the most recent message stored is reached.
+     *
+     * At most SYNC_MAX_PAGES are requested at a time. If that is not enough, the callback is told there is
+     * more, and the next sync (once the new messages are fetched) goes on from where this one stopped.
+     */
+    public void syncMessages(final LoginService.AccessToken accessToken, final SyncMessagesCallback callback)
+    {
+        if (messageStore == null)
+            throw new IllegalStateException("No message store set");
+
+        final MessageStore store = messageStore;
+
+        // taken once, the sessions may be storing new messages while the sync goes
+        final Date lastStored = store.getLastMessageTime();
+        final SyncCursor cursor;
+
+        synchronized (this)
+        {
+            cursor = syncCursor;
+        }
+
+        getMessagesSince(lastStored, 0, SYNC_MAX_PAGES, accessToken, new MessagesSinceCallback()
+        {
+            @Override
+            public void complete(List<Message> messages, int next, Request.Result result)
+            {
+                int stored = storeMessages(store, messages);
+
+                if (stored < 0)
+                {
+                    callback.complete(0, cursor != null, Request.Result.failed);
+                    return;
+                }
+
+                if (result != Request.Result.success)
+                {
+                    callback.complete(stored, cursor != null, result);
+                    return;
+                }
+
+                if (next >= 0)
+                {
+                    // still short of the last stored one (or of the gap left before), the rest is for the next time
+                    setSyncCursor(cursor, new SyncCursor(cursor != null ? cursor.since : lastStored, next));
+                    callback.complete(stored, true, Request.Result.success);
+                    return;
+                }
+
+                if (cursor == null)
+                {
+                    callback.complete(stored, false, Request.Result.success);
+                    return;
+                }
+
+                // the messages that came since have shifted the gap down the pages, go back a page
+                // in case some got deleted meanwhile, the ones already stored are skipped
+                int offset = Math.max(0, cursor.offset + messages.size() - SYNC_PAGE_SIZE);
+
+                syncGap(store, cursor, offset, stored, accessToken, callback);
+            }
+        });
+    }
+
+    private void syncGap(
+        final MessageStore store, final SyncCursor cursor, int offset, final int storedBefore,
+        final LoginService.AccessToken accessToken, final SyncMessagesCallback callback)
+    {
+        getMessagesSince(cursor.since, offset, SYNC_MAX_PAGES, accessToken, new MessagesSinceCallback()
+        {
+            @Override
+            public void complete(List<Message> messages, int next, Request.Result result)
+            {
+                int stored = storeMessages(store, messages);
+
+                if (stored < 0)
+                {
+                    callback.complete(storedBefore, true, Request.Result.failed);
+                    return;
+                }
+
+                if (result != Request.Result.success)
+                {
+                    callback.complete(storedBefore + stored, true, result);
+                    return;
+                }
+
+                setSyncCursor(cursor, next >= 0 ? new SyncCursor(cursor.since, next) : null);
+                callback.complete(storedBefore + stored, next >= 0, Request.Result.success);
+            }
+        });
+    }
+
+    /**
+     * Replaces the sync cursor, unless another sync has replaced it already
+     */
+    private synchronized void setSyncCursor(SyncCursor expected, SyncCursor cursor)
+    {
+        if (syncCursor == expected)
+        {
+            syncCursor = cursor;
+        }
+    }
+
+    /**
+     * @return how many of the messages were not in the store yet, or -1 if the store failed
+     */
+    private static int storeMessages(MessageStore store, List<Message> messages)
+    {
+        int stored = 0;
+
+        for (Message message : messages)
+        {
+            if (store.contains(message.uuid))
+                continue;
+
+            try
+            {
+                if (store.put(message))
+                {
+                    stored++;
+                }
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+                return -1;
+            }
+        }
+
+        return stored;
+    }
+
+    /**
+     * Requests the message history page by page from the most recent message, until a message sent before
+     * the given time is met. As the history only pages by offset, messages arriving meanwhile shift the pages,
+     * so the messages seen on a previous page are skipped by their ids.
+     *
+     * @param since the time to stop at (the messages sent at that very time are included), or null
+     *              to request up to maxPages
+     */
+    private void getMessagesSince(
+        final Date since, final int offset, final int maxPages,
+        final LoginService.AccessToken accessToken, final MessagesSinceCallback callback)
+    {
+        getMessagesSince(since, maxPages, offset, new LinkedHashMap<String, Message>(), accessToken, callback);
+    }
+
+    private void getMessagesSince(
+        final Date since, final int pagesLeft, final int offset, final LinkedHashMap<String, Message> found,
+        final LoginService.AccessToken accessToken, final MessagesSinceCallback callback)
+    {
+        final ArrayList<Message> page = new ArrayList<Message>();
+
+        getMessages(page, new ArrayList<LastReadMessage>(), offset, SYNC_PAGE_SIZE, accessToken,
+            new GetMessagesCallback()
+        {
+            @Override
+            public void complete(MessageDestination replyTo, Request.Result result)
+            {
+                if (result != Request.Result.success)
+                {
+                    callback.complete(new ArrayList<Message>(found.values()), -1, result);
+                    return;
+                }
+
+                boolean reached = false;
+
+                for (Message message : page)
+                {
+                    if (message.time == null || found.containsKey(message.uuid))
+                        continue;
+
+                    if (since != null && message.time.before(since))
+                    {
+                        reached = true;
+                        break;
+                    }
+
+                    found.put(message.uuid, message);
+                }
+
+                if (reached || page.size() < SYNC_PAGE_SIZE)
+                {
+                    callback.complete(new ArrayList<Message>(found.values()), -1, Request.Result.success);
+                }
+                else if (pagesLeft <= 1)
+                {
+                    // out of pages before the time was reached
+                    callback.complete(new ArrayList<Message>(found.values()), offset + page.size(),
+                        Request.Result.success);
+                }
+                else
+                {
+                    getMessagesSince(since, pagesLeft - 1, offset + page.size(), found, accessToken, callback);
+                }
+            }
+        });
+    }
+
     public MessageSession session(
         LoginService.AccessToken accessToken, MessageSession.Listener listener)
     {
@@ -561,6 +1859,7 @@ public class MessageService extends Service
         MessageSession.Listener listener)
     {
         MessageSession session = new MessageSession(listener, messageTypes);
+        session.setOptions(sessionOptions);
         session.open(this, accessToken);
         return session;
     }
@@ -631,7 +1930,12 @@ public class MessageService extends Service
             }
         });
 
+        Request.Fields args = new Request.Fields();
+        args.put("offset", String.valueOf(offset));
+        args.put("limit", String.valueOf(limit));
+
         jsonRequest.setAPIVersion(getAPIVersion());
+        jsonRequest.setQueryArguments(args);
         jsonRequest.setToken(accessToken);
         jsonRequest.get();
     }
@@ -693,7 +1997,7 @@ public class MessageService extends Service
 
                             try
                             {
-                                tmp = DATE_FORMAT.parse(data.optString("time"));
+                                tmp = Timestamps.parse(data.optString("time"));
                             }
                             catch (ParseException e)
                             {
@@ -721,7 +2025,7 @@ public class MessageService extends Service
 
                             try
                             {
-                                tmp = DATE_FORMAT.parse(data.optString("time"));
+                                tmp = Timestamps.parse(data.optString("time"));
                             }
                             catch (ParseException e)
                             {
@@ -742,11 +2046,69 @@ public class MessageService extends Service
             }
         });
 
+        Request.Fields args = new Request.Fields();
+        args.put("offset", String.valueOf(offset));
+        args.put("limit", String.valueOf(limit));
+
         jsonRequest.setAPIVersion(getAPIVersion());
+        jsonRequest.setQueryArguments(args);
         jsonRequest.setToken(accessToken);
         jsonRequest.get();
     }
 
+    /**
+     * @return an iterator over the message history, requesting it page by page (see PageIterator)
+     */
+    public PageIterator<Message> iterateMessages(
+        int pageSize, int lookAhead, final LoginService.AccessToken accessToken)
+    {
+        return new PageIterator<Message>(new PageIterator.PageFetcher<Message>()
+        {
+            @Override
+            public void fetch(int offset, int limit, final PageIterator.PageCallback<Message> callback)
+            {
+                final ArrayList<Message> messages = new ArrayList<Message>();
+
+                getMessages(messages, new ArrayList<LastReadMessage>(), offset, limit, accessToken,
+                    new GetMessagesCallback()
+                {
+                    @Override
+                    public void complete(MessageDestination replyTo, Request.Result result)
+                    {
+                        callback.complete(result, messages);
+                    }
+                });
+            }
+        }, pageSize, lookAhead);
+    }
+
+    /**
+     * @return an iterator over the messages of a group, requesting them page by page (see PageIterator)
+     */
+    public PageIterator<Message> iterateGroupMessages(
+        final String groupClass, final String groupKey,
+        int pageSize, int lookAhead, final LoginService.AccessToken accessToken)
+    {
+        return new PageIterator<Message>(new PageIterator.PageFetcher<Message>()
+        {
+            @Override
+            public void fetch(int offset, int limit, final PageIterator.PageCallback<Message> callback)
+            {
+                final ArrayList<Message> messages = new ArrayList<Message>();
+
+                getGroupMessages(messages, groupClass, groupKey, offset, limit, accessToken,
+                    new GetMessagesCallback()
+                {
+                    @Override
+                    public void complete(MessageDestination replyTo, Request.Result result)
+                    {
+                        callback.complete(result, messages);
+                    }
+                });
+            }
+        }, pageSize, lookAhead);
+    }
+
     public void getGroupMessages(
         final ArrayList<Message> messagesToFill,
         String groupClass, String groupKey,
@@ -759,6 +2121,14 @@ public class MessageService extends Service
         final ArrayList<Message> messagesToFill,
         String groupClass, String groupKey, int limit,
         LoginService.AccessToken accessToken, final GetMessagesCallback callback)
+    {
+        getGroupMessages(messagesToFill, groupClass, groupKey, 0, limit, accessToken, callback);
+    }
+
+    public void getGroupMessages(
+        final ArrayList<Message> messagesToFill,
+        String groupClass, String groupKey, int offset, int limit,
+        LoginService.AccessToken accessToken, final GetMessagesCallback callback)
     {
         JsonRequest jsonRequest = new JsonRequest(
                 getLocation() + "/group/" + groupClass + "/" + groupKey,
@@ -797,7 +2167,12 @@ public class MessageService extends Service
             }
         });
 
+        Request.Fields args = new Request.Fields();
+        args.put("offset", String.valueOf(offset));
+        args.put("limit", String.valueOf(limit));
+
         jsonRequest.setAPIVersion(getAPIVersion());
+        jsonRequest.setQueryArguments(args);
         jsonRequest.setToken(accessToken);
         jsonRequest.get();
     }
@@ -814,6 +2189,14 @@ public class MessageService extends Service
         final MessageCallback messageCallback,
         String groupClass, String groupKey, int limit,
         LoginService.AccessToken accessToken, final GetMessagesCallback callback)
+    {
+        getGroupMessages(messageCallback, groupClass, groupKey, 0, limit, accessToken, callback);
+    }
+
+    public void getGroupMessages(
+        final MessageCallback messageCallback,
+        String groupClass, String groupKey, int offset, int limit,
+        LoginService.AccessToken accessToken, final GetMessagesCallback callback)
     {
         JsonRequest jsonRequest = new JsonRequest(
                 getLocation() + "/group/" + groupClass + "/" + groupKey,
@@ -852,7 +2235,7 @@ public class MessageService extends Service
 
                             try
                             {
-                                tmp = DATE_FORMAT.parse(data.optString("time"));
+                                tmp = Timestamps.parse(data.optString("time"));
                             }
                             catch (ParseException e)
                             {
@@ -874,7 +2257,12 @@ public class MessageService extends Service
             }
         });
 
+        Request.Fields args = new Request.Fields();
+        args.put("offset", String.valueOf(offset));
+        args.put("limit", String.valueOf(limit));
+
         jsonRequest.setAPIVersion(getAPIVersion());
+        jsonRequest.setQueryArguments(args);
         jsonRequest.setToken(accessToken);
         jsonRequest.get();
     }
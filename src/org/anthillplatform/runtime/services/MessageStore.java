@@ -0,0 +1,489 @@
+package org.anthillplatform.runtime.services;
+
+import org.anthillplatform.runtime.util.Cbor;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A local copy of the message history, so it would not have to be downloaded again on every start.
+ *
+ * Messages are kept in memory, indexed by uuid and time, and every change is appended to a file as a compact
+ * (CBOR) record, so opening the store is a single sequential read. Once the file gets mostly made of
+ * stale records (deleted, updated or trimmed messages), it is rewritten from scratch.
+ *
+ * See MessageService.setMessageStore and MessageService.syncMessages.
+ */
+public class MessageStore
+{
+    public static final int DEFAULT_MAX_MESSAGES = 10000;
+
+    private static final String OP_PUT = "p";
+    private static final String OP_DELETE = "d";
+    private static final String OP_UPDATE = "u";
+
+    // the file is rewritten once it has this many records per live message
+    private static final int COMPACT_RATIO = 2;
+    private static final int COMPACT_MIN_RECORDS = 1024;
+
+    private static final Comparator<MessageService.Message> ByTime = new Comparator<MessageService.Message>()
+    {
+        @Override
+        public int compare(MessageService.Message a, MessageService.Message b)
+        {
+            int result = a.time.compareTo(b.time);
+            return result != 0 ? result : a.uuid.compareTo(b.uuid);
+        }
+    };
+
+    private final File file;
+    private final int maxMessages;
+
+    private final HashMap<String, MessageService.Message> messages;
+    private final TreeSet<MessageService.Message> byTime;
+    private final HashMap<String, TreeSet<MessageService.Message>> byRecipient;
+
+    private DataOutputStream output;
+    private int records;
+
+    public MessageStore(File file) throws IOException
+    {
+        this(file, DEFAULT_MAX_MESSAGES);
+    }
+
+    /**
+     * Opens (or creates) a store
+     *
+     * @param maxMessages how many messages to keep, the oldest ones are dropped above that
+     */
+    public MessageStore(File file, int maxMessages) throws IOException
+    {
+        this.file = file;
+        this.maxMessages = maxMessages;
+        this.messages = new HashMap<String, MessageService.Message>();
+        this.byTime = new TreeSet<MessageService.Message>(ByTime);
+        this.byRecipient = new HashMap<String, TreeSet<MessageService.Message>>();
+
+        load();
+
+        this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    private static String recipientKey(String recipientClass, String recipient)
+    {
+        return recipientClass + "/" + recipient;
+    }
+
+    private static File backupOf(File file)
+    {
+        return new File(file.getPath() + ".old");
+    }
+
+    private void load() throws IOException
+    {
+        File old = backupOf(file);
+
+        if (!file.exists() && old.exists() && !old.renameTo(file))
+        {
+            // the last compaction was interrupted
+            throw new IOException("Failed to restore " + file + " from " + old);
+        }
+
+        if (!file.exists())
+            return;
+
+        long valid = 0;
+        long length = file.length();
+
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+        try
+        {
+            while (valid < length)
+            {
+                int size;
+                byte[] data;
+
+                try
+                {
+                    size = input.readInt();
+
+                    if (size <= 0 || valid + 4 + size > length)
+                        break;
+
+                    data = new byte[size];
+                    input.readFully(data);
+                }
+                catch (EOFException e)
+                {
+                    break;
+                }
+
+                Object record;
+
+                try
+                {
+                    record = Cbor.decode(data);
+                }
+                catch (JSONException e)
+                {
+                    break;
+                }
+
+                if (!(record instanceof JSONObject))
+                    break;
+
+                apply(((JSONObject) record));
+
+                records++;
+                valid += 4 + size;
+            }
+        }
+        finally
+        {
+            input.close();
+        }
+
+        if (valid < length)
+        {
+            // a record torn by a crash (or garbage), drop everything after the last good one
+            RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+
+            try
+            {
+                truncate.setLength(valid);
+            }
+            finally
+            {
+                truncate.close();
+            }
+        }
+    }
+
+    private void apply(JSONObject record)
+    {
+        String op = record.optString("o");
+        String uuid = record.optString("u");
+
+        if (OP_PUT.equals(op))
+        {
+            Set<String> flags = null;
+            JSONArray flags_ = record.optJSONArray("f");
+
+            if (flags_ != null)
+            {
+                flags = new HashSet<String>();
+
+                for (int i = 0; i < flags_.length(); i++)
+                {
+                    flags.add(flags_.optString(i));
+                }
+            }
+
+            add(new MessageService.Message(uuid, record.optString("c"), record.optString("r"),
+                record.optString("s"), record.optString("t"), record.optJSONObject("p"),
+                new Date(record.optLong("m")), record.optInt("g"), flags));
+        }
+        else if (OP_DELETE.equals(op))
+        {
+            remove(uuid);
+        }
+        else if (OP_UPDATE.equals(op))
+        {
+            MessageService.Message old = remove(uuid);
+
+            if (old != null)
+            {
+                add(old.withPayload(record.optJSONObject("p")));
+            }
+        }
+    }
+
+    private void add(MessageService.Message message)
+    {
+        remove(message.uuid);
+
+        messages.put(message.uuid, message);
+        byTime.add(message);
+
+        String key = recipientKey(message.recipientClass, message.recipient);
+        TreeSet<MessageService.Message> recipientMessages = byRecipient.get(key);
+
+        if (recipientMessages == null)
+        {
+            recipientMessages = new TreeSet<MessageService.Message>(ByTime);
+            byRecipient.put(key, recipientMessages);
+        }
+
+        recipientMessages.add(message);
+
+        while (messages.size() > maxMessages)
+        {
+            remove(byTime.first().uuid);
+        }
+    }
+
+    private MessageService.Message remove(String uuid)
+    {
+        MessageService.Message message = messages.remove(uuid);
+
+        if (message == null)
+            return null;
+
+        byTime.remove(message);
+
+        String key = recipientKey(message.recipientClass, message.recipient);
+        TreeSet<MessageService.Message> recipientMessages = byRecipient.get(key);
+
+        if (recipientMessages != null)
+        {
+            recipientMessages.remove(message);
+
+            if (recipientMessages.isEmpty())
+            {
+                byRecipient.remove(key);
+            }
+        }
+
+        return message;
+    }
+
+    private static JSONObject putRecord(MessageService.Message message)
+    {
+        JSONObject record = new JSONObject();
+
+        record.put("o", OP_PUT);
+        record.put("u", message.uuid);
+        record.put("c", message.recipientClass);
+        record.put("r", message.recipient);
+        record.put("s", message.sender);
+        record.put("t", message.type);
+        record.put("g", message.gamespace);
+        record.put("m", message.time.getTime());
+
+        if (message.payload != null)
+        {
+            record.put("p", message.payload);
+        }
+
+        if (message.flags != null && !message.flags.isEmpty())
+        {
+            record.put("f", new JSONArray(message.flags));
+        }
+
+        return record;
+    }
+
+    private void append(JSONObject record) throws IOException
+    {
+        if (output == null)
+            throw new IOException("The store is closed");
+
+        byte[] data = Cbor.encode(record);
+
+        output.writeInt(data.length);
+        output.write(data);
+        output.flush();
+
+        records++;
+
+        if (records >= COMPACT_MIN_RECORDS && records > messages.size() * COMPACT_RATIO)
+        {
+            compact();
+        }
+    }
+
+    /**
+     * Stores a message, unless one with the same uuid is already there. Messages without time are ignored.
+     *
+     * @return false if the message was not stored
+     */
+    public synchronized boolean put(MessageService.Message message) throws IOException
+    {
+        if (message.time == null || message.uuid == null || message.uuid.isEmpty())
+            return false;
+
+        if (messages.containsKey(message.uuid))
+            return false;
+
+        add(message);
+        append(putRecord(message));
+
+        return true;
+    }
+
+    public synchronized boolean delete(String uuid) throws IOException
+    {
+        if (remove(uuid) == null)
+            return false;
+
+        JSONObject record = new JSONObject();
+        record.put("o", OP_DELETE);
+        record.put("u", uuid);
+
+        append(record);
+        return true;
+    }
+
+    public synchronized boolean update(String uuid, JSONObject payload) throws IOException
+    {
+        MessageService.Message old = remove(uuid);
+
+        if (old == null)
+            return false;
+
+        add(old.withPayload(payload));
+
+        JSONObject record = new JSONObject();
+        record.put("o", OP_UPDATE);
+        record.put("u", uuid);
+        record.put("p", payload);
+
+        append(record);
+        return true;
+    }
+
+    public synchronized boolean contains(String uuid)
+    {
+        return messages.containsKey(uuid);
+    }
+
+    public synchronized MessageService.Message get(String uuid)
+    {
+        return messages.get(uuid);
+    }
+
+    public synchronized int size()
+    {
+        return messages.size();
+    }
+
+    /**
+     * @return the time of the most recent message stored, or null if the store is empty
+     */
+    public synchronized Date getLastMessageTime()
+    {
+        return byTime.isEmpty() ? null : byTime.last().time;
+    }
+
+    private static List<MessageService.Message> latest(
+        TreeSet<MessageService.Message> messages, Date before, int limit)
+    {
+        ArrayList<MessageService.Message> result = new ArrayList<MessageService.Message>();
+
+        if (messages == null)
+            return result;
+
+        NavigableSet<MessageService.Message> older = messages;
+
+        if (before != null)
+        {
+            // sorts before any message sent at that time
+            MessageService.Message bound = new MessageService.Message(
+                "", null, null, null, null, null, before, 0, null);
+
+            older = messages.headSet(bound, false);
+        }
+
+        Iterator<MessageService.Message> it = older.descendingIterator();
+
+        while (result.size() < limit && it.hasNext())
+        {
+            result.add(it.next());
+        }
+
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * @return up to limit most recent messages, from the oldest one
+     */
+    public synchronized List<MessageService.Message> getMessages(int limit)
+    {
+        return latest(byTime, null, limit);
+    }
+
+    /**
+     * @param before to page back through the history, only messages older than this are returned (if not null)
+     * @return up to limit most recent messages of a recipient (for example, a group), from the oldest one
+     */
+    public synchronized List<MessageService.Message> getMessages(
+        String recipientClass, String recipient, Date before, int limit)
+    {
+        return latest(byRecipient.get(recipientKey(recipientClass, recipient)), before, limit);
+    }
+
+    /**
+     * Rewrites the file with only the messages currently stored
+     */
+    public synchronized void compact() throws IOException
+    {
+        File temp = new File(file.getPath() + ".tmp");
+
+        DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+
+        try
+        {
+            for (MessageService.Message message : byTime)
+            {
+                byte[] data = Cbor.encode(putRecord(message));
+
+                compacted.writeInt(data.length);
+                compacted.write(data);
+            }
+        }
+        finally
+        {
+            compacted.close();
+        }
+
+        if (output != null)
+        {
+            output.close();
+        }
+
+        if (!temp.renameTo(file))
+        {
+            // some platforms cannot rename over an existing file, so the old one is moved aside first,
+            // and only deleted once the new one is in place
+            File old = backupOf(file);
+            old.delete();
+
+            if (!file.renameTo(old))
+            {
+                output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+                throw new IOException("Failed to replace " + file);
+            }
+
+            if (!temp.renameTo(file))
+            {
+                if (!old.renameTo(file))
+                {
+                    output = null;
+                    throw new IOException("Failed to replace " + file + ", the old one is left at " + old);
+                }
+
+                output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+                throw new IOException("Failed to replace " + file);
+            }
+
+            old.delete();
+        }
+
+        records = messages.size();
+        output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    public synchronized void close() throws IOException
+    {
+        if (output != null)
+        {
+            output.close();
+            output = null;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package org.anthillplatform.runtime.services;
+
+import org.anthillplatform.runtime.requests.Request;
+
+import java.util.*;
+
+/**
+ * The player records (what rooms an account is in) of the accounts looked up recently,
+ * see GameService.setRecordsCacheTTL.
+ *
+ * An entry is fresh for the TTL, then stale for a while longer: a stale entry is still served at once,
+ * and refreshed in the background. An account with no records is cached just the same, so the offline ones
+ * are not asked for over and over. The accounts missing from the cache (or being refreshed) are requested
+ * together with listMultipleAccountsRecords, and the lookups of an account already requested wait for that
+ * request instead of making another one.
+ *
+ * The entries are kept per access token, as what the server answers may depend on who asks. Each caller
+ * gets lists of its own, so the cached ones cannot be changed from the outside.
+ */
+class PlayerRecordsCache
+{
+    private static final int MAX_ENTRIES = 4096;
+
+    private static class CachedRecords
+    {
+        private final String account;
+        private final List<GameService.PlayerRecord> records;
+        private final long fetched;
+
+        private CachedRecords(String account, List<GameService.PlayerRecord> records, long fetched)
+        {
+            this.account = account;
+            this.records = records;
+            this.fetched = fetched;
+        }
+    }
+
+    /**
+     * A lookup waiting for some of its accounts to be fetched
+     */
+    private static class Lookup
+    {
+        private final HashMap<String, List<GameService.PlayerRecord>> records;
+        private final Set<String> missing;
+        private final GameService.ListMultiplePlayersRecordsCallback callback;
+        private boolean done;
+
+        private Lookup(GameService.ListMultiplePlayersRecordsCallback callback)
+        {
+            this.records = new HashMap<String, List<GameService.PlayerRecord>>();
+            this.missing = new HashSet<String>();
+            this.callback = callback;
+        }
+    }
+
+    private class Fetch implements GameService.ListMultiplePlayersRecordsCallback
+    {
+        private final String token;
+        private final List<String> accounts;
+        private final Set<Lookup> waiting = new LinkedHashSet<Lookup>();
+
+        private Fetch(String token, List<String> accounts)
+        {
+            this.token = token;
+            this.accounts = accounts;
+        }
+
+        @Override
+        public void result(GameService service, Request request, Request.Result result,
+                           Map<String, List<GameService.PlayerRecord>> records)
+        {
+            List<Lookup> complete = new ArrayList<Lookup>();
+
+            synchronized (PlayerRecordsCache.this)
+            {
+                long now = System.currentTimeMillis();
+
+                for (String account : accounts)
+                {
+                    String key = keyOf(token, account);
+
+                    if (fetching.get(key) == this)
+                    {
+                        fetching.remove(key);
+                    }
+
+                    if (result != Request.Result.success)
+                        continue;
+
+                    // no records is an answer too
+                    List<GameService.PlayerRecord> accountRecords = records.get(account) != null ?
+                        new ArrayList<GameService.PlayerRecord>(records.get(account)) :
+                        new ArrayList<GameService.PlayerRecord>();
+
+                    if (ttl > 0)
+                    {
+                        entries.put(key, new CachedRecords(account, accountRecords, now));
+                    }
+
+                    for (Lookup lookup : waiting)
+                    {
+                        if (lookup.missing.remove(account))
+                        {
+                            lookup.records.put(account, new ArrayList<GameService.PlayerRecord>(accountRecords));
+                        }
+                    }
+                }
+
+                for (Lookup lookup : waiting)
+                {
+                    if (lookup.done || (result == Request.Result.success && !lookup.missing.isEmpty()))
+                        continue;
+
+                    lookup.done = true;
+                    complete.add(lookup);
+                }
+            }
+
+            for (Lookup lookup : complete)
+            {
+                if (result == Request.Result.success)
+                {
+                    lookup.callback.result(service, request, result, lookup.records);
+                }
+                else
+                {
+                    lookup.callback.result(service, request, result, null);
+                }
+            }
+        }
+    }
+
+    private final GameService service;
+    private final LinkedHashMap<String, CachedRecords> entries;
+    private final HashMap<String, Fetch> fetching;
+    private long ttl;
+    private long staleTTL;
+
+    PlayerRecordsCache(GameService service, long ttl, long staleTTL)
+    {
+        this.service = service;
+        this.ttl = ttl;
+        this.staleTTL = staleTTL;
+        this.fetching = new HashMap<String, Fetch>();
+
+        // the accounts looked up the least recently are forgotten first
+        this.entries = new LinkedHashMap<String, CachedRecords>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedRecords> eldest)
+            {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    synchronized long getTTL()
+    {
+        return ttl;
+    }
+
+    synchronized void setTTL(long ttl, long staleTTL)
+    {
+        this.ttl = ttl;
+        this.staleTTL = staleTTL;
+
+        if (ttl <= 0)
+        {
+            entries.clear();
+        }
+    }
+
+    synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    /**
+     * Forgets the records of the account, whatever access token they were looked up with
+     */
+    synchronized void remove(String account)
+    {
+        for (Iterator<CachedRecords> it = entries.values().iterator(); it.hasNext(); )
+        {
+            if (it.next().account.equals(account))
+            {
+                it.remove();
+            }
+        }
+    }
+
+    private static String keyOf(String token, String account)
+    {
+        return token + "\n" + account;
+    }
+
+    void list(
+        LoginService.AccessToken accessToken,
+        Collection<String> accounts,
+        GameService.ListMultiplePlayersRecordsCallback callback)
+    {
+        String token = accessToken.get();
+        Lookup lookup = new Lookup(callback);
+        Fetch fetch = null;
+        boolean cached;
+
+        synchronized (this)
+        {
+            long now = System.currentTimeMillis();
+            List<String> refresh = new ArrayList<String>();
+
+            for (String account : new LinkedHashSet<String>(accounts))
+            {
+                String key = keyOf(token, account);
+                CachedRecords entry = entries.get(key);
+                long age = entry != null ? now - entry.fetched : Long.MAX_VALUE;
+
+                if (age < ttl + staleTTL)
+                {
+                    lookup.records.put(account, new ArrayList<GameService.PlayerRecord>(entry.records));
+
+                    if (age >= ttl && !fetching.containsKey(key))
+                    {
+                        // serve the stale one, but refresh it for the next time
+                        refresh.add(account);
+                    }
+
+                    continue;
+                }
+
+                lookup.missing.add(account);
+
+                Fetch pending = fetching.get(key);
+
+                if (pending != null)
+                {
+                    pending.waiting.add(lookup);
+                }
+                else
+                {
+                    refresh.add(account);
+                }
+            }
+
+            if (!refresh.isEmpty())
+            {
+                fetch = new Fetch(token, refresh);
+
+                for (String account : refresh)
+                {
+                    fetching.put(keyOf(token, account), fetch);
+
+                    if (lookup.missing.contains(account))
+                    {
+                        fetch.waiting.add(lookup);
+                    }
+                }
+            }
+
+            cached = lookup.missing.isEmpty();
+            lookup.done = cached;
+        }
+
+        if (cached)
+        {
+            // no need to wait for the refresh, if any; there is no request behind the answer
+            callback.result(service, null, Request.Result.success, lookup.records);
+        }
+
+        if (fetch != null)
+        {
+            service.listMultipleAccountsRecords(accessToken, fetch.accounts, fetch);
+        }
+    }
+}
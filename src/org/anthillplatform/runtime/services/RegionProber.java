@@ -0,0 +1,355 @@
+package org.anthillplatform.runtime.services;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+
+/**
+ * Measures the round trip time to each region, to pick the closest one instead of relying on the GeoIP guess
+ * of the server (see GameService.probeRegions).
+ *
+ * The time is measured by opening a TCP connection to an address of the region, several times, taking the
+ * best attempt. All regions are probed at once from a single background thread (with non-blocking connects),
+ * so probing takes about as long as the slowest region (or the timeout). The results are kept for a while,
+ * and once known, GameService uses the best region for the calls where no region is given explicitly.
+ */
+public class RegionProber
+{
+    public static final int DEFAULT_TIMEOUT = 2000;
+    public static final int DEFAULT_ATTEMPTS = 3;
+    public static final long DEFAULT_MAX_AGE = 600000;
+    public static final int DEFAULT_PORT = 443;
+
+    /**
+     * Tells which address to probe for a region
+     */
+    public interface AddressResolver
+    {
+        /**
+         * @return an address to connect to, or null if the region cannot be probed
+         */
+        InetSocketAddress addressOf(GameService.Region region);
+    }
+
+    public interface ProbeCallback
+    {
+        /**
+         * @param ranked the regions probed, the fastest first (the unreachable ones are at the end),
+         *               or null if the regions could not be listed (see GameService.probeRegions)
+         */
+        void complete(List<Result> ranked);
+    }
+
+    public static class Result
+    {
+        public final GameService.Region region;
+
+        /**
+         * The best round trip time in milliseconds, or -1 if the region could not be reached
+         */
+        public final double rtt;
+
+        public Result(GameService.Region region, double rtt)
+        {
+            this.region = region;
+            this.rtt = rtt;
+        }
+
+        public boolean isReachable()
+        {
+            return rtt >= 0;
+        }
+
+        @Override
+        public String toString()
+        {
+            return region.name + ": " + (rtt >= 0 ? String.format("%.1fms", rtt) : "unreachable");
+        }
+    }
+
+    /**
+     * Reads the address from the region settings: "host" and an optional "port"
+     */
+    public static final AddressResolver SettingsResolver = new AddressResolver()
+    {
+        @Override
+        public InetSocketAddress addressOf(GameService.Region region)
+        {
+            JSONObject settings = region.settings;
+
+            if (settings == null)
+                return null;
+
+            String host = settings.optString("host", null);
+
+            if (host == null || host.isEmpty())
+                return null;
+
+            return new InetSocketAddress(host, settings.optInt("port", DEFAULT_PORT));
+        }
+    };
+
+    private static final Comparator<Result> ByRtt = new Comparator<Result>()
+    {
+        @Override
+        public int compare(Result a, Result b)
+        {
+            if (a.isReachable() != b.isReachable())
+                return a.isReachable() ? -1 : 1;
+
+            return Double.compare(a.rtt, b.rtt);
+        }
+    };
+
+    private AddressResolver resolver = SettingsResolver;
+    private int timeout = DEFAULT_TIMEOUT;
+    private int attempts = DEFAULT_ATTEMPTS;
+    private long maxAge = DEFAULT_MAX_AGE;
+
+    private List<Result> ranked;
+    private long probed;
+
+    public synchronized void setAddressResolver(AddressResolver resolver)
+    {
+        this.resolver = resolver;
+    }
+
+    /**
+     * @param timeout how long (in milliseconds) to wait for a connection, per attempt
+     * @param attempts how many times to connect to each region
+     */
+    public synchronized void setTimeout(int timeout, int attempts)
+    {
+        this.timeout = timeout;
+        this.attempts = Math.max(1, attempts);
+    }
+
+    /**
+     * @param maxAge how long (in milliseconds) the results are considered valid
+     */
+    public synchronized void setMaxAge(long maxAge)
+    {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @return the results of the last probe, the fastest region first, or null if there are none (or they're too old)
+     */
+    public synchronized List<Result> getRanked()
+    {
+        if (ranked == null || System.currentTimeMillis() - probed > maxAge)
+            return null;
+
+        return ranked;
+    }
+
+    /**
+     * @return a name of the fastest region reachable, or null if it's not known
+     */
+    public String getBestRegion()
+    {
+        List<Result> ranked = getRanked();
+
+        if (ranked == null || ranked.isEmpty() || !ranked.get(0).isReachable())
+            return null;
+
+        return ranked.get(0).region.name;
+    }
+
+    public synchronized void clear()
+    {
+        ranked = null;
+    }
+
+    /**
+     * Probes the regions in the background, the callback (if any) is called on the probing thread
+     */
+    public void probe(final List<GameService.Region> regions, final ProbeCallback callback)
+    {
+        final AddressResolver resolver;
+        final int timeout;
+        final int attempts;
+
+        synchronized (this)
+        {
+            resolver = this.resolver;
+            timeout = this.timeout;
+            attempts = this.attempts;
+        }
+
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                List<Result> results = measure(regions, resolver, timeout, attempts);
+
+                synchronized (RegionProber.this)
+                {
+                    ranked = Collections.unmodifiableList(results);
+                    probed = System.currentTimeMillis();
+                }
+
+                if (callback != null)
+                {
+                    callback.complete(results);
+                }
+            }
+        }, "region-prober");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static List<Result> measure(
+        List<GameService.Region> regions, AddressResolver resolver, int timeout, int attempts)
+    {
+        int count = regions.size();
+        InetSocketAddress[] addresses = new InetSocketAddress[count];
+        double[] best = new double[count];
+
+        for (int i = 0; i < count; i++)
+        {
+            addresses[i] = resolver.addressOf(regions.get(i));
+            best[i] = -1;
+        }
+
+        for (int attempt = 0; attempt < attempts; attempt++)
+        {
+            try
+            {
+                connectAll(addresses, best, timeout);
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+                break;
+            }
+        }
+
+        ArrayList<Result> results = new ArrayList<Result>(count);
+
+        for (int i = 0; i < count; i++)
+        {
+            results.add(new Result(regions.get(i), best[i]));
+        }
+
+        Collections.sort(results, ByRtt);
+        return results;
+    }
+
+    /**
+     * Connects to every address at once, updating the best times of the ones that connected within the timeout
+     */
+    private static void connectAll(InetSocketAddress[] addresses, double[] best, int timeout) throws IOException
+    {
+        Selector selector = Selector.open();
+        ArrayList<SocketChannel> channels = new ArrayList<SocketChannel>();
+
+        try
+        {
+            long[] started = new long[addresses.length];
+            int pending = 0;
+
+            for (int i = 0; i < addresses.length; i++)
+            {
+                InetSocketAddress address = addresses[i];
+
+                if (address == null || address.isUnresolved())
+                    continue;
+
+                SocketChannel channel = SocketChannel.open();
+                channels.add(channel);
+
+                try
+                {
+                    channel.configureBlocking(false);
+
+                    started[i] = System.nanoTime();
+
+                    if (channel.connect(address))
+                    {
+                        record(best, i, System.nanoTime() - started[i]);
+                        continue;
+                    }
+
+                    channel.register(selector, SelectionKey.OP_CONNECT, i);
+                    pending++;
+                }
+                catch (IOException e)
+                {
+                    // unreachable at once
+                }
+            }
+
+            long deadline = System.nanoTime() + timeout * 1000000L;
+
+            while (pending > 0)
+            {
+                long left = (deadline - System.nanoTime()) / 1000000L;
+
+                if (left <= 0)
+                    break;
+
+                selector.select(left);
+
+                long now = System.nanoTime();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+                while (it.hasNext())
+                {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    key.cancel();
+                    pending--;
+
+                    try
+                    {
+                        int index = ((Integer) key.attachment());
+
+                        if (((SocketChannel) key.channel()).finishConnect())
+                        {
+                            record(best, index, now - started[index]);
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        // refused or unreachable
+                    }
+                }
+            }
+        }
+        finally
+        {
+            for (SocketChannel channel : channels)
+            {
+                try
+                {
+                    channel.close();
+                }
+                catch (IOException ignored)
+                {
+                    //
+                }
+            }
+
+            selector.close();
+        }
+    }
+
+    private static void record(double[] best, int index, long nanos)
+    {
+        double rtt = nanos / 1000000.0;
+
+        if (best[index] < 0 || rtt < best[index])
+        {
+            best[index] = rtt;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package org.anthillplatform.runtime.services;
+
+import org.anthillplatform.runtime.requests.Request;
+
+import java.util.*;
+
+/**
+ * Short lived snapshots of the room lists, see GameService.setRoomsCacheTTL.
+ *
+ * A snapshot is kept per access token, game server and region, along with the filter it was requested with,
+ * as what the server lists may depend on who asks. A listing with
+ * the same filter, or a narrower one (the same conditions plus some more), is answered from the snapshot,
+ * filtered locally. A snapshot used after REFRESH_AHEAD of its lifetime is requested again in the background,
+ * so a listing that keeps being repeated never has to wait for the server.
+ */
+class RoomsCache
+{
+    private static final double REFRESH_AHEAD = 0.75;
+    private static final int MAX_SNAPSHOTS = 256;
+
+    private class Snapshot implements GameService.ListGamesCallback
+    {
+        private final String key;
+        private final GameService.RoomsFilter filter;
+        private final boolean showFull;
+        private final boolean myRegionOnly;
+        private final String gameServerName;
+        private final String region;
+        private final LoginService.AccessToken accessToken;
+
+        private List<GameService.Room> rooms;
+        private Request request;
+        private long fetched;
+        private boolean fetching;
+
+        // listings waiting for the first response
+        private final List<Listing> waiting = new ArrayList<Listing>();
+
+        private Snapshot(String key, LoginService.AccessToken accessToken, String gameServerName,
+                         GameService.RoomsFilter filter, boolean myRegionOnly, boolean showFull, String region)
+        {
+            this.key = key;
+            this.accessToken = accessToken;
+            this.gameServerName = gameServerName;
+            this.filter = filter.copy();
+            this.myRegionOnly = myRegionOnly;
+            this.showFull = showFull;
+            this.region = region;
+        }
+
+        private boolean covers(GameService.RoomsFilter filter, boolean showFull)
+        {
+            return (this.showFull || !showFull) && this.filter.covers(filter);
+        }
+
+        private void fetch()
+        {
+            service.requestGames(accessToken, gameServerName, filter, this, myRegionOnly, showFull, region);
+        }
+
+        @Override
+        public void result(GameService service, Request request, Request.Result result, List<GameService.Room> rooms)
+        {
+            List<Listing> listings;
+
+            synchronized (RoomsCache.this)
+            {
+                fetching = false;
+
+                if (result == Request.Result.success)
+                {
+                    this.rooms = rooms;
+                    this.request = request;
+                    this.fetched = System.currentTimeMillis();
+                }
+                else if (this.rooms == null && snapshots.get(key) == this)
+                {
+                    // nothing to serve from
+                    snapshots.remove(key);
+                }
+
+                listings = new ArrayList<Listing>(waiting);
+                waiting.clear();
+            }
+
+            for (Listing listing : listings)
+            {
+                if (result == Request.Result.success)
+                {
+                    listing.serve(request, rooms);
+                }
+                else
+                {
+                    listing.callback.result(service, request, result, null);
+                }
+            }
+        }
+    }
+
+    private class Listing
+    {
+        private final CompiledRoomsFilter filter;
+        private final boolean showFull;
+        private final GameService.ListGamesCallback callback;
+
+        private Listing(GameService.RoomsFilter filter, boolean showFull, GameService.ListGamesCallback callback)
+        {
+            this.filter = filter.compile();
+            this.showFull = showFull;
+            this.callback = callback;
+        }
+
+        private void serve(Request request, List<GameService.Room> rooms)
+        {
+            callback.result(service, request, Request.Result.success, filter.filter(rooms, showFull));
+        }
+    }
+
+    private final GameService service;
+    private final LinkedHashMap<String, Snapshot> snapshots;
+    private long ttl;
+
+    RoomsCache(GameService service, long ttl)
+    {
+        this.service = service;
+        this.ttl = ttl;
+
+        // the listings repeated the least recently are forgotten first
+        this.snapshots = new LinkedHashMap<String, Snapshot>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Snapshot> eldest)
+            {
+                return size() > MAX_SNAPSHOTS;
+            }
+        };
+    }
+
+    synchronized long getTTL()
+    {
+        return ttl;
+    }
+
+    synchronized void setTTL(long ttl)
+    {
+        this.ttl = ttl;
+
+        if (ttl <= 0)
+        {
+            snapshots.clear();
+        }
+    }
+
+    synchronized void clear()
+    {
+        snapshots.clear();
+    }
+
+    void list(
+        LoginService.AccessToken accessToken,
+        String gameServerName,
+        GameService.RoomsFilter filter,
+        GameService.ListGamesCallback callback,
+        boolean myRegionOnly,
+        boolean showFull,
+        String region)
+    {
+        String key = accessToken.get() + "\n" + gameServerName + "/" + region + "/" + myRegionOnly;
+        Listing listing = new Listing(filter, showFull, callback);
+
+        Snapshot snapshot;
+        List<GameService.Room> rooms = null;
+        Request request = null;
+        boolean fetch = false;
+
+        synchronized (this)
+        {
+            snapshot = snapshots.get(key);
+            long now = System.currentTimeMillis();
+
+            if (snapshot != null && !snapshot.covers(filter, showFull))
+            {
+                snapshot = null;
+            }
+
+            if (snapshot != null && snapshot.rooms != null && now - snapshot.fetched >= ttl)
+            {
+                // expired
+                snapshot = null;
+            }
+
+            if (snapshot == null)
+            {
+                snapshot = new Snapshot(key, accessToken, gameServerName, filter, myRegionOnly, showFull, region);
+                snapshots.put(key, snapshot);
+            }
+
+            if (snapshot.rooms == null)
+            {
+                snapshot.waiting.add(listing);
+                fetch = !snapshot.fetching;
+            }
+            else
+            {
+                rooms = snapshot.rooms;
+                request = snapshot.request;
+                fetch = !snapshot.fetching && now - snapshot.fetched >= ttl * REFRESH_AHEAD;
+            }
+
+            if (fetch)
+            {
+                snapshot.fetching = true;
+            }
+        }
+
+        if (fetch)
+        {
+            snapshot.fetch();
+        }
+
+        if (rooms != null)
+        {
+            listing.serve(request, rooms);
+        }
+    }
+}
@@ -3,11 +3,10 @@ package org.anthillplatform.runtime.services;
 import org.anthillplatform.runtime.requests.JsonRequest;
 import org.anthillplatform.runtime.AnthillRuntime;
 import org.anthillplatform.runtime.requests.Request;
-import org.anthillplatform.runtime.util.Utils;
+import org.anthillplatform.runtime.util.Timestamps;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.text.SimpleDateFormat;
 import java.util.*;
 
 /**
@@ -290,10 +289,8 @@ public class StoreService extends Service
                 {
                     try
                     {
-                        SimpleDateFormat format = getTimeFormat();
-
-                        timeStart = format.parse(time.getString("start"));
-                        timeEnd = format.parse(time.getString("end"));
+                        timeStart = Timestamps.parse(time.getString("start"));
+                        timeEnd = Timestamps.parse(time.getString("end"));
                     }
                     catch (Exception ignored)
                     {
@@ -635,9 +632,4 @@ public class StoreService extends Service
         jsonRequest.setToken(accessToken);
         jsonRequest.post(fields);
     }
-
-    private static SimpleDateFormat getTimeFormat()
-    {
-        return Utils.DATE_FORMAT;
-    }
 }
@@ -0,0 +1,70 @@
+package org.anthillplatform.runtime.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with a "full jitter": each next delay is picked at random between zero and
+ * an exponentially growing cap, so a crowd of clients that lost connection at the same moment
+ * would not come back all at once.
+ */
+public class Backoff
+{
+    public static final long DEFAULT_INITIAL_DELAY = 500;
+    public static final long DEFAULT_MAX_DELAY = 30000;
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private final int maxAttempts;
+    private int attempt;
+
+    public Backoff()
+    {
+        this(DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY, 0);
+    }
+
+    /**
+     * @param initialDelay a cap of the first delay, in milliseconds
+     * @param maxDelay a cap the delays would never exceed, in milliseconds
+     * @param maxAttempts how many delays can be given until reset(), or 0 for no limit
+     */
+    public Backoff(long initialDelay, long maxDelay, int maxAttempts)
+    {
+        if (initialDelay <= 0 || maxDelay < initialDelay)
+            throw new IllegalArgumentException("Bad backoff delays");
+
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.maxAttempts = maxAttempts;
+        this.attempt = 0;
+    }
+
+    /**
+     * @return a delay in milliseconds before the next attempt, or -1 if attempts are exhausted
+     */
+    public synchronized long nextDelay()
+    {
+        if (maxAttempts > 0 && attempt >= maxAttempts)
+            return -1;
+
+        long cap = initialDelay << Math.min(attempt, 30);
+
+        if (cap <= 0 || cap > maxDelay)
+        {
+            cap = maxDelay;
+        }
+
+        attempt++;
+
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    public synchronized int getAttempt()
+    {
+        return attempt;
+    }
+
+    public synchronized void reset()
+    {
+        attempt = 0;
+    }
+}
@@ -0,0 +1,477 @@
+package org.anthillplatform.runtime.util;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A compact binary (CBOR, RFC 7049) representation of org.json values, used by the JSON-RPC sessions
+ * once the server agrees to it (see WebSocketJsonRPC.Options.offerBinaryEncoding).
+ *
+ * Only the subset JSON can express is supported: maps with text keys, arrays, text, integers,
+ * floating point numbers, booleans and null. Malformed input causes a JSONException, same as
+ * a bad JSON text would.
+ */
+public class Cbor
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+    private static final int MAJOR_TAG = 6;
+    private static final int MAJOR_SIMPLE = 7;
+
+    private static final int FALSE = 0xf4;
+    private static final int TRUE = 0xf5;
+    private static final int NULL = 0xf6;
+    private static final int UNDEFINED = 0xf7;
+    private static final int FLOAT16 = 0xf9;
+    private static final int FLOAT32 = 0xfa;
+    private static final int FLOAT64 = 0xfb;
+    private static final int BREAK = 0xff;
+    private static final int INDEFINITE = 31;
+
+    public static byte[] encode(Object value)
+    {
+        Encoder encoder = new Encoder();
+        encoder.write(value);
+        return encoder.toByteArray();
+    }
+
+    public static Object decode(ByteBuffer data)
+    {
+        Object result = new Decoder(data).read();
+
+        if (result == BreakMarker)
+            throw new JSONException("Unexpected break");
+
+        if (data.hasRemaining())
+            throw new JSONException("Trailing data after CBOR value");
+
+        return result;
+    }
+
+    public static Object decode(byte[] data)
+    {
+        return decode(ByteBuffer.wrap(data));
+    }
+
+    private static class Encoder
+    {
+        private byte[] buffer = new byte[256];
+        private int position = 0;
+
+        private void ensure(int count)
+        {
+            if (position + count > buffer.length)
+            {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + count));
+            }
+        }
+
+        private void put(int b)
+        {
+            ensure(1);
+            buffer[position++] = (byte)b;
+        }
+
+        private void put(byte[] data)
+        {
+            ensure(data.length);
+            System.arraycopy(data, 0, buffer, position, data.length);
+            position += data.length;
+        }
+
+        private void head(int major, long value)
+        {
+            int type = major << 5;
+
+            if (value < 24)
+            {
+                put(type | (int)value);
+            }
+            else if (value < 0x100)
+            {
+                put(type | 24);
+                put((int)value);
+            }
+            else if (value < 0x10000)
+            {
+                put(type | 25);
+                put((int)(value >> 8));
+                put((int)value);
+            }
+            else if (value < 0x100000000L)
+            {
+                put(type | 26);
+
+                for (int shift = 24; shift >= 0; shift -= 8)
+                    put((int)(value >> shift));
+            }
+            else
+            {
+                put(type | 27);
+
+                for (int shift = 56; shift >= 0; shift -= 8)
+                    put((int)(value >> shift));
+            }
+        }
+
+        private void writeLong(long value)
+        {
+            if (value >= 0)
+            {
+                head(MAJOR_UNSIGNED, value);
+            }
+            else
+            {
+                head(MAJOR_NEGATIVE, -1 - value);
+            }
+        }
+
+        private void writeDouble(double value)
+        {
+            long bits = Double.doubleToLongBits(value);
+
+            put(FLOAT64);
+
+            for (int shift = 56; shift >= 0; shift -= 8)
+                put((int)(bits >> shift));
+        }
+
+        private void writeText(String value)
+        {
+            byte[] data = value.getBytes(UTF8);
+            head(MAJOR_TEXT, data.length);
+            put(data);
+        }
+
+        public void write(Object value)
+        {
+            if (value == null || value == JSONObject.NULL)
+            {
+                put(NULL);
+            }
+            else if (value instanceof String)
+            {
+                writeText(((String) value));
+            }
+            else if (value instanceof JSONObject)
+            {
+                JSONObject object = ((JSONObject) value);
+
+                head(MAJOR_MAP, object.length());
+
+                for (String key : object.keySet())
+                {
+                    writeText(key);
+                    write(object.opt(key));
+                }
+            }
+            else if (value instanceof JSONArray)
+            {
+                JSONArray array = ((JSONArray) value);
+                int length = array.length();
+
+                head(MAJOR_ARRAY, length);
+
+                for (int i = 0; i < length; i++)
+                {
+                    write(array.opt(i));
+                }
+            }
+            else if (value instanceof Boolean)
+            {
+                put(((Boolean) value) ? TRUE : FALSE);
+            }
+            else if (value instanceof Integer || value instanceof Long ||
+                     value instanceof Short || value instanceof Byte)
+            {
+                writeLong(((Number) value).longValue());
+            }
+            else if (value instanceof BigInteger && ((BigInteger) value).bitLength() < 64)
+            {
+                writeLong(((BigInteger) value).longValue());
+            }
+            else if (value instanceof Number)
+            {
+                writeDouble(((Number) value).doubleValue());
+            }
+            else if (value instanceof Enum || value instanceof Character)
+            {
+                writeText(value.toString());
+            }
+            else
+            {
+                // maps, collections, arrays and beans the same way org.json would serialize them
+                Object wrapped = JSONObject.wrap(value);
+
+                if (wrapped == null)
+                    throw new JSONException("Cannot encode " + value.getClass().getName());
+
+                write(wrapped);
+            }
+        }
+
+        public byte[] toByteArray()
+        {
+            return Arrays.copyOf(buffer, position);
+        }
+    }
+
+    private static final Object BreakMarker = new Object();
+
+    private static class Decoder
+    {
+        private final ByteBuffer data;
+
+        private Decoder(ByteBuffer data)
+        {
+            this.data = data;
+        }
+
+        private int next()
+        {
+            if (!data.hasRemaining())
+                throw new JSONException("Unexpected end of CBOR data");
+
+            return data.get() & 0xff;
+        }
+
+        private long argument(int info)
+        {
+            if (info < 24)
+                return info;
+
+            int count;
+
+            switch (info)
+            {
+                case 24: count = 1; break;
+                case 25: count = 2; break;
+                case 26: count = 4; break;
+                case 27: count = 8; break;
+                default:
+                    throw new JSONException("Bad CBOR argument: " + info);
+            }
+
+            long value = 0;
+
+            for (int i = 0; i < count; i++)
+            {
+                value = (value << 8) | next();
+            }
+
+            return value;
+        }
+
+        private int length(int info)
+        {
+            long length = argument(info);
+
+            if (length < 0 || length > data.remaining())
+                throw new JSONException("Bad CBOR length: " + length);
+
+            return (int)length;
+        }
+
+        private Object integer(long value)
+        {
+            if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE)
+                return (int)value;
+
+            return value;
+        }
+
+        private String text(int info)
+        {
+            if (info == INDEFINITE)
+            {
+                StringBuilder builder = new StringBuilder();
+
+                while (true)
+                {
+                    int initial = next();
+
+                    if (initial == BREAK)
+                        return builder.toString();
+
+                    if ((initial >> 5) != MAJOR_TEXT || (initial & 31) == INDEFINITE)
+                        throw new JSONException("Bad CBOR text chunk");
+
+                    builder.append(text(initial & 31));
+                }
+            }
+
+            int length = length(info);
+
+            if (!data.hasArray())
+            {
+                byte[] bytes = new byte[length];
+                data.get(bytes);
+                return new String(bytes, UTF8);
+            }
+
+            String result = new String(data.array(), data.arrayOffset() + data.position(), length, UTF8);
+            data.position(data.position() + length);
+            return result;
+        }
+
+        private double halfToDouble(int half)
+        {
+            int exponent = (half >> 10) & 0x1f;
+            int mantissa = half & 0x3ff;
+            double value;
+
+            if (exponent == 0)
+            {
+                value = mantissa * Math.pow(2, -24);
+            }
+            else if (exponent != 31)
+            {
+                value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+            }
+            else
+            {
+                value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+            }
+
+            return (half & 0x8000) != 0 ? -value : value;
+        }
+
+        public Object read()
+        {
+            int initial = next();
+
+            if (initial == BREAK)
+                return BreakMarker;
+
+            int major = initial >> 5;
+            int info = initial & 31;
+
+            switch (major)
+            {
+                case MAJOR_UNSIGNED:
+                {
+                    long value = argument(info);
+
+                    if (value < 0)
+                    {
+                        // does not fit into a long
+                        return new BigDecimal(new BigInteger(Long.toUnsignedString(value)));
+                    }
+
+                    return integer(value);
+                }
+                case MAJOR_NEGATIVE:
+                {
+                    long value = argument(info);
+
+                    if (value < 0)
+                    {
+                        return new BigDecimal(new BigInteger(Long.toUnsignedString(value)).negate().subtract(
+                            BigInteger.ONE));
+                    }
+
+                    return integer(-1 - value);
+                }
+                case MAJOR_TEXT:
+                {
+                    return text(info);
+                }
+                case MAJOR_ARRAY:
+                {
+                    JSONArray array = new JSONArray();
+
+                    if (info == INDEFINITE)
+                    {
+                        while (true)
+                        {
+                            Object item = read();
+
+                            if (item == BreakMarker)
+                                break;
+
+                            array.put(item);
+                        }
+                    }
+                    else
+                    {
+                        for (long i = 0, t = argument(info); i < t; i++)
+                        {
+                            Object item = read();
+
+                            if (item == BreakMarker)
+                                throw new JSONException("Unexpected break");
+
+                            array.put(item);
+                        }
+                    }
+
+                    return array;
+                }
+                case MAJOR_MAP:
+                {
+                    JSONObject object = new JSONObject();
+                    long count = info == INDEFINITE ? Long.MAX_VALUE : argument(info);
+
+                    for (long i = 0; i < count; i++)
+                    {
+                        Object key = read();
+
+                        if (key == BreakMarker && info == INDEFINITE)
+                            break;
+
+                        if (!(key instanceof String))
+                            throw new JSONException("CBOR map keys should be text");
+
+                        Object value = read();
+
+                        if (value == BreakMarker)
+                            throw new JSONException("Unexpected break");
+
+                        object.put(((String) key), value);
+                    }
+
+                    return object;
+                }
+                case MAJOR_TAG:
+                {
+                    // tags carry no meaning for JSON, so just the tagged value is taken
+                    argument(info);
+                    return read();
+                }
+                case MAJOR_SIMPLE:
+                {
+                    switch (initial)
+                    {
+                        case FALSE: return false;
+                        case TRUE: return true;
+                        case NULL:
+                        case UNDEFINED: return JSONObject.NULL;
+                        case FLOAT16: return halfToDouble((int)argument(25));
+                        case FLOAT32: return (double)Float.intBitsToFloat((int)argument(26));
+                        case FLOAT64: return Double.longBitsToDouble(argument(27));
+                    }
+
+                    throw new JSONException("Unsupported CBOR simple value: " + initial);
+                }
+                case MAJOR_BYTES:
+                default:
+                {
+                    throw new JSONException("Unsupported CBOR major type: " + major);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package org.anthillplatform.runtime.util;
+
+import org.anthillplatform.runtime.AnthillRuntime;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens the WebSocket connections of the JSON-RPC sessions (MessageSession, PartySession etc).
+ *
+ * All secure connections are made with the runtime's TLS context (see AnthillRuntime.getSSLContext), so a new
+ * session (or a reconnect) to a host already talked to resumes the cached TLS session instead of doing
+ * a full handshake. The manager also keeps
+ * track of the connections, so they could be counted per host, or closed all at once.
+ *
+ * Note that each session still needs a socket of its own: the sessions live on different endpoints
+ * (and often, different hosts), and the server side has no way to route several of them over one connection.
+ */
+public class ConnectionManager
+{
+    private final AnthillRuntime runtime;
+    private final Set<WebSocketJsonRPC> connections;
+    private final RpcMetrics metrics;
+
+    /**
+     * @param runtime a runtime to take the TLS context of the secure connections from
+     */
+    public ConnectionManager(AnthillRuntime runtime)
+    {
+        this.runtime = runtime;
+        this.connections = Collections.newSetFromMap(new ConcurrentHashMap<WebSocketJsonRPC, Boolean>());
+        this.metrics = new RpcMetrics();
+    }
+
+    /**
+     * Starts connecting, the result is reported to the connection's onOpen / onClose as usual
+     */
+    public void connect(WebSocketJsonRPC connection) throws IOException, GeneralSecurityException
+    {
+        if ("wss".equals(connection.getURI().getScheme()))
+        {
+            connection.setSocket(runtime.getSSLContext().getSocketFactory().createSocket());
+        }
+
+        connection.getMetrics().setParent(metrics);
+
+        prune();
+        connections.add(connection);
+
+        connection.connect();
+    }
+
+    private void prune()
+    {
+        Iterator<WebSocketJsonRPC> it = connections.iterator();
+
+        while (it.hasNext())
+        {
+            if (it.next().isClosed())
+            {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return how many connections are open (or being opened)
+     */
+    public int getConnectionsCount()
+    {
+        prune();
+        return connections.size();
+    }
+
+    /**
+     * @return how many connections to a given host are open (or being opened)
+     */
+    public int getConnectionsCount(String host)
+    {
+        prune();
+
+        int count = 0;
+
+        for (WebSocketJsonRPC connection : connections)
+        {
+            if (host.equalsIgnoreCase(connection.getURI().getHost()))
+            {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @return metrics of all connections opened by this manager, aggregated
+     */
+    public RpcMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * @return how many requests sent over the open connections are still waiting for their responses
+     */
+    public int getPendingRequestsCount()
+    {
+        int count = 0;
+
+        for (WebSocketJsonRPC connection : connections)
+        {
+            if (!connection.isClosed())
+            {
+                count += connection.getPendingRequestsCount();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @return how many calls from the servers are waiting for their deferred responses
+     */
+    public int getPendingCallsCount()
+    {
+        int count = 0;
+
+        for (WebSocketJsonRPC connection : connections)
+        {
+            if (!connection.isClosed())
+            {
+                count += connection.getPendingCallsCount();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Closes every connection opened by this manager. The connections flush their queued frames
+     * (see WebSocketJsonRPC.Options.closeFlushTimeout) all at the same time, so this takes
+     * no longer than the longest of the timeouts.
+     */
+    public void closeAll()
+    {
+        List<WebSocketJsonRPC> closing = new ArrayList<WebSocketJsonRPC>(connections);
+        connections.clear();
+
+        long started = System.nanoTime();
+
+        for (WebSocketJsonRPC connection : closing)
+        {
+            // the others are flushing meanwhile, so the waits overlap
+            connection.flush(started + TimeUnit.MILLISECONDS.toNanos(connection.getCloseFlushTimeout()));
+        }
+
+        for (WebSocketJsonRPC connection : closing)
+        {
+            connection.closeNow();
+        }
+    }
+}
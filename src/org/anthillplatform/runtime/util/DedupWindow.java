@@ -0,0 +1,144 @@
+package org.anthillplatform.runtime.util;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the most recent ids (up to a fixed capacity) to tell the ones seen before.
+ *
+ * Only 64-bit hashes of the ids are kept, in a flat open addressing table plus a ring of the same hashes in
+ * order of arrival, so the memory footprint is fixed (24 to 40 bytes per id) no matter how long the ids are.
+ * Once full, the oldest id is forgotten to make room. Two different ids could in theory share a hash,
+ * but with 64 bits the chance of that within a window is negligible.
+ */
+public class DedupWindow
+{
+    private final long[] ring;
+    private final long[] table;
+    private final int mask;
+    private int head;
+    private int size;
+
+    public DedupWindow(int capacity)
+    {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity should be positive");
+
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+
+        this.ring = new long[capacity];
+        this.table = new long[tableSize];
+        this.mask = tableSize - 1;
+    }
+
+    private static long hash(String id)
+    {
+        // FNV-1a over the chars, followed by a finalizer to spread the bits
+        long h = 0xcbf29ce484222325L;
+
+        for (int i = 0, t = id.length(); i < t; i++)
+        {
+            h ^= id.charAt(i);
+            h *= 0x100000001b3L;
+        }
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+
+        // zero marks an empty slot
+        return h != 0 ? h : 1;
+    }
+
+    private int slotOf(long hash)
+    {
+        int slot = (int)hash & mask;
+
+        while (table[slot] != 0 && table[slot] != hash)
+        {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    /**
+     * @return true if the id is new (and now remembered), false if it has been seen within the window
+     */
+    public synchronized boolean add(String id)
+    {
+        long hash = hash(id);
+        int slot = slotOf(hash);
+
+        if (table[slot] == hash)
+            return false;
+
+        if (size == ring.length)
+        {
+            // forget the oldest one
+            evict(ring[head]);
+            size--;
+        }
+
+        table[slotOf(hash)] = hash;
+        ring[(head + size) % ring.length] = hash;
+        size++;
+
+        return true;
+    }
+
+    public synchronized boolean contains(String id)
+    {
+        long hash = hash(id);
+        return table[slotOf(hash)] == hash;
+    }
+
+    private void evict(long hash)
+    {
+        head = (head + 1) % ring.length;
+
+        int slot = slotOf(hash);
+
+        if (table[slot] != hash)
+            return;
+
+        table[slot] = 0;
+
+        // shift the following entries of the probe chain back, so lookups would not stop at the gap
+        int next = (slot + 1) & mask;
+
+        while (table[next] != 0)
+        {
+            long moved = table[next];
+            int home = (int)moved & mask;
+
+            // move the entry unless its home position lies cyclically within (slot, next]
+            boolean stays = slot <= next ? (home > slot && home <= next) : (home > slot || home <= next);
+
+            if (!stays)
+            {
+                table[slot] = moved;
+                table[next] = 0;
+                slot = next;
+            }
+
+            next = (next + 1) & mask;
+        }
+    }
+
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    public int getCapacity()
+    {
+        return ring.length;
+    }
+
+    public synchronized void clear()
+    {
+        Arrays.fill(table, 0);
+        head = 0;
+        size = 0;
+    }
+}
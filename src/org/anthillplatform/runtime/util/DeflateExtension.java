@@ -0,0 +1,295 @@
+package org.anthillplatform.runtime.util;
+
+import org.java_websocket.enums.Opcode;
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.extensions.CompressionExtension;
+import org.java_websocket.extensions.ExtensionRequestData;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.ControlFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.FramedataImpl1;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A client side "permessage-deflate" WebSocket extension (RFC 7692).
+ *
+ * Unlike the stock one, it leaves messages smaller than a threshold uncompressed (small frames rarely
+ * get any smaller, but cost CPU), and lets to configure context takeover and the server's window size.
+ * Outgoing messages are always compressed with the full (15 bits) window, as that's the only one
+ * java.util.zip.Deflater supports, so servers asking for a smaller client window are refused.
+ */
+public class DeflateExtension extends CompressionExtension
+{
+    private static final String EXTENSION_NAME = "permessage-deflate";
+    private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+    private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+    private static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+
+    private static final int MAX_WINDOW_BITS = 15;
+    private static final int MIN_WINDOW_BITS = 8;
+    private static final byte[] TAIL = {0x00, 0x00, (byte)0xff, (byte)0xff};
+    private static final int BUFFER_SIZE = 1024;
+
+    private final int threshold;
+    private final boolean contextTakeover;
+    private final int serverWindowBits;
+    private final int level;
+
+    // negotiated
+    private boolean serverNoContextTakeover;
+    private boolean clientNoContextTakeover;
+
+    private Deflater deflater;
+    private Inflater inflater;
+    private boolean inflatingMessage;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    /**
+     * @param threshold messages with payload smaller than this (in bytes) are sent uncompressed
+     * @param contextTakeover if false, both sides are asked to compress each message independently,
+     *                        which is worse for the ratio, but keeps no compression state between messages
+     * @param serverWindowBits a LZ77 window size (8..15) for the server to use, smaller ones require less memory
+     * @param level a compression level, see Deflater
+     */
+    public DeflateExtension(int threshold, boolean contextTakeover, int serverWindowBits, int level)
+    {
+        if (serverWindowBits < MIN_WINDOW_BITS || serverWindowBits > MAX_WINDOW_BITS)
+            throw new IllegalArgumentException("serverWindowBits should be within 8..15");
+
+        this.threshold = threshold;
+        this.contextTakeover = contextTakeover;
+        this.serverWindowBits = serverWindowBits;
+        this.level = level;
+
+        this.serverNoContextTakeover = !contextTakeover;
+        this.clientNoContextTakeover = !contextTakeover;
+        this.deflater = new Deflater(level, true);
+        this.inflater = new Inflater(true);
+    }
+
+    private static byte[] payloadOf(Framedata frame)
+    {
+        ByteBuffer payload = frame.getPayloadData().duplicate();
+        byte[] data = new byte[payload.remaining()];
+        payload.get(data);
+        return data;
+    }
+
+    @Override
+    public void encodeFrame(Framedata frame)
+    {
+        // only complete messages are compressed, fragments and control frames are sent as is
+        if (frame instanceof ControlFrame || !frame.isFin() || frame.getOpcode() == Opcode.CONTINUOUS)
+            return;
+
+        if (frame.getPayloadData().remaining() < threshold)
+            return;
+
+        byte[] data = payloadOf(frame);
+        ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 2 + 16);
+
+        deflater.setInput(data);
+
+        int length;
+
+        while ((length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH)) > 0)
+        {
+            output.write(buffer, 0, length);
+        }
+
+        byte[] compressed = output.toByteArray();
+        int compressedLength = compressed.length;
+
+        // the trailing empty block is implied by the protocol
+        if (endsWithTail(compressed))
+        {
+            compressedLength -= TAIL.length;
+        }
+
+        if (clientNoContextTakeover)
+        {
+            deflater.reset();
+        }
+
+        FramedataImpl1 impl = ((FramedataImpl1) frame);
+        impl.setPayload(ByteBuffer.wrap(compressed, 0, compressedLength));
+        impl.setRSV1(true);
+    }
+
+    private static boolean endsWithTail(byte[] data)
+    {
+        if (data.length < TAIL.length)
+            return false;
+
+        for (int i = 0; i < TAIL.length; i++)
+        {
+            if (data[data.length - TAIL.length + i] != TAIL[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public void decodeFrame(Framedata frame) throws InvalidDataException
+    {
+        if (frame instanceof ControlFrame)
+            return;
+
+        if (frame.getOpcode() == Opcode.CONTINUOUS)
+        {
+            if (frame.isRSV1())
+                throw new InvalidDataException(CloseFrame.POLICY_VALIDATION, "RSV1 bit can only be set for the first frame.");
+
+            if (!inflatingMessage)
+                return;
+        }
+        else
+        {
+            if (!frame.isRSV1())
+                return;
+
+            inflatingMessage = true;
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        try
+        {
+            inflate(payloadOf(frame), output);
+
+            if (frame.isFin())
+            {
+                inflate(TAIL, output);
+                inflatingMessage = false;
+
+                if (serverNoContextTakeover)
+                {
+                    inflater.reset();
+                }
+            }
+        }
+        catch (DataFormatException e)
+        {
+            throw new InvalidDataException(CloseFrame.POLICY_VALIDATION, e.getMessage());
+        }
+
+        FramedataImpl1 impl = ((FramedataImpl1) frame);
+        impl.setPayload(ByteBuffer.wrap(output.toByteArray()));
+        impl.setRSV1(false);
+    }
+
+    private void inflate(byte[] data, ByteArrayOutputStream output) throws DataFormatException
+    {
+        inflater.setInput(data);
+
+        while (true)
+        {
+            int length = inflater.inflate(buffer);
+
+            if (length > 0)
+            {
+                output.write(buffer, 0, length);
+            }
+            else if (inflater.needsInput() || inflater.finished() || inflater.needsDictionary())
+            {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public boolean acceptProvidedExtensionAsClient(String inputExtensionHeader)
+    {
+        for (String extension : inputExtensionHeader.split(","))
+        {
+            ExtensionRequestData data = ExtensionRequestData.parseExtensionRequest(extension);
+
+            if (!EXTENSION_NAME.equalsIgnoreCase(data.getExtensionName()))
+                continue;
+
+            Map<String, String> parameters = data.getExtensionParameters();
+
+            String clientWindowBits = parameters.get(CLIENT_MAX_WINDOW_BITS);
+
+            if (clientWindowBits != null)
+            {
+                try
+                {
+                    if (Integer.parseInt(clientWindowBits.trim()) < MAX_WINDOW_BITS)
+                        return false;
+                }
+                catch (NumberFormatException e)
+                {
+                    return false;
+                }
+            }
+
+            serverNoContextTakeover = !contextTakeover || parameters.containsKey(SERVER_NO_CONTEXT_TAKEOVER);
+            clientNoContextTakeover = !contextTakeover || parameters.containsKey(CLIENT_NO_CONTEXT_TAKEOVER);
+
+            return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public boolean acceptProvidedExtensionAsServer(String inputExtensionHeader)
+    {
+        return false;
+    }
+
+    @Override
+    public String getProvidedExtensionAsClient()
+    {
+        StringBuilder header = new StringBuilder(EXTENSION_NAME);
+
+        if (!contextTakeover)
+        {
+            header.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+            header.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+        }
+
+        if (serverWindowBits < MAX_WINDOW_BITS)
+        {
+            header.append("; ").append(SERVER_MAX_WINDOW_BITS).append("=").append(serverWindowBits);
+        }
+
+        return header.toString();
+    }
+
+    @Override
+    public String getProvidedExtensionAsServer()
+    {
+        return EXTENSION_NAME;
+    }
+
+    @Override
+    public IExtension copyInstance()
+    {
+        return new DeflateExtension(threshold, contextTakeover, serverWindowBits, level);
+    }
+
+    @Override
+    public void reset()
+    {
+        deflater.reset();
+        inflater.reset();
+        inflatingMessage = false;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DeflateExtension";
+    }
+}
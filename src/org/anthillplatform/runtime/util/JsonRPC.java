@@ -5,37 +5,436 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 public abstract class JsonRPC
 {
+    public static final int DEFAULT_MAX_PENDING_CALLS = 64;
+
+    // the error a request fails with if it could not be sent at all
+    public static final int NOT_SENT_ERROR = -32002;
+
     private static final ResponseHandler NoResponse = new ResponseHandler()
     {
         public void success(Object response) {}
         public void error(int code, String message, String data) {}
     };
 
-    private HashMap<String, MethodHandler> handlers;
-    private HashMap<Integer, ResponseHandler> responseHandlers;
-    private int nextId = 1;
+    private Map<String, MethodHandler> handlers;
+    private Map<Integer, PendingRequest> responseHandlers;
+    private AtomicInteger nextId = new AtomicInteger(1);
+    private KeyedExecutor dispatcher;
+    private DispatchKey dispatchKey;
+    private AtomicInteger pendingCalls = new AtomicInteger(0);
+    private int maxPendingCalls = DEFAULT_MAX_PENDING_CALLS;
+    private RpcMetrics metrics = new RpcMetrics();
 
     public interface MethodHandler
     {
+        /**
+         * @return a response, or a Deferred (or a CompletionStage) to respond later,
+         *         so the handler would not have to block while doing I/O
+         */
         Object called(Object params) throws JsonRPCException;
     }
 
+    /**
+     * A response to a call that is not ready yet. Return it from MethodHandler.called,
+     * and resolve (or reject) it later from any thread; only the first completion counts.
+     */
+    public static class Deferred
+    {
+        private ResponseHandler handler;
+        private boolean done;
+        private boolean failed;
+        private Object result;
+        private int code;
+        private String message;
+        private String data;
+
+        public void resolve(Object result)
+        {
+            ResponseHandler handler;
+
+            synchronized (this)
+            {
+                if (done)
+                    return;
+
+                this.done = true;
+                this.result = result;
+
+                handler = this.handler;
+            }
+
+            if (handler != null)
+            {
+                handler.success(result);
+            }
+        }
+
+        public void reject(int code, String message, String data)
+        {
+            ResponseHandler handler;
+
+            synchronized (this)
+            {
+                if (done)
+                    return;
+
+                this.done = true;
+                this.failed = true;
+                this.code = code;
+                this.message = message;
+                this.data = data;
+
+                handler = this.handler;
+            }
+
+            if (handler != null)
+            {
+                handler.error(code, message, data);
+            }
+        }
+
+        public void reject(int code, String message)
+        {
+            reject(code, message, null);
+        }
+
+        public synchronized boolean isDone()
+        {
+            return done;
+        }
+
+        private void setHandler(ResponseHandler handler)
+        {
+            synchronized (this)
+            {
+                if (!done)
+                {
+                    this.handler = handler;
+                    return;
+                }
+            }
+
+            if (failed)
+            {
+                handler.error(code, message, data);
+            }
+            else
+            {
+                handler.success(result);
+            }
+        }
+    }
+
     public interface ResponseHandler
     {
         void success(Object response);
         void error(int code, String message, String data);
     }
 
-    protected abstract void send(String data);
+    /**
+     * Decides which calls should keep their order when processed by a dispatcher (see setDispatcher):
+     * calls with equal keys are processed one after another, calls with different keys may run in parallel.
+     */
+    public interface DispatchKey
+    {
+        /**
+         * @return a key for the call, or null to order it with other calls without a key (and the responses)
+         */
+        Object keyOf(String method, Object params);
+    }
+
+    /**
+     * @return false if the data could not be sent (for example, the connection is congested or closed)
+     */
+    protected abstract boolean send(String data);
+
+    /**
+     * Sends a message as a JSON text by default, could be overridden to use a different encoding
+     */
+    protected boolean send(JSONObject message)
+    {
+        return send(message.toString());
+    }
     public abstract void onError(int code, String message, String data);
 
     public JsonRPC()
     {
-        this.handlers = new HashMap<String, MethodHandler>();
-        this.responseHandlers = new HashMap<Integer, ResponseHandler>();
+        this.handlers = new ConcurrentHashMap<String, MethodHandler>();
+        this.responseHandlers = new ConcurrentHashMap<Integer, PendingRequest>();
+    }
+
+    /**
+     * By default, method handlers and response handlers are called on the thread that has received the message.
+     * With a dispatcher set, they are called on the executor instead, so a slow handler would not hold off
+     * the reading.
+     *
+     * @param executor an executor to call the handlers on, or null to call them on the receiving thread
+     * @param dispatchKey decides which calls should keep their order, if null, all calls are processed in order
+     */
+    public void setDispatcher(Executor executor, DispatchKey dispatchKey)
+    {
+        this.dispatcher = executor != null ? new KeyedExecutor(executor) : null;
+        this.dispatchKey = dispatchKey;
+    }
+
+    /**
+     * Limits how many calls from the other side could wait for their deferred responses (or be handled)
+     * at once, calls above the limit are answered with an error right away
+     */
+    public void setMaxPendingCalls(int maxPendingCalls)
+    {
+        this.maxPendingCalls = maxPendingCalls;
+    }
+
+    /**
+     * @return how many calls from the other side are being handled, or waiting for their deferred responses
+     */
+    public int getPendingCallsCount()
+    {
+        return pendingCalls.get();
+    }
+
+    private void dispatch(String method, JsonRPCEnvelope envelope, Runnable task)
+    {
+        Object params = null;
+
+        if (this.dispatcher != null && method != null)
+        {
+            try
+            {
+                params = envelope.getParams();
+            }
+            catch (JSONException ignored)
+            {
+                // the task will report it
+                method = null;
+            }
+        }
+
+        dispatch(method, params, task);
+    }
+
+    /**
+     * Runs a task as if a call of the method with the params was received, so it is ordered with the calls
+     * of the same key (see setDispatcher). Without a dispatcher, the task is run right away.
+     */
+    public void dispatch(String method, Object params, Runnable task)
+    {
+        KeyedExecutor dispatcher = this.dispatcher;
+
+        if (dispatcher == null)
+        {
+            task.run();
+            return;
+        }
+
+        DispatchKey dispatchKey = this.dispatchKey;
+        Object key = null;
+
+        if (dispatchKey != null && method != null)
+        {
+            key = dispatchKey.keyOf(method, params);
+        }
+
+        dispatcher.execute(key, task);
+    }
+
+    private static class PendingRequest
+    {
+        private final String method;
+        private final ResponseHandler handler;
+        private final long started;
+
+        private PendingRequest(String method, ResponseHandler handler)
+        {
+            this.method = method;
+            this.handler = handler;
+            this.started = System.nanoTime();
+        }
+    }
+
+    public RpcMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Replaces the metrics to record into, for example to keep them across several connections
+     */
+    public void setMetrics(RpcMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return how many requests sent are still waiting for their responses
+     */
+    public int getPendingRequestsCount()
+    {
+        return responseHandlers.size();
+    }
+
+    /**
+     * Fails all the requests still waiting for their responses, for example once the connection is lost
+     * and the responses would never come
+     */
+    public void failPendingRequests(final int code, final String message, final String data)
+    {
+        for (Integer id : responseHandlers.keySet())
+        {
+            PendingRequest pending = responseHandlers.remove(id);
+
+            if (pending == null)
+                continue;
+
+            // no response to measure, the time it has waited says nothing about the latency
+            metrics.requestCancelled(pending.method);
+
+            final ResponseHandler handler = pending.handler;
+
+            if (handler == NoResponse)
+                continue;
+
+            dispatch(null, null, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    handler.error(code, message, data);
+                }
+            });
+        }
+    }
+
+    private void call(MethodHandler handler, String method, JsonRPCEnvelope envelope, int id)
+    {
+        Object params;
+
+        try
+        {
+            params = envelope.getParams();
+        }
+        catch (JSONException e)
+        {
+            metrics.parseError();
+            writeError(-32700, "Parse error", "Bad 'params' field.", id);
+            return;
+        }
+
+        // the slot is taken before the handler is called, as calls could be handled in parallel
+        // (see setDispatcher), and kept if the response is deferred
+        if (pendingCalls.incrementAndGet() > maxPendingCalls)
+        {
+            pendingCalls.decrementAndGet();
+            writeError(-32000, "Server error", "Too many pending calls", id);
+            return;
+        }
+
+        Object response = null;
+        long started = System.nanoTime();
+
+        try
+        {
+            response = handler.called(params);
+        }
+        catch (JsonRPCException e)
+        {
+            writeError(e.code, e.message, e.data, id);
+            return;
+        }
+        finally
+        {
+            metrics.handlerCompleted(method, System.nanoTime() - started);
+
+            if (!(response instanceof Deferred) && !(response instanceof CompletionStage))
+            {
+                pendingCalls.decrementAndGet();
+            }
+        }
+
+        if (response instanceof Deferred)
+        {
+            // respond once it's resolved
+            ((Deferred) response).setHandler(new DeferredResponse(id));
+        }
+        else if (response instanceof CompletionStage)
+        {
+            final DeferredResponse deferredResponse = new DeferredResponse(id);
+
+            ((CompletionStage<?>) response).whenComplete(new BiConsumer<Object, Throwable>()
+            {
+                @Override
+                public void accept(Object result, Throwable throwable)
+                {
+                    if (throwable == null)
+                    {
+                        deferredResponse.success(result);
+                        return;
+                    }
+
+                    Throwable cause = throwable.getCause() != null ? throwable.getCause() : throwable;
+
+                    if (cause instanceof JsonRPCException)
+                    {
+                        JsonRPCException e = ((JsonRPCException) cause);
+                        deferredResponse.error(e.code, e.message, e.data);
+                    }
+                    else
+                    {
+                        deferredResponse.error(-32603, "Internal error", cause.toString());
+                    }
+                }
+            });
+        }
+        else
+        {
+            respond(response, id);
+        }
+    }
+
+    private void respond(Object response, int id)
+    {
+        if (response != null)
+        {
+            writeResponse(response, id);
+        }
+        else
+        {
+            writeError(-32603, "Internal error", "Response cannot be null", id);
+        }
+    }
+
+    private class DeferredResponse implements ResponseHandler
+    {
+        private final int id;
+
+        private DeferredResponse(int id)
+        {
+            this.id = id;
+        }
+
+        @Override
+        public void success(Object response)
+        {
+            pendingCalls.decrementAndGet();
+            respond(response, id);
+        }
+
+        @Override
+        public void error(int code, String message, String data)
+        {
+            pendingCalls.decrementAndGet();
+            writeError(code, message, data, id);
+        }
     }
 
     public class JsonRPCException extends Exception
@@ -99,7 +498,7 @@ public abstract class JsonRPC
             toWrite.put("id", id);
         }
 
-        send(toWrite.toString());
+        send(toWrite);
     }
 
     private void writeResponse(Object result)
@@ -119,74 +518,79 @@ public abstract class JsonRPC
             toWrite.put("id", id);
         }
 
-        send(toWrite.toString());
+        send(toWrite);
     }
 
     public void received(String message)
     {
-        JSONObject msg;
+        JsonRPCEnvelope envelope;
 
         try
         {
-            msg = new JSONObject(message);
+            // only the envelope is parsed here, "params" and "result" are parsed when (if) someone needs them
+            envelope = JsonRPCEnvelope.scan(message);
         }
         catch (JSONException e)
         {
-            writeError(-32700, "Parse error");
+            receivedCorrupted();
             return;
         }
 
-        if (!msg.has("jsonrpc"))
+        received(envelope);
+    }
+
+    /**
+     * Should be called if a message has been received, but could not be decoded
+     */
+    public void receivedCorrupted()
+    {
+        metrics.parseError();
+        writeError(-32700, "Parse error");
+    }
+
+    public void received(JSONObject msg)
+    {
+        received(new JsonRPCEnvelope(msg));
+    }
+
+    private void received(final JsonRPCEnvelope envelope)
+    {
+        if (!envelope.hasVersion())
         {
             writeError(-32600, "Invalid Request", "No 'jsonrpc' field.");
             return;
         }
 
-        if (!msg.getString("jsonrpc").equals("2.0"))
+        if (!"2.0".equals(envelope.getVersion()))
         {
-            writeError(-32600, "Bad version of 'jsonrpc': " + msg.getString("jsonrpc") + ".");
+            writeError(-32600, "Bad version of 'jsonrpc': " + envelope.getVersion() + ".");
             return;
         }
 
-        boolean hasId = msg.has("id") && msg.optInt("id") > 0;
-        boolean hasMethod = msg.has("method") && !msg.optString("method").isEmpty();
-        boolean hasParams = msg.has("params");
-        boolean hasResult = msg.has("result");
-        boolean hasError = msg.has("error");
+        final int id = envelope.getId();
+        final String method = envelope.getMethod();
 
-        Object params = hasParams ? msg.get("params") : null;
-        String method = hasMethod ? msg.getString("method") : null;
-        int id = hasId ? msg.getInt("id") : 0;
-        JSONObject error = hasError ? msg.getJSONObject("error") : null;
-        Object result = hasResult ? msg.get("result") : null;
+        boolean hasId = id > 0;
+        boolean hasMethod = method != null && !method.isEmpty();
+        boolean hasResult = envelope.hasResult();
+        boolean hasError = envelope.hasError();
 
         if (hasId && hasMethod)
         {
             // a request
-            if (handlers.containsKey(method))
+            final MethodHandler handler = handlers.get(method);
+
+            if (handler != null)
             {
                 // call a request
-                Object response;
-
-                try
-                {
-                    response = handlers.get(method).called(params);
-                }
-                catch (JsonRPCException e)
-                {
-                    writeError(e.code, e.message, e.data, id);
-                    return;
-                }
-
-                if (response != null)
-                {
-                    // if a result of callback is a deffered object, then handle it asynchronously
-                    writeResponse(response, id);
-                }
-                else
+                dispatch(method, envelope, new Runnable()
                 {
-                    writeError(-32603, "Internal error", "Response cannot be null", id);
-                }
+                    @Override
+                    public void run()
+                    {
+                        call(handler, method, envelope, id);
+                    }
+                });
             }
             else
             {
@@ -203,26 +607,61 @@ public abstract class JsonRPC
 
             // a success
 
-            if (responseHandlers.containsKey(id))
+            PendingRequest pending = responseHandlers.remove(id);
+
+            if (pending != null)
             {
-                ResponseHandler handler = responseHandlers.get(id);
-                responseHandlers.remove(id);
+                final ResponseHandler handler = pending.handler;
+
+                metrics.requestCompleted(pending.method, System.nanoTime() - pending.started, hasError);
 
                 if (hasResult)
                 {
-                    handler.success(result);
+                    if (handler == NoResponse)
+                        return;
+
+                    dispatch(null, envelope, new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            Object result;
+
+                            try
+                            {
+                                result = envelope.getResult();
+                            }
+                            catch (JSONException e)
+                            {
+                                metrics.parseError();
+                                handler.error(-32700, "Parse error", "Bad 'result' field.");
+                                return;
+                            }
+
+                            handler.success(result);
+                        }
+                    });
                 }
                 else
                 {
-                    if (error.has("code") &&
+                    JSONObject error = errorOf(envelope);
+
+                    if (error != null && error.has("code") &&
                             error.has("message"))
                     {
-                        int responseCode = error.getInt("code");
-                        String responseMessage = error.getString("message");
-                        String responseData = error.has("data") ? error.getString("data") : null;
+                        final int responseCode = error.getInt("code");
+                        final String responseMessage = error.getString("message");
+                        final String responseData = error.has("data") ? error.getString("data") : null;
 
                         // hasError
-                        handler.error(responseCode, responseMessage, responseData);
+                        dispatch(null, envelope, new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                handler.error(responseCode, responseMessage, responseData);
+                            }
+                        });
                     }
                     else
                     {
@@ -238,21 +677,51 @@ public abstract class JsonRPC
         else if (hasMethod)
         {
             // an rpc
-            if (handlers.containsKey(method))
+            final MethodHandler handler = handlers.get(method);
+
+            // nobody is interested, so the params are never even parsed
+            if (handler != null)
             {
-                try
+                dispatch(method, envelope, new Runnable()
                 {
-                    handlers.get(method).called(params);
-                }
-                catch (JsonRPCException ignored)
-                {
-                    //
-                }
+                    @Override
+                    public void run()
+                    {
+                        Object params;
+
+                        try
+                        {
+                            params = envelope.getParams();
+                        }
+                        catch (JSONException e)
+                        {
+                            metrics.parseError();
+                            return;
+                        }
+
+                        long started = System.nanoTime();
+
+                        try
+                        {
+                            handler.called(params);
+                        }
+                        catch (JsonRPCException ignored)
+                        {
+                            //
+                        }
+                        finally
+                        {
+                            metrics.handlerCompleted(method, System.nanoTime() - started);
+                        }
+                    }
+                });
             }
         }
         else if (hasError)
         {
-            if (error.has("code") &&
+            JSONObject error = errorOf(envelope);
+
+            if (error != null && error.has("code") &&
                 error.has("message"))
             {
                 int code = error.getInt("code");
@@ -273,25 +742,38 @@ public abstract class JsonRPC
         }
     }
 
-    public void request(String method, ResponseHandler responseHandler, JSONObject params)
+    private static JSONObject errorOf(JsonRPCEnvelope envelope)
+    {
+        try
+        {
+            return envelope.getError();
+        }
+        catch (JSONException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Sends a request, the response is passed to the handler. If the request could not be sent
+     * (see send), the handler gets a NOT_SENT_ERROR as well.
+     *
+     * @return false if the request could not be sent
+     */
+    public boolean request(String method, ResponseHandler responseHandler, JSONObject params)
     {
         JSONObject toWrite = new JSONObject();
 
         toWrite.put("jsonrpc", "2.0");
         toWrite.put("method", method);
-        toWrite.put("id", nextId);
+        int id = nextId.getAndIncrement();
+        toWrite.put("id", id);
         toWrite.put("params", params);
 
-        if (responseHandler == null)
-            responseHandler = NoResponse;
-
-        responseHandlers.put(nextId, responseHandler);
-        nextId++;
-
-        send(toWrite.toString());
+        return send(method, responseHandler, id, toWrite);
     }
 
-    public void request(String method, ResponseHandler responseHandler, Object... params)
+    public boolean request(String method, ResponseHandler responseHandler, Object... params)
     {
         JSONObject toWrite = new JSONObject();
 
@@ -305,19 +787,42 @@ public abstract class JsonRPC
             p.put(param);
         }
 
-        toWrite.put("id", nextId);
+        int id = nextId.getAndIncrement();
+        toWrite.put("id", id);
         toWrite.put("params", p);
 
+        return send(method, responseHandler, id, toWrite);
+    }
+
+    private boolean send(String method, ResponseHandler responseHandler, int id, JSONObject toWrite)
+    {
         if (responseHandler == null)
             responseHandler = NoResponse;
 
-        responseHandlers.put(nextId, responseHandler);
-        nextId++;
+        responseHandlers.put(id, new PendingRequest(method, responseHandler));
+
+        if (send(toWrite))
+            return true;
+
+        final ResponseHandler handler = responseHandlers.remove(id) != null ? responseHandler : NoResponse;
+
+        if (handler != NoResponse)
+        {
+            // no caller is left waiting for a response that would never come
+            dispatch(null, null, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    handler.error(NOT_SENT_ERROR, "Not sent", null);
+                }
+            });
+        }
 
-        send(toWrite.toString());
+        return false;
     }
 
-    public void rpc(String method, JSONObject params)
+    public boolean rpc(String method, JSONObject params)
     {
         JSONObject toWrite = new JSONObject();
 
@@ -325,10 +830,10 @@ public abstract class JsonRPC
         toWrite.put("method", method);
         toWrite.put("params", params);
 
-        send(toWrite.toString());
+        return send(toWrite);
     }
 
-    public void rpc(String method, Object... params)
+    public boolean rpc(String method, Object... params)
     {
         JSONObject toWrite = new JSONObject();
 
@@ -344,6 +849,6 @@ public abstract class JsonRPC
 
         toWrite.put("params", p);
 
-        send(toWrite.toString());
+        return send(toWrite);
     }
 }
@@ -0,0 +1,465 @@
+package org.anthillplatform.runtime.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * The top level fields of a JSON-RPC message.
+ *
+ * When scanned from a text (see scan), only "jsonrpc", "id" and "method" are decoded right away,
+ * while "params", "result" and "error" are just located, and parsed on the first access. So a message
+ * nobody is interested in costs a single pass over the text, and no garbage tree.
+ *
+ * Note that the skipped values are only checked for balanced brackets and quotes,
+ * the rest of their syntax is validated when (and if) they get parsed. Same goes for duplicate keys:
+ * only the ones above are rejected, like a JSONObject would.
+ */
+public class JsonRPCEnvelope
+{
+    private static final int FIELD_OTHER = 0;
+    private static final int FIELD_JSONRPC = 1;
+    private static final int FIELD_ID = 2;
+    private static final int FIELD_METHOD = 3;
+    private static final int FIELD_PARAMS = 4;
+    private static final int FIELD_RESULT = 5;
+    private static final int FIELD_ERROR = 6;
+
+    private final String source;
+
+    private Object version;
+    private Object id;
+    private Object method;
+
+    // positions of the not yet parsed values in the source, -1 if there is none
+    private int paramsStart = -1, paramsEnd;
+    private int resultStart = -1, resultEnd;
+    private int errorStart = -1, errorEnd;
+
+    private boolean hasParams, hasResult, hasError;
+    private Object params;
+    private Object result;
+    private Object error;
+
+    private JsonRPCEnvelope(String source)
+    {
+        this.source = source;
+    }
+
+    /**
+     * Wraps an already parsed message
+     */
+    public JsonRPCEnvelope(JSONObject message)
+    {
+        this.source = null;
+
+        this.version = message.opt("jsonrpc");
+        this.id = message.opt("id");
+        this.method = message.opt("method");
+
+        this.hasParams = message.has("params");
+        this.hasResult = message.has("result");
+        this.hasError = message.has("error");
+
+        this.params = message.opt("params");
+        this.result = message.opt("result");
+        this.error = message.opt("error");
+    }
+
+    /**
+     * Scans a message text
+     *
+     * @throws JSONException if the text is not a JSON object
+     */
+    public static JsonRPCEnvelope scan(String text) throws JSONException
+    {
+        JsonRPCEnvelope envelope = new JsonRPCEnvelope(text);
+        int length = text.length();
+        int seen = 0;
+
+        int i = skipWhitespace(text, 0);
+
+        if (i >= length || text.charAt(i) != '{')
+            throw new JSONException("A JSON object text must begin with '{'");
+
+        i = skipWhitespace(text, i + 1);
+
+        if (i < length && text.charAt(i) == '}')
+        {
+            i++;
+        }
+        else
+        {
+            while (true)
+            {
+                if (i >= length || text.charAt(i) != '"')
+                    throw new JSONException("Expected a key at " + i);
+
+                int keyStart = i;
+                i = skipString(text, i);
+                int field = fieldOf(text, keyStart, i);
+
+                if (field != FIELD_OTHER)
+                {
+                    if ((seen & (1 << field)) != 0)
+                        throw new JSONException("Duplicate key at " + keyStart);
+
+                    seen |= 1 << field;
+                }
+
+                i = skipWhitespace(text, i);
+
+                if (i >= length || text.charAt(i) != ':')
+                    throw new JSONException("Expected a ':' after a key at " + i);
+
+                i = skipWhitespace(text, i + 1);
+
+                int valueStart = i;
+                i = skipValue(text, i);
+
+                envelope.set(field, valueStart, i);
+
+                i = skipWhitespace(text, i);
+
+                if (i >= length)
+                    throw new JSONException("Unterminated object");
+
+                char c = text.charAt(i++);
+
+                if (c == '}')
+                    break;
+
+                if (c != ',')
+                    throw new JSONException("Expected a ',' or '}' at " + (i - 1));
+
+                i = skipWhitespace(text, i);
+            }
+        }
+
+        if (skipWhitespace(text, i) != length)
+            throw new JSONException("Unexpected data after the object at " + i);
+
+        return envelope;
+    }
+
+    private void set(int field, int start, int end)
+    {
+        switch (field)
+        {
+            case FIELD_JSONRPC:
+            {
+                version = decode(start, end);
+                break;
+            }
+            case FIELD_ID:
+            {
+                id = decode(start, end);
+                break;
+            }
+            case FIELD_METHOD:
+            {
+                method = decode(start, end);
+                break;
+            }
+            case FIELD_PARAMS:
+            {
+                hasParams = true;
+                params = null;
+                paramsStart = start;
+                paramsEnd = end;
+                break;
+            }
+            case FIELD_RESULT:
+            {
+                hasResult = true;
+                result = null;
+                resultStart = start;
+                resultEnd = end;
+                break;
+            }
+            case FIELD_ERROR:
+            {
+                hasError = true;
+                error = null;
+                errorStart = start;
+                errorEnd = end;
+                break;
+            }
+        }
+    }
+
+    private Object decode(int start, int end)
+    {
+        if (source.charAt(start) == '"' && !hasEscapes(source, start, end))
+        {
+            // a plain string, no escapes to deal with
+            return source.substring(start + 1, end - 1);
+        }
+
+        return new JSONTokener(source.substring(start, end)).nextValue();
+    }
+
+    private static int fieldOf(String text, int start, int end)
+    {
+        String key;
+
+        if (hasEscapes(text, start, end))
+        {
+            key = (String) new JSONTokener(text.substring(start, end)).nextValue();
+        }
+        else
+        {
+            int length = end - start - 2;
+
+            switch (length)
+            {
+                case 2: return text.regionMatches(start + 1, "id", 0, 2) ? FIELD_ID : FIELD_OTHER;
+                case 5: return text.regionMatches(start + 1, "error", 0, 5) ? FIELD_ERROR : FIELD_OTHER;
+                case 6:
+                {
+                    if (text.regionMatches(start + 1, "method", 0, 6))
+                        return FIELD_METHOD;
+                    if (text.regionMatches(start + 1, "params", 0, 6))
+                        return FIELD_PARAMS;
+                    if (text.regionMatches(start + 1, "result", 0, 6))
+                        return FIELD_RESULT;
+
+                    return FIELD_OTHER;
+                }
+                case 7: return text.regionMatches(start + 1, "jsonrpc", 0, 7) ? FIELD_JSONRPC : FIELD_OTHER;
+                default: return FIELD_OTHER;
+            }
+        }
+
+        if (key.equals("jsonrpc")) return FIELD_JSONRPC;
+        if (key.equals("id")) return FIELD_ID;
+        if (key.equals("method")) return FIELD_METHOD;
+        if (key.equals("params")) return FIELD_PARAMS;
+        if (key.equals("result")) return FIELD_RESULT;
+        if (key.equals("error")) return FIELD_ERROR;
+
+        return FIELD_OTHER;
+    }
+
+    private static boolean hasEscapes(String text, int start, int end)
+    {
+        for (int i = start; i < end; i++)
+        {
+            if (text.charAt(i) == '\\')
+                return true;
+        }
+
+        return false;
+    }
+
+    private static int skipWhitespace(String text, int i)
+    {
+        int length = text.length();
+
+        while (i < length && text.charAt(i) <= ' ')
+        {
+            i++;
+        }
+
+        return i;
+    }
+
+    /**
+     * @return a position right after the closing quote
+     */
+    private static int skipString(String text, int i)
+    {
+        int length = text.length();
+
+        for (i++; i < length; i++)
+        {
+            char c = text.charAt(i);
+
+            if (c == '\\')
+            {
+                i++;
+            }
+            else if (c == '"')
+            {
+                return i + 1;
+            }
+        }
+
+        throw new JSONException("Unterminated string");
+    }
+
+    /**
+     * @return a position right after the value
+     */
+    private static int skipValue(String text, int i)
+    {
+        int length = text.length();
+
+        if (i >= length)
+            throw new JSONException("Expected a value");
+
+        char first = text.charAt(i);
+
+        if (first == '"')
+            return skipString(text, i);
+
+        if (first == '{' || first == '[')
+        {
+            int depth = 0;
+
+            while (i < length)
+            {
+                char c = text.charAt(i);
+
+                switch (c)
+                {
+                    case '"':
+                    {
+                        i = skipString(text, i);
+                        continue;
+                    }
+                    case '{':
+                    case '[':
+                    {
+                        depth++;
+                        break;
+                    }
+                    case '}':
+                    case ']':
+                    {
+                        if (--depth == 0)
+                            return i + 1;
+
+                        break;
+                    }
+                }
+
+                i++;
+            }
+
+            throw new JSONException("Unterminated " + (first == '{' ? "object" : "array"));
+        }
+
+        // a number, true, false or null, up to where a JSONTokener would stop reading it
+        int start = i;
+
+        while (i < length && ",:]}/\\\"[{;=#".indexOf(text.charAt(i)) < 0 && text.charAt(i) > ' ')
+        {
+            i++;
+        }
+
+        if (i == start)
+            throw new JSONException("Expected a value at " + i);
+
+        return i;
+    }
+
+    private Object parse(int start, int end)
+    {
+        return new JSONTokener(source.substring(start, end)).nextValue();
+    }
+
+    public boolean hasVersion()
+    {
+        return version != null;
+    }
+
+    /**
+     * @return the "jsonrpc" field, or null if there is none
+     */
+    public Object getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * @return the "id" field as an integer, or 0 if there is none (or it's not a number)
+     */
+    public int getId()
+    {
+        if (id instanceof Number)
+            return ((Number) id).intValue();
+
+        if (id instanceof String)
+        {
+            try
+            {
+                return (int)Double.parseDouble(((String) id));
+            }
+            catch (NumberFormatException e)
+            {
+                return 0;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * @return the "method" field, or null if there is none, or it's not a string
+     */
+    public String getMethod()
+    {
+        return method instanceof String ? ((String) method) : null;
+    }
+
+    public boolean hasParams()
+    {
+        return hasParams;
+    }
+
+    /**
+     * @return the "params" field, parsed on the first call
+     * @throws JSONException if the field is malformed
+     */
+    public synchronized Object getParams() throws JSONException
+    {
+        if (paramsStart >= 0)
+        {
+            params = parse(paramsStart, paramsEnd);
+            paramsStart = -1;
+        }
+
+        return params;
+    }
+
+    public boolean hasResult()
+    {
+        return hasResult;
+    }
+
+    /**
+     * @return the "result" field, parsed on the first call
+     * @throws JSONException if the field is malformed
+     */
+    public synchronized Object getResult() throws JSONException
+    {
+        if (resultStart >= 0)
+        {
+            result = parse(resultStart, resultEnd);
+            resultStart = -1;
+        }
+
+        return result;
+    }
+
+    public boolean hasError()
+    {
+        return hasError;
+    }
+
+    /**
+     * @return the "error" field, or null if it's not an object
+     * @throws JSONException if the field is malformed
+     */
+    public synchronized JSONObject getError() throws JSONException
+    {
+        if (errorStart >= 0)
+        {
+            error = parse(errorStart, errorEnd);
+            errorStart = -1;
+        }
+
+        return error instanceof JSONObject ? ((JSONObject) error) : null;
+    }
+}
@@ -0,0 +1,126 @@
+package org.anthillplatform.runtime.util;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on the given executor so that tasks submitted with the same key are executed one after another
+ * in the order of submission, while tasks with different keys may run in parallel.
+ *
+ * If the executor rejects a task, it is run on the thread that has submitted it (or has finished the task
+ * before it) instead, along with the rest of the tasks of the same key.
+ */
+public class KeyedExecutor
+{
+    private static final Object DEFAULT_KEY = new Object();
+
+    private final Executor executor;
+    private final HashMap<Object, ArrayDeque<Runnable>> queues;
+
+    public KeyedExecutor(Executor executor)
+    {
+        this.executor = executor;
+        this.queues = new HashMap<Object, ArrayDeque<Runnable>>();
+    }
+
+    /**
+     * @param key a key to order the task with, or null to order it with the other tasks without a key
+     */
+    public void execute(Object key, Runnable task)
+    {
+        if (key == null)
+            key = DEFAULT_KEY;
+
+        synchronized (queues)
+        {
+            ArrayDeque<Runnable> queue = queues.get(key);
+
+            if (queue != null)
+            {
+                // another task with the same key is running, this one will be picked up after it
+                queue.add(task);
+                return;
+            }
+
+            queues.put(key, new ArrayDeque<Runnable>());
+        }
+
+        submit(key, task);
+    }
+
+    private void submit(final Object key, final Runnable task)
+    {
+        try
+        {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        runTask(task);
+                    }
+                    finally
+                    {
+                        next(key);
+                    }
+                }
+            });
+        }
+        catch (RuntimeException e)
+        {
+            // rejected (the executor is shut down, or out of capacity): the task, and the ones queued
+            // after it with the same key, are run right here instead, so none is lost and the order holds
+            Runnable next = task;
+
+            while (next != null)
+            {
+                runTask(next);
+                next = poll(key);
+            }
+        }
+    }
+
+    private static void runTask(Runnable task)
+    {
+        try
+        {
+            task.run();
+        }
+        catch (RuntimeException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the next task queued with the key, or null if none is left (and the key is done with)
+     */
+    private Runnable poll(Object key)
+    {
+        synchronized (queues)
+        {
+            ArrayDeque<Runnable> queue = queues.get(key);
+            Runnable next = queue.poll();
+
+            if (next == null)
+            {
+                queues.remove(key);
+            }
+
+            return next;
+        }
+    }
+
+    private void next(Object key)
+    {
+        Runnable next = poll(key);
+
+        if (next != null)
+        {
+            submit(key, next);
+        }
+    }
+}
@@ -0,0 +1,431 @@
+package org.anthillplatform.runtime.util;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of a JSON-RPC connection: request latencies and handler execution times per method,
+ * inbound and outbound traffic, parse errors.
+ *
+ * Metrics could have a parent (see setParent) that receives everything recorded into them as well,
+ * this is how the runtime's aggregated metrics are collected (see ConnectionManager.getMetrics).
+ * Everything here is thread safe, and cheap enough to be recorded all the time.
+ */
+public class RpcMetrics
+{
+    private volatile RpcMetrics parent;
+
+    private final ConcurrentHashMap<String, Histogram> requestLatencies;
+    private final ConcurrentHashMap<String, Histogram> handlerTimes;
+    private final AtomicLong requestErrors;
+    private final AtomicLong requestsCancelled;
+    private final AtomicLong parseErrors;
+    private final Meter inboundFrames;
+    private final Meter inboundBytes;
+    private final Meter outboundFrames;
+    private final Meter outboundBytes;
+
+    /**
+     * A distribution of durations, over fixed buckets from 100us to 10s
+     */
+    public static class Histogram
+    {
+        // upper bounds of the buckets, in microseconds, the last bucket has no bound
+        private static final long[] BOUNDS = {
+            100, 250, 500,
+            1000, 2500, 5000,
+            10000, 25000, 50000,
+            100000, 250000, 500000,
+            1000000, 2500000, 5000000,
+            10000000
+        };
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long nanos)
+        {
+            long micros = nanos / 1000;
+            int bucket = 0;
+
+            while (bucket < BOUNDS.length && micros > BOUNDS[bucket])
+            {
+                bucket++;
+            }
+
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            total.addAndGet(micros);
+
+            long current;
+
+            while (micros > (current = max.get()))
+            {
+                if (max.compareAndSet(current, micros))
+                    break;
+            }
+        }
+
+        public long getCount()
+        {
+            return count.get();
+        }
+
+        /**
+         * @return a mean duration in milliseconds, or 0 if nothing has been recorded
+         */
+        public double getMean()
+        {
+            long count = this.count.get();
+            return count > 0 ? total.get() / 1000.0 / count : 0;
+        }
+
+        /**
+         * @return the longest duration recorded, in milliseconds
+         */
+        public double getMax()
+        {
+            return max.get() / 1000.0;
+        }
+
+        /**
+         * @param percentile 0..100
+         * @return an upper bound (in milliseconds) of the bucket the percentile falls into,
+         *         or getMax() if it falls into the last one
+         */
+        public double getPercentile(double percentile)
+        {
+            long count = this.count.get();
+
+            if (count == 0)
+                return 0;
+
+            long rank = (long)Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+
+            for (int i = 0; i < BOUNDS.length; i++)
+            {
+                seen += buckets.get(i);
+
+                if (seen >= rank)
+                    return Math.min(BOUNDS[i] / 1000.0, getMax());
+            }
+
+            return getMax();
+        }
+
+        /**
+         * @return upper bounds of the buckets in milliseconds (the last bucket, not included, has no bound)
+         */
+        public static double[] getBucketBounds()
+        {
+            double[] result = new double[BOUNDS.length];
+
+            for (int i = 0; i < BOUNDS.length; i++)
+            {
+                result[i] = BOUNDS[i] / 1000.0;
+            }
+
+            return result;
+        }
+
+        public long[] getBucketCounts()
+        {
+            long[] result = new long[buckets.length()];
+
+            for (int i = 0; i < result.length; i++)
+            {
+                result[i] = buckets.get(i);
+            }
+
+            return result;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("count=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms",
+                getCount(), getMean(), getPercentile(50), getPercentile(99), getMax());
+        }
+    }
+
+    /**
+     * A total count of events, and its rate per second (exponentially weighted over about a minute)
+     */
+    public static class Meter
+    {
+        private static final long TICK_INTERVAL = 5000000000L;
+        private static final double ALPHA = 1 - Math.exp(-5 / 60.0);
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong uncounted = new AtomicLong();
+        private final AtomicLong lastTick;
+        private final long started;
+        private volatile double rate = -1;
+
+        public Meter()
+        {
+            this.started = System.nanoTime();
+            this.lastTick = new AtomicLong(started);
+        }
+
+        public void mark(long n)
+        {
+            tickIfNecessary();
+            count.addAndGet(n);
+            uncounted.addAndGet(n);
+        }
+
+        private void tickIfNecessary()
+        {
+            long old = lastTick.get();
+            long now = System.nanoTime();
+            long age = now - old;
+
+            if (age < TICK_INTERVAL)
+                return;
+
+            if (!lastTick.compareAndSet(old, now - age % TICK_INTERVAL))
+                return;
+
+            for (long i = 0, ticks = age / TICK_INTERVAL; i < ticks; i++)
+            {
+                double instant = uncounted.getAndSet(0) / (TICK_INTERVAL / 1000000000.0);
+                rate = rate < 0 ? instant : rate + ALPHA * (instant - rate);
+            }
+        }
+
+        public long getCount()
+        {
+            return count.get();
+        }
+
+        /**
+         * @return events per second, over the last minute or so
+         */
+        public double getRate()
+        {
+            tickIfNecessary();
+            return Math.max(rate, 0);
+        }
+
+        /**
+         * @return events per second since the meter was created
+         */
+        public double getMeanRate()
+        {
+            double elapsed = (System.nanoTime() - started) / 1000000000.0;
+            return elapsed > 0 ? count.get() / elapsed : 0;
+        }
+    }
+
+    public RpcMetrics()
+    {
+        this.requestLatencies = new ConcurrentHashMap<String, Histogram>();
+        this.handlerTimes = new ConcurrentHashMap<String, Histogram>();
+        this.requestErrors = new AtomicLong();
+        this.requestsCancelled = new AtomicLong();
+        this.parseErrors = new AtomicLong();
+        this.inboundFrames = new Meter();
+        this.inboundBytes = new Meter();
+        this.outboundFrames = new Meter();
+        this.outboundBytes = new Meter();
+    }
+
+    /**
+     * @param parent metrics to record everything into as well, or null
+     */
+    public void setParent(RpcMetrics parent)
+    {
+        if (parent == this)
+            throw new IllegalArgumentException("Metrics cannot be a parent of itself");
+
+        this.parent = parent;
+    }
+
+    private static Histogram histogramOf(ConcurrentHashMap<String, Histogram> histograms, String method)
+    {
+        Histogram histogram = histograms.get(method);
+
+        if (histogram == null)
+        {
+            Histogram newHistogram = new Histogram();
+            histogram = histograms.putIfAbsent(method, newHistogram);
+
+            if (histogram == null)
+                histogram = newHistogram;
+        }
+
+        return histogram;
+    }
+
+    /**
+     * A response to an outgoing request has been received
+     *
+     * @param nanos time between the request was sent and its response was received
+     */
+    public void requestCompleted(String method, long nanos, boolean error)
+    {
+        histogramOf(requestLatencies, method).record(nanos);
+
+        if (error)
+        {
+            requestErrors.incrementAndGet();
+        }
+
+        RpcMetrics parent = this.parent;
+
+        if (parent != null)
+        {
+            parent.requestCompleted(method, nanos, error);
+        }
+    }
+
+    /**
+     * An outgoing request was given up on without a response (for example, the connection was lost),
+     * so there is no latency to record
+     */
+    public void requestCancelled(String method)
+    {
+        requestsCancelled.incrementAndGet();
+
+        RpcMetrics parent = this.parent;
+
+        if (parent != null)
+        {
+            parent.requestCancelled(method);
+        }
+    }
+
+    /**
+     * A handler of an incoming call has returned
+     */
+    public void handlerCompleted(String method, long nanos)
+    {
+        histogramOf(handlerTimes, method).record(nanos);
+
+        RpcMetrics parent = this.parent;
+
+        if (parent != null)
+        {
+            parent.handlerCompleted(method, nanos);
+        }
+    }
+
+    public void frameReceived(long bytes)
+    {
+        inboundFrames.mark(1);
+        inboundBytes.mark(bytes);
+
+        RpcMetrics parent = this.parent;
+
+        if (parent != null)
+        {
+            parent.frameReceived(bytes);
+        }
+    }
+
+    public void frameSent(long bytes)
+    {
+        outboundFrames.mark(1);
+        outboundBytes.mark(bytes);
+
+        RpcMetrics parent = this.parent;
+
+        if (parent != null)
+        {
+            parent.frameSent(bytes);
+        }
+    }
+
+    public void parseError()
+    {
+        parseErrors.incrementAndGet();
+
+        RpcMetrics parent = this.parent;
+
+        if (parent != null)
+        {
+            parent.parseError();
+        }
+    }
+
+    /**
+     * @return request to response latencies per method
+     */
+    public Map<String, Histogram> getRequestLatencies()
+    {
+        return Collections.unmodifiableMap(requestLatencies);
+    }
+
+    /**
+     * @return a request to response latency of a method, or null if it was never called
+     */
+    public Histogram getRequestLatency(String method)
+    {
+        return requestLatencies.get(method);
+    }
+
+    /**
+     * @return execution times of the incoming calls' handlers per method
+     */
+    public Map<String, Histogram> getHandlerTimes()
+    {
+        return Collections.unmodifiableMap(handlerTimes);
+    }
+
+    /**
+     * @return how many requests were answered with an error
+     */
+    public long getRequestErrors()
+    {
+        return requestErrors.get();
+    }
+
+    /**
+     * @return how many requests were given up on without a response
+     */
+    public long getRequestsCancelled()
+    {
+        return requestsCancelled.get();
+    }
+
+    /**
+     * @return how many incoming messages (or their parts) could not be parsed
+     */
+    public long getParseErrors()
+    {
+        return parseErrors.get();
+    }
+
+    public Meter getInboundFrames()
+    {
+        return inboundFrames;
+    }
+
+    /**
+     * @return a meter of the inbound payload bytes (after decompression)
+     */
+    public Meter getInboundBytes()
+    {
+        return inboundBytes;
+    }
+
+    public Meter getOutboundFrames()
+    {
+        return outboundFrames;
+    }
+
+    /**
+     * @return a meter of the outbound payload bytes (before compression)
+     */
+    public Meter getOutboundBytes()
+    {
+        return outboundBytes;
+    }
+}
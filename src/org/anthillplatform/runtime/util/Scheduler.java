@@ -0,0 +1,47 @@
+package org.anthillplatform.runtime.util;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single daemon thread shared by the runtime to run delayed and periodic tasks (reconnects, timers etc).
+ * Tasks are expected to be short, anything heavy should be passed along to another executor.
+ */
+public class Scheduler
+{
+    private static ScheduledThreadPoolExecutor executor;
+
+    public static synchronized ScheduledExecutorService get()
+    {
+        if (executor == null)
+        {
+            executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "AnthillScheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            executor.setRemoveOnCancelPolicy(true);
+        }
+
+        return executor;
+    }
+
+    public static ScheduledFuture<?> schedule(Runnable task, long delay)
+    {
+        return get().schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    public static ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long period)
+    {
+        return get().scheduleAtFixedRate(task, period, period, TimeUnit.MILLISECONDS);
+    }
+}
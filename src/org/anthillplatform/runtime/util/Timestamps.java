@@ -0,0 +1,196 @@
+package org.anthillplatform.runtime.util;
+
+import java.text.ParseException;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Parses and formats the "yyyy-MM-dd HH:mm:ss" timestamps the services exchange, in the default time zone.
+ *
+ * Unlike a SimpleDateFormat, this is thread safe and needs no Calendar: the digits are read in place, and the
+ * date is converted to (and from) epoch days arithmetically, so a call allocates nothing but its result.
+ */
+public class Timestamps
+{
+    private static final int LENGTH = 19;
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private static volatile TimeZone timeZone = TimeZone.getDefault();
+
+    /**
+     * @param zone a time zone the timestamps are in, the default one (at the time of loading) is used otherwise
+     */
+    public static void setTimeZone(TimeZone zone)
+    {
+        timeZone = zone;
+    }
+
+    public static TimeZone getTimeZone()
+    {
+        return timeZone;
+    }
+
+    /**
+     * @return a parsed timestamp, whatever follows the seconds (like fractions) is ignored
+     * @throws ParseException if the value is null or not a valid timestamp
+     */
+    public static Date parse(String value) throws ParseException
+    {
+        if (value == null || value.length() < LENGTH)
+            throw new ParseException("Unparseable date: \"" + value + "\"", 0);
+
+        int year = digits(value, 0, 4);
+        expect(value, 4, '-');
+        int month = digits(value, 5, 2);
+        expect(value, 7, '-');
+        int day = digits(value, 8, 2);
+
+        char separator = value.charAt(10);
+
+        if (separator != ' ' && separator != 'T')
+            throw new ParseException("Unparseable date: \"" + value + "\"", 10);
+
+        int hour = digits(value, 11, 2);
+        expect(value, 13, ':');
+        int minute = digits(value, 14, 2);
+        expect(value, 16, ':');
+        int second = digits(value, 17, 2);
+
+        if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month) ||
+            hour > 23 || minute > 59 || second > 59)
+        {
+            throw new ParseException("Unparseable date: \"" + value + "\"", 0);
+        }
+
+        long local = epochDay(year, month, day) * MILLIS_PER_DAY + ((hour * 60 + minute) * 60 + second) * 1000L;
+
+        return new Date(toUtc(local));
+    }
+
+    /**
+     * @return a parsed timestamp, or def if the value is not a valid one
+     */
+    public static Date parse(String value, Date def)
+    {
+        try
+        {
+            return parse(value);
+        }
+        catch (ParseException e)
+        {
+            return def;
+        }
+    }
+
+    public static String format(Date date)
+    {
+        return format(date.getTime());
+    }
+
+    public static String format(long millis)
+    {
+        long local = millis + timeZone.getOffset(millis);
+
+        long days = Math.floorDiv(local, MILLIS_PER_DAY);
+        int secondOfDay = (int)(Math.floorMod(local, MILLIS_PER_DAY) / 1000);
+
+        // civil date from epoch days, see http://howardhinnant.github.io/date_algorithms.html
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        int dayOfEra = (int)(z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        char[] out = new char[LENGTH];
+
+        put(out, 0, (int)year, 4);
+        out[4] = '-';
+        put(out, 5, month, 2);
+        out[7] = '-';
+        put(out, 8, day, 2);
+        out[10] = ' ';
+        put(out, 11, secondOfDay / 3600, 2);
+        out[13] = ':';
+        put(out, 14, secondOfDay / 60 % 60, 2);
+        out[16] = ':';
+        put(out, 17, secondOfDay % 60, 2);
+
+        return new String(out);
+    }
+
+    private static long toUtc(long local)
+    {
+        TimeZone zone = timeZone;
+
+        // the offset is only known for an instant, so guess by the raw offset first, then correct once
+        // (it may differ around a daylight saving transition)
+        int offset = zone.getOffset(local - zone.getRawOffset());
+        int corrected = zone.getOffset(local - offset);
+
+        return local - corrected;
+    }
+
+    private static long epochDay(int year, int month, int day)
+    {
+        // see http://howardhinnant.github.io/date_algorithms.html
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y, 400);
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    private static int daysInMonth(int year, int month)
+    {
+        switch (month)
+        {
+            case 2:
+                return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    private static int digits(String value, int offset, int count) throws ParseException
+    {
+        int result = 0;
+
+        for (int i = offset; i < offset + count; i++)
+        {
+            int digit = value.charAt(i) - '0';
+
+            if (digit < 0 || digit > 9)
+                throw new ParseException("Unparseable date: \"" + value + "\"", i);
+
+            result = result * 10 + digit;
+        }
+
+        return result;
+    }
+
+    private static void expect(String value, int offset, char c) throws ParseException
+    {
+        if (value.charAt(offset) != c)
+            throw new ParseException("Unparseable date: \"" + value + "\"", offset);
+    }
+
+    private static void put(char[] out, int offset, int value, int count)
+    {
+        for (int i = offset + count - 1; i >= offset; i--)
+        {
+            out[i] = (char)('0' + value % 10);
+            value /= 10;
+        }
+    }
+}
@@ -4,6 +4,10 @@ import java.text.SimpleDateFormat;
 
 public class Utils
 {
+    /**
+     * @deprecated not thread safe, and reads / writes the hours as 1-12, use Timestamps instead
+     */
+    @Deprecated
     public static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
 
     public static String join(String[] items)
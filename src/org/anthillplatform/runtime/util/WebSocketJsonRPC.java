@@ -1,24 +1,216 @@
 package org.anthillplatform.runtime.util;
 
+import org.java_websocket.WebSocket;
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.PingFrame;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.ServerHandshake;
+import org.java_websocket.protocols.IProtocol;
+import org.java_websocket.protocols.Protocol;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
 public abstract class WebSocketJsonRPC extends WebSocketClient
 {
+    public static final int DEFAULT_SEND_QUEUE_CAPACITY = 1024;
+    public static final long DEFAULT_HEARTBEAT_INTERVAL = 15000;
+    public static final int DEFAULT_MAX_MISSED_PONGS = 3;
+    public static final long DEFAULT_CLOSE_FLUSH_TIMEOUT = 1000;
+
+    // the error pending requests fail with once the connection is closed
+    public static final int CONNECTION_CLOSED_ERROR = -32001;
+
+    // a WebSocket sub-protocol for JSON-RPC messages encoded with CBOR into binary frames
+    public static final String BINARY_PROTOCOL = "jsonrpc-cbor";
+
+    // how many queued frames can be written to the socket at once
+    private static final int MAX_BATCH_SIZE = 64;
+    private static final long WRITER_POLL_INTERVAL = 250;
+    // how often the socket is checked for having written its buffer, while anyone waits for that
+    private static final long DRAIN_CHECK_INTERVAL = 2;
+
     private JsonRPC rpc;
 
+    // either String (text frames) or ByteBuffer (binary frames)
+    private final BlockingQueue<Object> outbound;
+    private final int highWaterMark;
+    private final int lowWaterMark;
+    private final AtomicBoolean writable;
+    private WritabilityListener writabilityListener;
+    private volatile Thread writer;
+    // frames queued, or taken by the writer but not passed to the socket yet
+    private final AtomicInteger unsent;
+    private final long closeFlushTimeout;
+    // notified once the socket has written its buffer, or the writer has nothing left, see awaitDrained
+    private final Object drained = new Object();
+    private ScheduledFuture<?> drainCheck;
+
+    private final long heartbeatInterval;
+    private final int maxMissedPongs;
+    private final Object heartbeatLock = new Object();
+    private ScheduledFuture<?> heartbeat;
+    private long pingSequence;
+    private long pingSentTime;
+    private boolean pingPending;
+    private volatile boolean heardFromServer;
+    private int missedPongs;
+    private volatile double smoothedRtt = -1;
+    private volatile double rttVariation;
+    private volatile double lastRtt = -1;
+
+    /**
+     * Gets notified when the outbound queue is getting full (writable is false), so the producers could throttle,
+     * and once it has drained enough to accept frames again (writable is true).
+     * Called on the thread that has caused the change.
+     */
+    public interface WritabilityListener
+    {
+        void writabilityChanged(WebSocketJsonRPC rpc, boolean writable);
+    }
+
+    public static class Options
+    {
+        /**
+         * How many frames can wait to be sent, see isWritable
+         */
+        public int sendQueueCapacity = DEFAULT_SEND_QUEUE_CAPACITY;
+
+        /**
+         * Offer the server to exchange binary CBOR frames instead of JSON text (see BINARY_PROTOCOL).
+         * If the server does not agree, JSON text is used as usual.
+         */
+        public boolean offerBinaryEncoding = false;
+
+        /**
+         * Offer the server to compress messages with "permessage-deflate" extension (see DeflateExtension).
+         * If the server does not agree, messages are sent uncompressed.
+         */
+        public boolean offerCompression = false;
+
+        /**
+         * Messages smaller than this (in bytes) are sent uncompressed
+         */
+        public int compressionThreshold = 256;
+
+        /**
+         * If false, each message is compressed independently (less memory, but a worse ratio)
+         */
+        public boolean compressionContextTakeover = true;
+
+        /**
+         * LZ77 window size (8..15) the server is asked to compress with
+         */
+        public int compressionServerWindowBits = 15;
+
+        public int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+        /**
+         * How often (in milliseconds) to ping the server, 0 to disable the heartbeat
+         */
+        public long heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+
+        /**
+         * After this many heartbeats in a row with nothing at all heard from the server,
+         * the connection is considered dead and gets closed (with CloseFrame.ABNORMAL_CLOSE code)
+         */
+        public int maxMissedPongs = DEFAULT_MAX_MISSED_PONGS;
+
+        /**
+         * How long (in milliseconds) close waits for the frames already queued to be sent,
+         * 0 to drop them right away
+         */
+        public long closeFlushTimeout = DEFAULT_CLOSE_FLUSH_TIMEOUT;
+
+        protected Draft createDraft()
+        {
+            List<IExtension> extensions = new ArrayList<IExtension>();
+            List<IProtocol> protocols = new ArrayList<IProtocol>();
+
+            if (offerCompression)
+            {
+                extensions.add(new DeflateExtension(compressionThreshold, compressionContextTakeover,
+                    compressionServerWindowBits, compressionLevel));
+            }
+
+            if (offerBinaryEncoding)
+            {
+                protocols.add(new Protocol(BINARY_PROTOCOL));
+            }
+
+            // accept no sub-protocol at all
+            protocols.add(new Protocol(""));
+
+            return new Draft_6455(extensions, protocols);
+        }
+    }
+
     public WebSocketJsonRPC(URI serverURI)
     {
-        super(serverURI);
+        this(serverURI, new Options());
+    }
+
+    public WebSocketJsonRPC(URI serverURI, Options options)
+    {
+        super(serverURI, options.createDraft());
+
+        int sendQueueCapacity = options.sendQueueCapacity;
+
+        if (sendQueueCapacity <= 0)
+            throw new IllegalArgumentException("sendQueueCapacity should be positive");
+
+        this.outbound = new ArrayBlockingQueue<Object>(sendQueueCapacity);
+        this.highWaterMark = Math.max(1, sendQueueCapacity * 3 / 4);
+        this.lowWaterMark = sendQueueCapacity / 4;
+        this.writable = new AtomicBoolean(true);
+        this.unsent = new AtomicInteger(0);
+        this.closeFlushTimeout = options.closeFlushTimeout;
+
+        this.heartbeatInterval = options.heartbeatInterval;
+        this.maxMissedPongs = Math.max(1, options.maxMissedPongs);
+
+        if (heartbeatInterval > 0)
+        {
+            // our own heartbeat replaces the library's connection lost checks
+            setConnectionLostTimeout(0);
+        }
 
         rpc = new JsonRPC()
         {
             @Override
-            protected void send(String data)
+            protected boolean send(String data)
+            {
+                return enqueue(data);
+            }
+
+            @Override
+            protected boolean send(JSONObject message)
             {
-                WebSocketJsonRPC.this.send(data);
+                if (isBinary())
+                {
+                    return enqueue(ByteBuffer.wrap(Cbor.encode(message)));
+                }
+
+                return enqueue(message.toString());
             }
 
             @Override
@@ -31,34 +223,643 @@ public abstract class WebSocketJsonRPC extends WebSocketClient
 
     protected abstract void onError(int code, String message, String data);
 
+    /**
+     * Fails the requests still waiting for their responses (with CONNECTION_CLOSED_ERROR),
+     * so subclasses overriding it should call super.onClose
+     */
+    @Override
+    public void onClose(int code, String reason, boolean remote)
+    {
+        notifyDrained();
+        rpc.failPendingRequests(CONNECTION_CLOSED_ERROR, "Connection closed", reason);
+    }
+
+    /**
+     * Waits (see Options.closeFlushTimeout) for the frames already queued to be sent before closing
+     */
+    @Override
+    public void close()
+    {
+        flush();
+        super.close();
+    }
+
+    @Override
+    public void close(int code)
+    {
+        flush();
+        super.close(code);
+    }
+
+    @Override
+    public void close(int code, String message)
+    {
+        flush();
+        super.close(code, message);
+    }
+
+    /**
+     * Closes right away, the frames not sent yet are dropped
+     */
+    public void closeNow()
+    {
+        super.close();
+    }
+
+    public long getCloseFlushTimeout()
+    {
+        return closeFlushTimeout;
+    }
+
+    private void flush()
+    {
+        flush(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(closeFlushTimeout));
+    }
+
+    /**
+     * Waits for the frames already queued to be sent, but no longer than the deadline
+     * (in terms of System.nanoTime). Does not wait if closeFlushTimeout is 0.
+     *
+     * @return true if nothing is left to send
+     */
+    public boolean flush(long deadline)
+    {
+        // the writer cannot wait for itself
+        if (closeFlushTimeout <= 0 || Thread.currentThread() == writer)
+            return false;
+
+        try
+        {
+            return awaitDrained(true, deadline);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Waits until the socket has written its buffer (and, if all is true, the writer has nothing left either).
+     * The socket does not tell once its buffer gets written, so while anyone waits, a check shared
+     * through the Scheduler wakes them up, instead of each of them polling.
+     *
+     * @param deadline when to give up (in terms of System.nanoTime), or 0 to wait for as long as it takes
+     * @return false if the deadline has passed
+     */
+    private boolean awaitDrained(boolean all, long deadline) throws InterruptedException
+    {
+        synchronized (drained)
+        {
+            while (isOpen() && ((all && unsent.get() > 0) || hasBufferedData()))
+            {
+                long left = deadline - System.nanoTime();
+
+                if (deadline != 0 && left <= 0)
+                    return false;
+
+                // the writer tells once it has nothing left, only the socket's buffer needs checking
+                if (drainCheck == null && hasBufferedData())
+                {
+                    drainCheck = Scheduler.scheduleAtFixedRate(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            if (!isOpen() || !hasBufferedData())
+                            {
+                                notifyDrained();
+                            }
+                        }
+                    }, DRAIN_CHECK_INTERVAL);
+                }
+
+                if (deadline != 0)
+                {
+                    TimeUnit.NANOSECONDS.timedWait(drained, left);
+                }
+                else
+                {
+                    drained.wait();
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private void notifyDrained()
+    {
+        synchronized (drained)
+        {
+            if (drainCheck != null)
+            {
+                // whoever still waits schedules another one
+                drainCheck.cancel(false);
+                drainCheck = null;
+            }
+
+            drained.notifyAll();
+        }
+    }
+
     @Override
     public void onMessage(String message)
     {
+        heardFromServer = true;
+        rpc.getMetrics().frameReceived(utf8Length(message));
         rpc.received(message);
     }
 
-    public void request(String method, JsonRPC.ResponseHandler responseHandler, JSONObject params)
+    @Override
+    public void onMessage(ByteBuffer bytes)
     {
-        rpc.request(method, responseHandler, params);
+        heardFromServer = true;
+        rpc.getMetrics().frameReceived(bytes.remaining());
+
+        Object message;
+
+        try
+        {
+            message = Cbor.decode(bytes);
+        }
+        catch (JSONException e)
+        {
+            rpc.receivedCorrupted();
+            return;
+        }
+
+        if (message instanceof JSONObject)
+        {
+            rpc.received(((JSONObject) message));
+        }
+        else
+        {
+            rpc.receivedCorrupted();
+        }
     }
 
-    public void request(String method, JsonRPC.ResponseHandler responseHandler, Object... params)
+    @Override
+    public void onWebsocketHandshakeReceivedAsClient(WebSocket conn, ClientHandshake request,
+                                                     ServerHandshake response) throws InvalidDataException
     {
-        rpc.request(method, responseHandler, params);
+        super.onWebsocketHandshakeReceivedAsClient(conn, request, response);
+
+        // the connection is about to open
+        startHeartbeat();
     }
 
-    public void rpc(String method, JSONObject params)
+    @Override
+    public void onWebsocketPong(WebSocket conn, Framedata frame)
     {
-        rpc.rpc(method, params);
+        ByteBuffer payload = frame.getPayloadData();
+        long now = System.nanoTime();
+        double sample = -1;
+
+        synchronized (heartbeatLock)
+        {
+            heardFromServer = true;
+
+            if (pingPending && payload.remaining() == 8 && payload.getLong(payload.position()) == pingSequence)
+            {
+                pingPending = false;
+                missedPongs = 0;
+                sample = (now - pingSentTime) / 1000000.0;
+            }
+        }
+
+        if (sample >= 0)
+        {
+            updateRtt(sample);
+        }
+    }
+
+    private void updateRtt(double sample)
+    {
+        // RFC 6298 style smoothing
+        lastRtt = sample;
+
+        if (smoothedRtt < 0)
+        {
+            smoothedRtt = sample;
+            rttVariation = sample / 2;
+        }
+        else
+        {
+            rttVariation = 0.75 * rttVariation + 0.25 * Math.abs(smoothedRtt - sample);
+            smoothedRtt = 0.875 * smoothedRtt + 0.125 * sample;
+        }
+    }
+
+    /**
+     * @return a smoothed round trip time to the server (in milliseconds), or -1 if not measured yet
+     */
+    public double getRtt()
+    {
+        return smoothedRtt;
+    }
+
+    /**
+     * @return how much the round trip time tends to deviate from getRtt (in milliseconds)
+     */
+    public double getRttVariation()
+    {
+        return rttVariation;
     }
 
-    public void rpc(String method, Object... params)
+    /**
+     * @return the most recent round trip time sample (in milliseconds), or -1 if not measured yet
+     */
+    public double getLastRtt()
     {
-        rpc.rpc(method, params);
+        return lastRtt;
+    }
+
+    private void startHeartbeat()
+    {
+        if (heartbeatInterval <= 0)
+            return;
+
+        synchronized (heartbeatLock)
+        {
+            if (heartbeat != null)
+                return;
+
+            heartbeat = Scheduler.scheduleAtFixedRate(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    heartbeat();
+                }
+            }, heartbeatInterval);
+        }
+    }
+
+    private void stopHeartbeat()
+    {
+        synchronized (heartbeatLock)
+        {
+            if (heartbeat != null)
+            {
+                heartbeat.cancel(false);
+                heartbeat = null;
+            }
+        }
+    }
+
+    private void heartbeat()
+    {
+        if (isClosing() || isClosed())
+        {
+            stopHeartbeat();
+            return;
+        }
+
+        if (!isOpen())
+            return;
+
+        PingFrame ping;
+
+        synchronized (heartbeatLock)
+        {
+            if (pingPending && !heardFromServer)
+            {
+                missedPongs++;
+            }
+            else
+            {
+                missedPongs = 0;
+            }
+
+            if (missedPongs >= maxMissedPongs)
+            {
+                ping = null;
+            }
+            else
+            {
+                heardFromServer = false;
+                pingPending = true;
+                pingSequence++;
+                pingSentTime = System.nanoTime();
+
+                ByteBuffer payload = ByteBuffer.allocate(8);
+                payload.putLong(0, pingSequence);
+
+                ping = new PingFrame();
+                ping.setPayload(payload);
+            }
+        }
+
+        if (ping == null)
+        {
+            // a half-open connection most likely, nothing would tell us otherwise
+            stopHeartbeat();
+            closeConnection(CloseFrame.ABNORMAL_CLOSE, "No response to " + maxMissedPongs + " pings");
+            return;
+        }
+
+        try
+        {
+            // control frames are allowed to jump ahead of the outbound queue
+            sendFrame(ping);
+        }
+        catch (WebsocketNotConnectedException ignored)
+        {
+            //
+        }
+    }
+
+    /**
+     * @return true if the server has agreed to exchange binary CBOR frames instead of JSON text
+     */
+    public boolean isBinary()
+    {
+        Draft draft = getConnection().getDraft();
+
+        if (!(draft instanceof Draft_6455))
+            return false;
+
+        IProtocol protocol = ((Draft_6455) draft).getProtocol();
+
+        return protocol != null && BINARY_PROTOCOL.equals(protocol.getProvidedProtocol());
+    }
+
+    /**
+     * @return false if the outbound queue is above its high water mark, and new frames should be held off
+     */
+    public boolean isWritable()
+    {
+        return writable.get();
+    }
+
+    public void setWritabilityListener(WritabilityListener writabilityListener)
+    {
+        this.writabilityListener = writabilityListener;
+    }
+
+    public int getPendingFramesCount()
+    {
+        return outbound.size();
+    }
+
+    private boolean enqueue(Object data)
+    {
+        if (!isOpen())
+            return false;
+
+        if (!outbound.offer(data))
+        {
+            updateWritability();
+            return false;
+        }
+
+        unsent.incrementAndGet();
+        updateWritability();
+        ensureWriter();
+
+        return true;
+    }
+
+    private void updateWritability()
+    {
+        int size = outbound.size();
+
+        if (size >= highWaterMark)
+        {
+            if (writable.compareAndSet(true, false))
+            {
+                notifyWritability(false);
+            }
+        }
+        else if (size <= lowWaterMark)
+        {
+            if (writable.compareAndSet(false, true))
+            {
+                notifyWritability(true);
+            }
+        }
+    }
+
+    private void notifyWritability(boolean value)
+    {
+        WritabilityListener listener = writabilityListener;
+
+        if (listener != null)
+        {
+            listener.writabilityChanged(this, value);
+        }
+    }
+
+    private synchronized void ensureWriter()
+    {
+        if (writer != null)
+            return;
+
+        writer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    writeLoop();
+                }
+                catch (InterruptedException ignored)
+                {
+                    //
+                }
+                finally
+                {
+                    writerStopped();
+                }
+            }
+        }, "WebSocketJsonRPCWriter-" + getURI().getHost());
+
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private synchronized void writerStopped()
+    {
+        writer = null;
+        outbound.clear();
+        unsent.set(0);
+        updateWritability();
+        notifyDrained();
+    }
+
+    private void writeLoop() throws InterruptedException
+    {
+        ArrayList<Object> batch = new ArrayList<Object>(MAX_BATCH_SIZE);
+        ArrayList<Framedata> frames = new ArrayList<Framedata>(MAX_BATCH_SIZE);
+
+        while (!isClosed() && !isClosing())
+        {
+            Object head = outbound.poll(WRITER_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+
+            if (head == null)
+                continue;
+
+            // do not pile frames up inside of the socket's own (unbounded) buffer while it is still
+            // flushing a previous batch, let them coalesce in the outbound queue instead
+            awaitDrained(false, 0);
+
+            batch.add(head);
+            outbound.drainTo(batch, MAX_BATCH_SIZE - 1);
+            updateWritability();
+
+            if (!isOpen())
+            {
+                sent(batch.size());
+                break;
+            }
+
+            Draft draft = getConnection().getDraft();
+            RpcMetrics metrics = rpc.getMetrics();
+
+            for (Object data : batch)
+            {
+                if (data instanceof ByteBuffer)
+                {
+                    metrics.frameSent(((ByteBuffer) data).remaining());
+                    frames.addAll(draft.createFrames(((ByteBuffer) data), true));
+                }
+                else
+                {
+                    metrics.frameSent(utf8Length(((String) data)));
+                    frames.addAll(draft.createFrames(((String) data), true));
+                }
+            }
+
+            try
+            {
+                sendFrame(frames);
+            }
+            catch (WebsocketNotConnectedException e)
+            {
+                break;
+            }
+            finally
+            {
+                sent(batch.size());
+                batch.clear();
+                frames.clear();
+            }
+        }
+    }
+
+    private void sent(int count)
+    {
+        if (unsent.addAndGet(-count) == 0)
+        {
+            // anyone flushing waits for the socket's buffer now
+            notifyDrained();
+        }
+    }
+
+    public boolean request(String method, JsonRPC.ResponseHandler responseHandler, JSONObject params)
+    {
+        return rpc.request(method, responseHandler, params);
+    }
+
+    public boolean request(String method, JsonRPC.ResponseHandler responseHandler, Object... params)
+    {
+        return rpc.request(method, responseHandler, params);
+    }
+
+    public boolean rpc(String method, JSONObject params)
+    {
+        return rpc.rpc(method, params);
+    }
+
+    public boolean rpc(String method, Object... params)
+    {
+        return rpc.rpc(method, params);
     }
 
     public void addHandler(String method, JsonRPC.MethodHandler handler)
     {
         rpc.addHandler(method, handler);
     }
+
+    /**
+     * See JsonRPC.setDispatcher
+     */
+    public void setDispatcher(Executor executor, JsonRPC.DispatchKey dispatchKey)
+    {
+        rpc.setDispatcher(executor, dispatchKey);
+    }
+
+    /**
+     * See JsonRPC.dispatch
+     */
+    public void dispatch(String method, Object params, Runnable task)
+    {
+        rpc.dispatch(method, params, task);
+    }
+
+    /**
+     * See JsonRPC.setMaxPendingCalls
+     */
+    public void setMaxPendingCalls(int maxPendingCalls)
+    {
+        rpc.setMaxPendingCalls(maxPendingCalls);
+    }
+
+    public int getPendingCallsCount()
+    {
+        return rpc.getPendingCallsCount();
+    }
+
+    /**
+     * @return how many requests sent are still waiting for their responses
+     */
+    public int getPendingRequestsCount()
+    {
+        return rpc.getPendingRequestsCount();
+    }
+
+    public RpcMetrics getMetrics()
+    {
+        return rpc.getMetrics();
+    }
+
+    /**
+     * See JsonRPC.setMetrics
+     */
+    public void setMetrics(RpcMetrics metrics)
+    {
+        rpc.setMetrics(metrics);
+    }
+
+    private static int utf8Length(String data)
+    {
+        int length = data.length();
+        int bytes = length;
+
+        for (int i = 0; i < length; i++)
+        {
+            char c = data.charAt(i);
+
+            if (c >= 0x80)
+            {
+                if (c < 0x800)
+                {
+                    bytes += 1;
+                }
+                else if (Character.isHighSurrogate(c))
+                {
+                    // a surrogate pair takes 4 bytes, 2 per char
+                    bytes += 1;
+                }
+                else
+                {
+                    bytes += Character.isLowSurrogate(c) ? 1 : 2;
+                }
+            }
+        }
+
+        return bytes;
+    }
 }
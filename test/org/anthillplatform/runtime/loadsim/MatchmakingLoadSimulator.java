@@ -0,0 +1,550 @@
+package org.anthillplatform.runtime.loadsim;
+
+import com.mashape.unirest.http.Unirest;
+import org.anthillplatform.runtime.AnthillRuntime;
+import org.anthillplatform.runtime.requests.Request;
+import org.anthillplatform.runtime.services.GameService;
+import org.anthillplatform.runtime.services.LoginService;
+import org.anthillplatform.runtime.util.ApplicationInfo;
+import org.json.JSONObject;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs many simulated players through the matchmaking flows of GameService against a StandInGameMaster,
+ * and reports the throughput and latency of each operation.
+ *
+ * A player repeatedly either finds a room (listGames, then joinAnyGame over the rooms listed, or joinGame
+ * with autoCreate if none fits or they have filled up meanwhile), or plays with a party (joins one of the parties still gathering, or opens
+ * a new one, and waits for the game to start). Between the rounds a player "thinks" for a random while.
+ *
+ * Usage: MatchmakingLoadSimulator [--players 2000] [--duration 30] [--party-share 0.2] [--party-size 4]
+ *     [--think 500] [--game 3000] [--rooms-cache-ttl 0] [--modes 4] [--connections 256]
+ *
+ * Durations are in milliseconds, except --duration, which is in seconds.
+ */
+public class MatchmakingLoadSimulator
+{
+    private static final String GAME_SERVER = "sim";
+    private static final long PARTY_TIMEOUT = 10000;
+
+    private final Options options;
+    private final StandInGameMaster master;
+    private final GameService games;
+    private final GameService parties;
+    private final LoginService login;
+    private final ScheduledExecutorService scheduler;
+
+    private final ConcurrentLinkedQueue<String> gathering = new ConcurrentLinkedQueue<String>();
+    private final LinkedHashMap<String, Operation> operations = new LinkedHashMap<String, Operation>();
+    private final Operation list;
+    private final Operation join;
+    private final Operation partyOpen;
+    private final Operation partyStart;
+
+    private volatile long deadline;
+    private volatile long measuredUntil;
+    private CountDownLatch finished;
+
+    public static class Options
+    {
+        public int players = 2000;
+        public long duration = 30000;
+        public double partyShare = 0.2;
+        public int partySize = 4;
+        public long think = 500;
+        public long game = 3000;
+        public long roomsCacheTTL = 0;
+        public int modes = 4;
+        public int connections = 256;
+
+        public static Options parse(String[] args)
+        {
+            Options options = new Options();
+
+            for (int i = 0; i + 1 < args.length; i += 2)
+            {
+                String name = args[i];
+                String value = args[i + 1];
+
+                if ("--players".equals(name))
+                    options.players = Integer.parseInt(value);
+                else if ("--duration".equals(name))
+                    options.duration = Long.parseLong(value) * 1000;
+                else if ("--party-share".equals(name))
+                    options.partyShare = Double.parseDouble(value);
+                else if ("--party-size".equals(name))
+                    options.partySize = Integer.parseInt(value);
+                else if ("--think".equals(name))
+                    options.think = Long.parseLong(value);
+                else if ("--game".equals(name))
+                    options.game = Long.parseLong(value);
+                else if ("--rooms-cache-ttl".equals(name))
+                    options.roomsCacheTTL = Long.parseLong(value);
+                else if ("--modes".equals(name))
+                    options.modes = Integer.parseInt(value);
+                else if ("--connections".equals(name))
+                    options.connections = Integer.parseInt(value);
+                else
+                    throw new IllegalArgumentException("Unknown option: " + name);
+            }
+
+            return options;
+        }
+    }
+
+    /**
+     * Latencies and failures of one kind of operation. Only the operations started before the deadline
+     * are counted, so the rounds finished after it do not skew the throughput.
+     */
+    private class Operation
+    {
+        private final String name;
+        private final AtomicLong errors = new AtomicLong();
+        private long[] latencies = new long[1024];
+        private int count;
+
+        private Operation(String name)
+        {
+            this.name = name;
+        }
+
+        private void success(long started)
+        {
+            long finished = System.nanoTime();
+
+            if (started - measuredUntil >= 0)
+                return;
+
+            synchronized (this)
+            {
+                if (count == latencies.length)
+                {
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                }
+
+                latencies[count++] = finished - started;
+            }
+        }
+
+        private void fail(long started)
+        {
+            if (started - measuredUntil < 0)
+            {
+                errors.incrementAndGet();
+            }
+        }
+
+        /**
+         * @return the nearest-rank percentile of the sorted latencies, in milliseconds
+         */
+        private double percentile(long[] sorted, double percent)
+        {
+            if (sorted.length == 0)
+                return 0;
+
+            int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+            return sorted[Math.max(rank, 1) - 1] / 1e6;
+        }
+
+        private String report(double seconds)
+        {
+            long[] sorted;
+
+            synchronized (this)
+            {
+                sorted = Arrays.copyOf(latencies, count);
+            }
+
+            Arrays.sort(sorted);
+
+            return String.format("%-12s %8d %7d %9.1f %8.1f %8.1f %8.1f %8.1f",
+                name, sorted.length, errors.get(), sorted.length / seconds,
+                percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), percentile(sorted, 100));
+        }
+    }
+
+    public MatchmakingLoadSimulator(Options options) throws Exception
+    {
+        this.options = options;
+        this.master = new StandInGameMaster(options.game);
+        this.master.start();
+
+        Unirest.setConcurrency(options.connections, options.connections);
+
+        AnthillRuntime runtime = AnthillRuntime.Create(master.getLocation(),
+            new ApplicationInfo("sim", "sim", "1.0"));
+
+        this.games = ((GameService) runtime.setService(GameService.ID, master.getLocation()));
+        this.games.setRoomsCacheTTL(options.roomsCacheTTL);
+
+        // the party sessions are served on a port of their own
+        this.parties = new GameService(runtime, master.getPartyLocation());
+
+        this.login = ((LoginService) runtime.setService(LoginService.ID, master.getLocation()));
+        this.scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+
+        this.list = operation("list");
+        this.join = operation("join");
+        this.partyOpen = operation("party.open");
+        this.partyStart = operation("party.start");
+    }
+
+    private Operation operation(String name)
+    {
+        Operation operation = new Operation(name);
+        operations.put(name, operation);
+        return operation;
+    }
+
+    private class Player
+    {
+        private final LoginService.AccessToken accessToken;
+        private final Random random;
+
+        private Player(int index)
+        {
+            this.accessToken = login.newAccessToken("player-" + index);
+            this.random = new Random(index);
+        }
+
+        private void think()
+        {
+            if (System.currentTimeMillis() >= deadline)
+            {
+                finished.countDown();
+                return;
+            }
+
+            long delay = options.think > 0 ? (long)(random.nextDouble() * options.think * 2) : 0;
+
+            scheduler.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    play();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private void play()
+        {
+            if (random.nextDouble() < options.partyShare)
+            {
+                playWithParty();
+            }
+            else
+            {
+                findRoom();
+            }
+        }
+
+        private void findRoom()
+        {
+            final String mode = "mode-" + random.nextInt(Math.max(1, options.modes));
+            final GameService.RoomsFilter filter = new GameService.RoomsFilter().putEquals("mode", mode);
+            final long started = System.nanoTime();
+
+            games.listGames(accessToken, GAME_SERVER, filter, new GameService.ListGamesCallback()
+            {
+                @Override
+                public void result(GameService service, Request request, Request.Result result,
+                                   List<GameService.Room> rooms)
+                {
+                    if (result != Request.Result.success)
+                    {
+                        list.fail(started);
+                        think();
+                        return;
+                    }
+
+                    list.success(started);
+
+                    ArrayList<GameService.Room> free = new ArrayList<GameService.Room>();
+
+                    for (GameService.Room room : rooms)
+                    {
+                        if (!room.isFull())
+                        {
+                            free.add(room);
+                        }
+                    }
+
+                    joinRoom(mode, filter, free);
+                }
+            });
+        }
+
+        private void joinRoom(final String mode, final GameService.RoomsFilter filter, List<GameService.Room> rooms)
+        {
+            final long started = System.nanoTime();
+
+            final GameService.JoinGameCallback callback = new GameService.JoinGameCallback()
+            {
+                @Override
+                public void success(String roomId, String key, String host, int[] ports, JSONObject settings)
+                {
+                    join.success(started);
+                    think();
+                }
+
+                @Override
+                public void fail(Request request, Request.Result result)
+                {
+                    join.fail(started);
+                    think();
+                }
+            };
+
+            if (rooms.isEmpty())
+            {
+                joinOrCreate(mode, filter, callback);
+                return;
+            }
+
+            games.joinAnyGame(accessToken, rooms, new GameService.JoinGameCallback()
+            {
+                @Override
+                public void success(String roomId, String key, String host, int[] ports, JSONObject settings)
+                {
+                    callback.success(roomId, key, host, ports, settings);
+                }
+
+                @Override
+                public void fail(Request request, Request.Result result)
+                {
+                    // the rooms listed have filled up meanwhile
+                    joinOrCreate(mode, filter, callback);
+                }
+            });
+        }
+
+        private void joinOrCreate(String mode, GameService.RoomsFilter filter, GameService.JoinGameCallback callback)
+        {
+            GameService.RoomSettings settings = new GameService.RoomSettings()
+                .add("mode", mode)
+                .add("max_players", StandInGameMaster.DEFAULT_MAX_PLAYERS);
+
+            games.joinGame(accessToken, GAME_SERVER, filter, true, settings, callback);
+        }
+
+        private void close(GameService.PartySession[] session)
+        {
+            synchronized (session)
+            {
+                if (session[0] != null)
+                {
+                    session[0].close();
+                }
+            }
+        }
+
+        private void playWithParty()
+        {
+            final long started = System.nanoTime();
+            final AtomicBoolean done = new AtomicBoolean();
+            final String partyId = gathering.poll();
+
+            final GameService.PartySession[] session = new GameService.PartySession[1];
+
+            final ScheduledFuture<?> timeout = scheduler.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (done.compareAndSet(false, true))
+                    {
+                        partyStart.fail(started);
+                        close(session);
+                        think();
+                    }
+                }
+            }, PARTY_TIMEOUT, TimeUnit.MILLISECONDS);
+
+            GameService.PartySession.Listener listener = new GameService.PartySession.Listener()
+            {
+                private void failed()
+                {
+                    if (done.compareAndSet(false, true))
+                    {
+                        timeout.cancel(false);
+                        partyStart.fail(started);
+                        think();
+                    }
+                }
+
+                @Override
+                public void onError(int code, String message, String data)
+                {
+                    //
+                }
+
+                @Override
+                public void onError(Exception e)
+                {
+                    //
+                }
+
+                @Override
+                public void onOpen()
+                {
+                    //
+                }
+
+                @Override
+                public void onClose(int code, String message, boolean remote)
+                {
+                    if (!done.get())
+                    {
+                        partyOpen.fail(started);
+                    }
+
+                    failed();
+                }
+
+                @Override
+                public void onPartyInfoReceived(GameService.Party party, List<GameService.PartyMember> members)
+                {
+                    partyOpen.success(started);
+
+                    if (partyId == null)
+                    {
+                        // let the others find it
+                        for (int i = 1; i < party.getMaxMembers(); i++)
+                        {
+                            gathering.add(party.getId());
+                        }
+                    }
+                }
+
+                @Override
+                public void onPlayerJoined(GameService.PartyMember member)
+                {
+                    //
+                }
+
+                @Override
+                public void onPlayerLeft(GameService.PartyMember member)
+                {
+                    //
+                }
+
+                @Override
+                public void onGameStarting(JSONObject payload)
+                {
+                    //
+                }
+
+                @Override
+                public void onGameStartFailed(int code, String message)
+                {
+                    failed();
+                }
+
+                @Override
+                public void onGameStarted(String roomId, String slot, String key, String host,
+                                          ArrayList<Integer> ports, JSONObject roomSettings)
+                {
+                    if (done.compareAndSet(false, true))
+                    {
+                        timeout.cancel(false);
+                        partyStart.success(started);
+                        close(session);
+                        think();
+                    }
+                }
+
+                @Override
+                public void onPartyClosed(JSONObject payload)
+                {
+                    //
+                }
+
+                @Override
+                public void onCustomMessage(String messageType, JSONObject payload)
+                {
+                    //
+                }
+            };
+
+            synchronized (session)
+            {
+                if (partyId != null)
+                {
+                    session[0] = parties.openExistingPartySession(partyId, accessToken, listener);
+                }
+                else
+                {
+                    JSONObject roomSettings = new JSONObject().put("mode", "party");
+
+                    session[0] = parties.openNewPartySession(GAME_SERVER, null, roomSettings, null, null,
+                        options.partySize, null, null, true, true, true, accessToken, listener);
+                }
+            }
+        }
+    }
+
+    public void run() throws InterruptedException
+    {
+        System.out.println(String.format("%d players for %ds, %.0f%% in parties of %d, " +
+            "think %dms, game %dms, rooms cache ttl %dms",
+            options.players, options.duration / 1000, options.partyShare * 100, options.partySize,
+            options.think, options.game, options.roomsCacheTTL));
+
+        measuredUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(options.duration);
+        deadline = System.currentTimeMillis() + options.duration;
+        finished = new CountDownLatch(options.players);
+
+        for (int i = 0; i < options.players; i++)
+        {
+            new Player(i).think();
+        }
+
+        // players finish the round they are in, but give up on the stuck ones eventually
+        finished.await(options.duration + PARTY_TIMEOUT * 2, TimeUnit.MILLISECONDS);
+
+        // the operations counted are the ones started within the duration, the rest are left out
+        double seconds = options.duration / 1000.0;
+
+        System.out.println();
+        System.out.println(String.format("%-12s %8s %7s %9s %8s %8s %8s %8s",
+            "operation", "count", "errors", "ops/s", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+
+        for (Operation operation : operations.values())
+        {
+            System.out.println(operation.report(seconds));
+        }
+
+        System.out.println();
+        System.out.println("served: " + master.getRequestCounts());
+        System.out.println(String.format("rooms: %d, players in rooms: %d, parties gathering: %d",
+            master.getRoomsCount(), master.getPlayersCount(), master.getPartiesCount()));
+    }
+
+    public void stop() throws Exception
+    {
+        scheduler.shutdownNow();
+        AnthillRuntime.Get().release();
+        master.stop();
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        MatchmakingLoadSimulator simulator = new MatchmakingLoadSimulator(Options.parse(args));
+
+        try
+        {
+            simulator.run();
+        }
+        finally
+        {
+            simulator.stop();
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,1013 @@
+package org.anthillplatform.runtime.loadsim;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.anthillplatform.runtime.services.CompiledRoomsFilter;
+import org.anthillplatform.runtime.services.GameService;
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for the game master service, good enough to drive GameService against
+ * (see MatchmakingLoadSimulator). Everything lives in memory, the rooms are never actually spawned, and
+ * tokens are not checked: the raw access token is taken as the account.
+ *
+ * HTTP endpoints: /status, /regions, /rooms, /create, /join, /room/{id}/join, /party/create, /party/{id}.
+ * Party sessions (/party/create/.../session and /party/{id}/session) are served by a WebSocket server
+ * on a port of its own (see getPartyLocation), since the HTTP server cannot upgrade the connections.
+ *
+ * A player who joins a room stays in it for gameDuration, then leaves, and an empty room is removed.
+ */
+public class StandInGameMaster
+{
+    public static final String HOST = "127.0.0.1";
+    public static final String REGION = "local";
+    public static final int DEFAULT_MAX_PLAYERS = 8;
+
+    private final HttpServer http;
+    private final PartyServer partyServer;
+    private final ExecutorService httpExecutor;
+    private final ScheduledExecutorService timer;
+    private final long gameDuration;
+
+    private final HashMap<String, StandInRoom> rooms;
+    private final ConcurrentHashMap<String, StandInParty> parties;
+    private final AtomicLong nextId;
+    private final ConcurrentHashMap<String, AtomicLong> requests;
+
+    private class StandInRoom
+    {
+        private final String id;
+        private final String gameServer;
+        private final JSONObject settings;
+        private final int maxPlayers;
+        private int players;
+
+        private StandInRoom(String gameServer, JSONObject settings)
+        {
+            this.id = String.valueOf(nextId.incrementAndGet());
+            this.gameServer = gameServer;
+            this.settings = settings;
+            this.maxPlayers = settings.optInt("max_players", DEFAULT_MAX_PLAYERS);
+        }
+
+        private boolean isFull()
+        {
+            return players >= maxPlayers;
+        }
+
+        private JSONObject location()
+        {
+            JSONObject location = new JSONObject();
+
+            location.put("host", HOST);
+            location.put("ports", new JSONArray().put(30000 + Integer.parseInt(id) % 1000));
+
+            return location;
+        }
+
+        private JSONObject toJson()
+        {
+            JSONObject room = new JSONObject();
+
+            room.put("id", id);
+            room.put("players", players);
+            room.put("max_players", maxPlayers);
+            room.put("settings", settings);
+            room.put("location", location());
+
+            return room;
+        }
+    }
+
+    private static class Member
+    {
+        private final WebSocket connection;
+        private final String account;
+        private final int role;
+        private final JSONObject profile;
+
+        private Member(WebSocket connection, String account, int role, JSONObject profile)
+        {
+            this.connection = connection;
+            this.account = account;
+            this.role = role;
+            this.profile = profile;
+        }
+
+        private JSONObject toJson()
+        {
+            JSONObject member = new JSONObject();
+
+            member.put("account", account);
+            member.put("role", role);
+            member.put("profile", profile != null ? profile : new JSONObject());
+
+            return member;
+        }
+    }
+
+    private class StandInParty
+    {
+        private final String id;
+        private final String gameServer;
+        private final int maxMembers;
+        private final boolean autoStart;
+        private final boolean autoClose;
+        private final JSONObject settings;
+        private final JSONObject roomSettings;
+
+        // connected sessions, and the members among them
+        private final Set<WebSocket> sessions = new LinkedHashSet<WebSocket>();
+        private final LinkedHashMap<WebSocket, Member> members = new LinkedHashMap<WebSocket, Member>();
+        private boolean closed;
+
+        private StandInParty(String gameServer, Map<String, String> args)
+        {
+            this.id = String.valueOf(nextId.incrementAndGet());
+            this.gameServer = gameServer;
+            this.maxMembers = intOf(args.get("max_members"), 8);
+            this.autoStart = !"false".equals(args.get("auto_start"));
+            this.autoClose = !"false".equals(args.get("auto_close"));
+            this.settings = objectOf(args.get("party_settings"));
+            this.roomSettings = objectOf(args.get("room_settings"));
+        }
+
+        private JSONObject toJson()
+        {
+            JSONObject party = new JSONObject();
+
+            party.put("id", id);
+            party.put("num_members", members.size());
+            party.put("max_members", maxMembers);
+            party.put("settings", settings);
+
+            return party;
+        }
+
+        private JSONObject info()
+        {
+            JSONArray members_ = new JSONArray();
+
+            for (Member member : members.values())
+            {
+                members_.put(member.toJson());
+            }
+
+            JSONObject info = new JSONObject();
+            info.put("party", toJson());
+            info.put("members", members_);
+
+            return info;
+        }
+
+        private synchronized boolean join(WebSocket connection, String account, JSONObject profile)
+        {
+            if (closed || members.size() >= maxMembers || members.containsKey(connection))
+                return false;
+
+            Member member = new Member(connection, account, members.isEmpty() ? 1000 : 0, profile);
+            members.put(connection, member);
+
+            broadcast("player_joined", member.toJson());
+
+            if (autoStart && members.size() >= maxMembers)
+            {
+                start(new JSONObject());
+            }
+
+            return true;
+        }
+
+        private synchronized boolean leave(WebSocket connection)
+        {
+            Member member = members.remove(connection);
+
+            if (member == null)
+                return false;
+
+            broadcast("player_left", member.toJson());
+            return true;
+        }
+
+        private synchronized void disconnected(WebSocket connection)
+        {
+            leave(connection);
+            sessions.remove(connection);
+
+            if (sessions.isEmpty())
+            {
+                closed = true;
+                parties.remove(id);
+            }
+        }
+
+        private synchronized void start(JSONObject message)
+        {
+            if (closed)
+                return;
+
+            broadcast("game_starting", message);
+
+            JSONObject settings = roomSettings != null ? new JSONObject(roomSettings.toString()) : new JSONObject();
+
+            if (!settings.has("max_players"))
+            {
+                settings.put("max_players", Math.max(maxMembers, DEFAULT_MAX_PLAYERS));
+            }
+
+            StandInRoom room = createRoom(gameServer, settings);
+
+            for (Member member : members.values())
+            {
+                reserve(room);
+
+                JSONObject started = new JSONObject();
+
+                started.put("id", room.id);
+                started.put("slot", member.account);
+                started.put("key", "key-" + room.id + "-" + member.account);
+                started.put("location", room.location());
+                started.put("settings", room.settings);
+
+                notify(member.connection, "game_started", started);
+            }
+
+            if (autoClose)
+            {
+                closed = true;
+                parties.remove(id);
+            }
+        }
+
+        private synchronized void close(JSONObject message)
+        {
+            closed = true;
+            parties.remove(id);
+
+            broadcast("party_closed", message);
+
+            for (WebSocket session : sessions)
+            {
+                session.close(1000, "Party closed");
+            }
+        }
+
+        private void broadcast(String messageType, JSONObject payload)
+        {
+            for (WebSocket session : sessions)
+            {
+                notify(session, messageType, payload);
+            }
+        }
+
+        private void notify(WebSocket session, String messageType, JSONObject payload)
+        {
+            JSONObject params = new JSONObject();
+            params.put("message_type", messageType);
+            params.put("payload", payload);
+
+            call(session, "message", params);
+        }
+    }
+
+    /**
+     * What a party session connection is attached to
+     */
+    private static class Session
+    {
+        private final StandInParty party;
+        private final String account;
+
+        private Session(StandInParty party, String account)
+        {
+            this.party = party;
+            this.account = account;
+        }
+    }
+
+    private class PartyServer extends WebSocketServer
+    {
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        private PartyServer(int port)
+        {
+            super(new InetSocketAddress(HOST, port));
+        }
+
+        @Override
+        public void onStart()
+        {
+            started.countDown();
+        }
+
+        @Override
+        public void onOpen(WebSocket connection, ClientHandshake handshake)
+        {
+            String resource = handshake.getResourceDescriptor();
+            int query = resource.indexOf('?');
+
+            String path = query >= 0 ? resource.substring(0, query) : resource;
+            Map<String, String> args = parseQuery(query >= 0 ? resource.substring(query + 1) : null);
+            String[] segments = segmentsOf(path);
+
+            count("party session");
+
+            StandInParty party;
+
+            if (segments.length == 6 && "party".equals(segments[0]) && "create".equals(segments[1]) &&
+                "session".equals(segments[5]))
+            {
+                party = new StandInParty(segments[4], args);
+                parties.put(party.id, party);
+            }
+            else if (segments.length == 3 && "party".equals(segments[0]) && "session".equals(segments[2]))
+            {
+                party = parties.get(segments[1]);
+            }
+            else
+            {
+                connection.close(4004, "Not found");
+                return;
+            }
+
+            if (party == null)
+            {
+                connection.close(4004, "No such party");
+                return;
+            }
+
+            String account = args.get("access_token");
+            connection.setAttachment(new Session(party, account));
+
+            synchronized (party)
+            {
+                if (party.closed)
+                {
+                    connection.close(4004, "No such party");
+                    return;
+                }
+
+                party.sessions.add(connection);
+
+                JSONObject params = new JSONObject();
+                params.put("party_info", party.info());
+                call(connection, "party", params);
+
+                if (!"false".equals(args.get("auto_join")))
+                {
+                    party.join(connection, account, objectOf(args.get("member_profile")));
+                }
+            }
+        }
+
+        @Override
+        public void onClose(WebSocket connection, int code, String reason, boolean remote)
+        {
+            Session session = connection.getAttachment();
+
+            if (session != null)
+            {
+                session.party.disconnected(connection);
+            }
+        }
+
+        @Override
+        public void onMessage(WebSocket connection, String message)
+        {
+            Session session = connection.getAttachment();
+
+            if (session == null)
+                return;
+
+            JSONObject request;
+
+            try
+            {
+                request = new JSONObject(message);
+            }
+            catch (JSONException e)
+            {
+                return;
+            }
+
+            String method = request.optString("method", null);
+            int id = request.optInt("id", 0);
+
+            // responses to our calls, and errors
+            if (method == null || id <= 0)
+                return;
+
+            count("party " + method);
+
+            JSONObject params = request.optJSONObject("params");
+
+            if (params == null)
+            {
+                params = new JSONObject();
+            }
+
+            StandInParty party = session.party;
+            boolean success;
+
+            if ("join_party".equals(method))
+            {
+                success = party.join(connection, session.account, params.optJSONObject("member_profile"));
+            }
+            else if ("leave_party".equals(method))
+            {
+                success = party.leave(connection);
+            }
+            else if ("send_message".equals(method))
+            {
+                synchronized (party)
+                {
+                    party.broadcast("custom", params.optJSONObject("payload"));
+                }
+
+                success = true;
+            }
+            else if ("start_game".equals(method))
+            {
+                party.start(params.optJSONObject("message"));
+                success = true;
+            }
+            else if ("close_party".equals(method))
+            {
+                respond(connection, id, true);
+                party.close(params.optJSONObject("message"));
+                return;
+            }
+            else
+            {
+                JSONObject error = new JSONObject();
+                error.put("code", -32601);
+                error.put("message", "Method not found");
+
+                JSONObject response = new JSONObject();
+                response.put("jsonrpc", "2.0");
+                response.put("id", id);
+                response.put("error", error);
+
+                send(connection, response);
+                return;
+            }
+
+            respond(connection, id, success);
+        }
+
+        @Override
+        public void onError(WebSocket connection, Exception e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    public StandInGameMaster(long gameDuration) throws IOException
+    {
+        this(0, 0, gameDuration, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * @param httpPort a port for the HTTP endpoints, or 0 to pick any free one
+     * @param partyPort a port for the party sessions, or 0 to pick any free one
+     * @param gameDuration how long (in milliseconds) a player stays in a room once joined
+     * @param httpThreads how many threads serve the HTTP requests
+     */
+    public StandInGameMaster(int httpPort, int partyPort, long gameDuration, int httpThreads) throws IOException
+    {
+        this.gameDuration = gameDuration;
+        this.rooms = new HashMap<String, StandInRoom>();
+        this.parties = new ConcurrentHashMap<String, StandInParty>();
+        this.nextId = new AtomicLong();
+        this.requests = new ConcurrentHashMap<String, AtomicLong>();
+
+        this.timer = Executors.newSingleThreadScheduledExecutor();
+        this.httpExecutor = Executors.newFixedThreadPool(httpThreads);
+
+        this.http = HttpServer.create(new InetSocketAddress(HOST, httpPort), 1024);
+        this.http.setExecutor(httpExecutor);
+        this.http.createContext("/", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                try
+                {
+                    serve(exchange);
+                }
+                catch (Exception e)
+                {
+                    e.printStackTrace();
+                    respond(exchange, 500, null);
+                }
+                finally
+                {
+                    exchange.close();
+                }
+            }
+        });
+
+        this.partyServer = new PartyServer(partyPort);
+        this.partyServer.setReuseAddr(true);
+    }
+
+    public void start() throws InterruptedException
+    {
+        http.start();
+        partyServer.start();
+        partyServer.started.await();
+    }
+
+    public void stop() throws IOException, InterruptedException
+    {
+        http.stop(0);
+        partyServer.stop(1000);
+        httpExecutor.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    /**
+     * @return a location to point GameService to
+     */
+    public String getLocation()
+    {
+        return "http://" + HOST + ":" + http.getAddress().getPort();
+    }
+
+    /**
+     * @return a location to open the party sessions with (GameService.openNewPartySession etc)
+     */
+    public String getPartyLocation()
+    {
+        return "http://" + HOST + ":" + partyServer.getPort();
+    }
+
+    /**
+     * @return how many requests (and party session calls) were served, per endpoint
+     */
+    public Map<String, Long> getRequestCounts()
+    {
+        TreeMap<String, Long> result = new TreeMap<String, Long>();
+
+        for (Map.Entry<String, AtomicLong> entry : requests.entrySet())
+        {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+
+        return result;
+    }
+
+    public synchronized int getRoomsCount()
+    {
+        return rooms.size();
+    }
+
+    public synchronized int getPlayersCount()
+    {
+        int players = 0;
+
+        for (StandInRoom room : rooms.values())
+        {
+            players += room.players;
+        }
+
+        return players;
+    }
+
+    public int getPartiesCount()
+    {
+        return parties.size();
+    }
+
+    private void count(String endpoint)
+    {
+        AtomicLong counter = requests.get(endpoint);
+
+        if (counter == null)
+        {
+            AtomicLong newCounter = new AtomicLong();
+            counter = requests.putIfAbsent(endpoint, newCounter);
+
+            if (counter == null)
+                counter = newCounter;
+        }
+
+        counter.incrementAndGet();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException
+    {
+        String method = exchange.getRequestMethod();
+        String[] path = segmentsOf(exchange.getRequestURI().getPath());
+
+        Map<String, String> args = parseQuery(exchange.getRequestURI().getRawQuery());
+        args.putAll(parseQuery(readBody(exchange)));
+
+        if (path.length == 1 && "status".equals(path[0]))
+        {
+            count("status");
+            respond(exchange, 200, new JSONObject().put("players", getPlayersCount()));
+        }
+        else if (path.length == 1 && "regions".equals(path[0]))
+        {
+            count("regions");
+
+            JSONObject settings = new JSONObject();
+            settings.put("host", HOST);
+            settings.put("port", http.getAddress().getPort());
+
+            JSONObject regions = new JSONObject();
+            regions.put(REGION, new JSONObject().put("settings", settings));
+
+            respond(exchange, 200, new JSONObject().put("regions", regions).put("my_region", REGION));
+        }
+        else if (path.length == 4 && "rooms".equals(path[0]) && "GET".equals(method))
+        {
+            count("rooms");
+            respond(exchange, 200, listRooms(path[2], args));
+        }
+        else if (path.length == 4 && "create".equals(path[0]) && "POST".equals(method))
+        {
+            count("create");
+
+            StandInRoom room = createRoom(path[2], objectOf(args.get("settings")));
+            respond(exchange, 200, joined(room, args));
+        }
+        else if (path.length == 4 && "join".equals(path[0]) && "POST".equals(method))
+        {
+            count("join");
+            JSONObject response = joinAny(path[2], args);
+            respond(exchange, response != null ? 200 : 404, response);
+        }
+        else if (path.length == 4 && "room".equals(path[0]) && "join".equals(path[3]) && "POST".equals(method))
+        {
+            count("room join");
+            respond(exchange, joinRoom(exchange, path[2], args), null);
+        }
+        else if (path.length == 5 && "party".equals(path[0]) && "create".equals(path[1]) && "POST".equals(method))
+        {
+            count("party create");
+
+            StandInParty party = new StandInParty(path[4], args);
+            parties.put(party.id, party);
+
+            respond(exchange, 200, new JSONObject().put("party", party.toJson()));
+        }
+        else if (path.length == 2 && "party".equals(path[0]))
+        {
+            StandInParty party = parties.get(path[1]);
+
+            if (party == null)
+            {
+                respond(exchange, 404, null);
+            }
+            else if ("DELETE".equals(method))
+            {
+                count("party delete");
+                party.close(objectOf(args.get("message")));
+                respond(exchange, 200, new JSONObject());
+            }
+            else
+            {
+                count("party get");
+
+                synchronized (party)
+                {
+                    respond(exchange, 200, new JSONObject().put("party", party.toJson()));
+                }
+            }
+        }
+        else
+        {
+            respond(exchange, 404, null);
+        }
+    }
+
+    private JSONObject listRooms(String gameServer, Map<String, String> args)
+    {
+        CompiledRoomsFilter filter = filterOf(args.get("settings")).compile();
+        boolean showFull = !"false".equals(args.get("show_full"));
+
+        JSONArray result = new JSONArray();
+
+        synchronized (this)
+        {
+            for (StandInRoom room : rooms.values())
+            {
+                if (!room.gameServer.equals(gameServer) || (!showFull && room.isFull()))
+                    continue;
+
+                if (filter.matches(room.settings))
+                {
+                    result.put(room.toJson());
+                }
+            }
+        }
+
+        return new JSONObject().put("rooms", result);
+    }
+
+    private synchronized StandInRoom createRoom(String gameServer, JSONObject settings)
+    {
+        StandInRoom room = new StandInRoom(gameServer, settings);
+        rooms.put(room.id, room);
+        return room;
+    }
+
+    private JSONObject joined(StandInRoom room, Map<String, String> args)
+    {
+        reserve(room);
+
+        JSONObject location = room.location();
+        location.put("init", new JSONObject());
+
+        JSONObject response = new JSONObject();
+
+        response.put("id", room.id);
+        response.put("key", "key-" + room.id + "-" + args.get("access_token"));
+        response.put("location", location);
+        response.put("settings", room.settings);
+
+        return response;
+    }
+
+    private JSONObject joinAny(String gameServer, Map<String, String> args)
+    {
+        CompiledRoomsFilter filter = filterOf(args.get("settings")).compile();
+        StandInRoom best = null;
+
+        synchronized (this)
+        {
+            for (StandInRoom room : rooms.values())
+            {
+                if (!room.gameServer.equals(gameServer) || room.isFull() || !filter.matches(room.settings))
+                    continue;
+
+                if (best == null || room.maxPlayers - room.players < best.maxPlayers - best.players)
+                {
+                    best = room;
+                }
+            }
+
+            if (best != null)
+            {
+                return joined(best, args);
+            }
+        }
+
+        if (!"true".equals(args.get("auth_create")))
+            return null;
+
+        return joined(createRoom(gameServer, objectOf(args.get("create_settings"))), args);
+    }
+
+    private int joinRoom(HttpExchange exchange, String roomId, Map<String, String> args) throws IOException
+    {
+        JSONObject response;
+
+        synchronized (this)
+        {
+            StandInRoom room = rooms.get(roomId);
+
+            if (room == null)
+                return 404;
+
+            if (room.isFull())
+                return 409;
+
+            response = joined(room, args);
+        }
+
+        respond(exchange, 200, response);
+        return -1;
+    }
+
+    /**
+     * Takes a slot in the room, for gameDuration
+     */
+    private synchronized void reserve(final StandInRoom room)
+    {
+        room.players++;
+
+        timer.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                synchronized (StandInGameMaster.this)
+                {
+                    room.players--;
+
+                    if (room.players <= 0)
+                    {
+                        rooms.remove(room.id);
+                    }
+                }
+            }
+        }, gameDuration, TimeUnit.MILLISECONDS);
+    }
+
+    private void call(WebSocket connection, String method, JSONObject params)
+    {
+        JSONObject call = new JSONObject();
+
+        call.put("jsonrpc", "2.0");
+        call.put("method", method);
+        call.put("params", params);
+
+        send(connection, call);
+    }
+
+    private void respond(WebSocket connection, int id, Object result)
+    {
+        JSONObject response = new JSONObject();
+
+        response.put("jsonrpc", "2.0");
+        response.put("id", id);
+        response.put("result", result);
+
+        send(connection, response);
+    }
+
+    private static void send(WebSocket connection, JSONObject message)
+    {
+        if (connection.isOpen())
+        {
+            try
+            {
+                connection.send(message.toString());
+            }
+            catch (Exception ignored)
+            {
+                // closed in between
+            }
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int code, JSONObject body) throws IOException
+    {
+        if (code < 0)
+            return;
+
+        byte[] data = (body != null ? body.toString() : "").getBytes("UTF-8");
+
+        if (body != null)
+        {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+        }
+
+        exchange.sendResponseHeaders(code, data.length > 0 ? data.length : -1);
+
+        if (data.length > 0)
+        {
+            OutputStream output = exchange.getResponseBody();
+            output.write(data);
+            output.close();
+        }
+    }
+
+    /**
+     * Builds the filter back from its JSON, so the rooms would be checked by its compiled predicate
+     */
+    private static GameService.RoomsFilter filterOf(String json)
+    {
+        GameService.RoomsFilter filter = new GameService.RoomsFilter();
+        JSONObject filters = objectOf(json);
+
+        for (String key : filters.keySet())
+        {
+            Object condition = filters.get(key);
+
+            if (!(condition instanceof JSONObject) || !((JSONObject) condition).has("@func"))
+            {
+                filter.putEquals(key, condition);
+                continue;
+            }
+
+            JSONObject cond = ((JSONObject) condition);
+            String func = cond.optString("@func");
+            Object value = cond.opt("@value");
+
+            if (">".equals(func))
+                filter.putGreater(key, value);
+            else if (">=".equals(func))
+                filter.putGreaterOrEqual(key, value);
+            else if ("<".equals(func))
+                filter.putLess(key, value);
+            else if ("<=".equals(func))
+                filter.putLessOrEqual(key, value);
+            else if ("!=".equals(func))
+                filter.putNotEqual(key, value);
+            else if ("between".equals(func))
+                filter.putBetween(key, cond.opt("@a"), cond.opt("@b"));
+        }
+
+        return filter;
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException
+    {
+        InputStream input = exchange.getRequestBody();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+
+        while ((read = input.read(buffer)) > 0)
+        {
+            output.write(buffer, 0, read);
+        }
+
+        return output.size() > 0 ? output.toString("UTF-8") : null;
+    }
+
+    private static Map<String, String> parseQuery(String query)
+    {
+        HashMap<String, String> result = new HashMap<String, String>();
+
+        if (query == null || query.isEmpty())
+            return result;
+
+        for (String pair : query.split("&"))
+        {
+            int eq = pair.indexOf('=');
+
+            try
+            {
+                if (eq < 0)
+                {
+                    result.put(URLDecoder.decode(pair, "UTF-8"), "");
+                }
+                else
+                {
+                    result.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+                }
+            }
+            catch (UnsupportedEncodingException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+
+        return result;
+    }
+
+    private static String[] segmentsOf(String path)
+    {
+        ArrayList<String> segments = new ArrayList<String>();
+
+        for (String segment : path.split("/"))
+        {
+            if (!segment.isEmpty())
+            {
+                segments.add(segment);
+            }
+        }
+
+        return segments.toArray(new String[segments.size()]);
+    }
+
+    private static JSONObject objectOf(String json)
+    {
+        if (json == null || json.isEmpty())
+            return new JSONObject();
+
+        try
+        {
+            return new JSONObject(json);
+        }
+        catch (JSONException e)
+        {
+            return new JSONObject();
+        }
+    }
+
+    private static int intOf(String value, int def)
+    {
+        try
+        {
+            return value != null ? Integer.parseInt(value) : def;
+        }
+        catch (NumberFormatException e)
+        {
+            return def;
+        }
+    }
+}
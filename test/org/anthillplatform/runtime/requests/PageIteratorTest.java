@@ -0,0 +1,206 @@
+package org.anthillplatform.runtime.requests;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class PageIteratorTest
+{
+    /**
+     * A list of total items (0, 1, 2...), the requests fail from failAt offset on
+     */
+    private static class Fetcher implements PageIterator.PageFetcher<Integer>
+    {
+        private final int total;
+        private final int failAt;
+        private final ExecutorService executor;
+        private final List<Integer> offsets = new ArrayList<Integer>();
+
+        private Fetcher(int total, int failAt, ExecutorService executor)
+        {
+            this.total = total;
+            this.failAt = failAt;
+            this.executor = executor;
+        }
+
+        @Override
+        public void fetch(final int offset, final int limit, final PageIterator.PageCallback<Integer> callback)
+        {
+            synchronized (offsets)
+            {
+                offsets.add(offset);
+            }
+
+            Runnable complete = new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (offset >= failAt)
+                    {
+                        callback.complete(Request.Result.failed, null);
+                        return;
+                    }
+
+                    List<Integer> items = new ArrayList<Integer>();
+
+                    for (int i = offset; i < Math.min(total, offset + limit); i++)
+                    {
+                        items.add(i);
+                    }
+
+                    callback.complete(Request.Result.success, items);
+                }
+            };
+
+            if (executor != null)
+            {
+                executor.execute(complete);
+            }
+            else
+            {
+                complete.run();
+            }
+        }
+
+        private List<Integer> getOffsets()
+        {
+            synchronized (offsets)
+            {
+                return new ArrayList<Integer>(offsets);
+            }
+        }
+    }
+
+    private static List<Integer> drain(PageIterator<Integer> iterator)
+    {
+        List<Integer> result = new ArrayList<Integer>();
+
+        while (iterator.hasNext())
+        {
+            result.add(iterator.next());
+        }
+
+        return result;
+    }
+
+    private static List<Integer> range(int from, int to)
+    {
+        List<Integer> result = new ArrayList<Integer>();
+
+        for (int i = from; i < to; i++)
+        {
+            result.add(i);
+        }
+
+        return result;
+    }
+
+    private static List<Integer> divide(List<Integer> values, int by)
+    {
+        List<Integer> result = new ArrayList<Integer>();
+
+        for (Integer value : values)
+        {
+            result.add(value / by);
+        }
+
+        return result;
+    }
+
+    @Test
+    public void walksAllThePagesInOrder()
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try
+        {
+            for (int total : new int[]{0, 1, 9, 10, 11, 95})
+            {
+                for (int lookAhead = 0; lookAhead < 4; lookAhead++)
+                {
+                    Fetcher fetcher = new Fetcher(total, Integer.MAX_VALUE, executor);
+                    PageIterator<Integer> iterator = new PageIterator<Integer>(fetcher, 10, lookAhead);
+
+                    assertEquals("total " + total + ", look ahead " + lookAhead,
+                        range(0, total), drain(iterator));
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void requestsAheadButStopsAtTheLastPage()
+    {
+        Fetcher fetcher = new Fetcher(25, Integer.MAX_VALUE, null);
+        PageIterator<Integer> iterator = new PageIterator<Integer>(fetcher, 10, 2);
+
+        assertTrue(iterator.hasNext());
+
+        // the first page and two more ahead of it
+        assertEquals(range(0, 3), divide(fetcher.getOffsets(), 10));
+
+        assertEquals(range(0, 25), drain(iterator));
+
+        // the short page ends it, nothing is requested past the two pages already ahead of it
+        assertEquals(range(0, 5), divide(fetcher.getOffsets(), 10));
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void startsAtTheOffset()
+    {
+        Fetcher fetcher = new Fetcher(30, Integer.MAX_VALUE, null);
+
+        assertEquals(range(15, 30), drain(new PageIterator<Integer>(fetcher, 10, 1, 15)));
+    }
+
+    @Test
+    public void failedPageEndsTheIteration()
+    {
+        Fetcher fetcher = new Fetcher(100, 20, null);
+        PageIterator<Integer> iterator = new PageIterator<Integer>(fetcher, 10, 1);
+        List<Integer> received = new ArrayList<Integer>();
+
+        try
+        {
+            while (iterator.hasNext())
+            {
+                received.add(iterator.next());
+            }
+
+            fail("The failure was not reported");
+        }
+        catch (PageIterator.PageException e)
+        {
+            assertEquals(Request.Result.failed, e.result);
+        }
+
+        assertEquals(range(0, 20), received);
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void closeStopsRequesting()
+    {
+        Fetcher fetcher = new Fetcher(100, Integer.MAX_VALUE, null);
+        PageIterator<Integer> iterator = new PageIterator<Integer>(fetcher, 10, 0);
+
+        assertEquals(Integer.valueOf(0), iterator.next());
+
+        iterator.close();
+
+        // the rest of the current page is still there
+        assertEquals(range(1, 10), drain(iterator));
+        assertEquals(range(0, 1), fetcher.getOffsets());
+    }
+}
@@ -0,0 +1,359 @@
+package org.anthillplatform.runtime.services;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompiledRoomsFilterTest
+{
+    /**
+     * The way the server checks a room: every key of the filter should be in the settings, and pass
+     * its condition, either an exact value or an object with "@func"
+     */
+    private static boolean serverMatches(JSONObject filters, JSONObject settings)
+    {
+        for (String key : filters.keySet())
+        {
+            Object value = settings.opt(key);
+
+            if (value == null || value == JSONObject.NULL || !serverTest(filters.get(key), value))
+                return false;
+        }
+
+        return true;
+    }
+
+    private static boolean serverTest(Object condition, Object value)
+    {
+        if (!(condition instanceof JSONObject) || !((JSONObject) condition).has("@func"))
+            return serverEquals(value, condition);
+
+        JSONObject cond = ((JSONObject) condition);
+        String func = cond.optString("@func");
+
+        if ("between".equals(func))
+        {
+            Integer a = serverCompare(value, cond.opt("@a"));
+            Integer b = serverCompare(value, cond.opt("@b"));
+
+            return a != null && b != null && a >= 0 && b <= 0;
+        }
+
+        Object operand = cond.opt("@value");
+
+        if ("!=".equals(func))
+            return operand != null && !serverEquals(value, operand);
+
+        Integer result = serverCompare(value, operand);
+
+        if (result == null)
+            return false;
+
+        switch (func)
+        {
+            case ">":
+                return result > 0;
+            case ">=":
+                return result >= 0;
+            case "<":
+                return result < 0;
+            case "<=":
+                return result <= 0;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean serverEquals(Object a, Object b)
+    {
+        if (a instanceof Number && b instanceof Number)
+            return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+
+        if (a instanceof JSONObject && b instanceof JSONObject)
+            return ((JSONObject) a).similar(b);
+
+        if (a instanceof JSONArray && b instanceof JSONArray)
+            return ((JSONArray) a).similar(b);
+
+        return a != null && a.equals(b);
+    }
+
+    /**
+     * @return a comparison result, or null if the values cannot be compared
+     */
+    private static Integer serverCompare(Object a, Object b)
+    {
+        if (a instanceof Number && b instanceof Number)
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+
+        if (a instanceof String && b instanceof String)
+            return ((String) a).compareTo(((String) b));
+
+        return null;
+    }
+
+    private static JSONObject func(String func, Object value)
+    {
+        return new JSONObject().put("@func", func).put("@value", value);
+    }
+
+    private static JSONObject between(Object a, Object b)
+    {
+        JSONObject cond = new JSONObject().put("@func", "between");
+
+        if (a != null)
+        {
+            cond.put("@a", a);
+        }
+
+        if (b != null)
+        {
+            cond.put("@b", b);
+        }
+
+        return cond;
+    }
+
+    /**
+     * Checks a single condition against a single value, both compiled and the server's way
+     */
+    private static void check(boolean expected, Object condition, Object value)
+    {
+        JSONObject filters = new JSONObject().put("key", condition);
+        JSONObject settings = new JSONObject().put("key", value);
+        String what = condition + " against " + value;
+
+        assertEquals("server " + what, expected, serverMatches(filters, settings));
+        assertEquals("compiled " + what, expected, new CompiledRoomsFilter(filters).matches(settings));
+    }
+
+    @Test
+    public void exactValues()
+    {
+        check(true, 2, 2);
+        check(true, 2, 2.0);
+        check(true, 2L, 2);
+        check(false, 2, 3);
+        check(false, 2, "2");
+        check(true, "eu", "eu");
+        check(false, "eu", "EU");
+        check(true, true, true);
+        check(false, true, "true");
+        check(false, true, 1);
+        check(true, new JSONObject().put("a", 1), new JSONObject().put("a", 1));
+        check(false, new JSONObject().put("a", 1), new JSONObject().put("a", 2));
+        check(true, new JSONArray().put("x").put("y"), new JSONArray().put("x").put("y"));
+        check(false, new JSONArray().put("x").put("y"), new JSONArray().put("y").put("x"));
+        check(false, new JSONArray().put(1), 1);
+
+        // an object without "@func" is an exact value too
+        check(true, new JSONObject().put("@value", 1), new JSONObject().put("@value", 1));
+    }
+
+    @Test
+    public void comparisons()
+    {
+        check(true, func(">", 5), 6);
+        check(false, func(">", 5), 5);
+        check(true, func(">=", 5), 5);
+        check(true, func(">=", 5), 5.5);
+        check(true, func("<", 5), 4.99);
+        check(false, func("<", 5), 5);
+        check(true, func("<=", 5), 5L);
+        check(false, func("<=", 5), 6);
+
+        // strings compare in the String.compareTo order
+        check(true, func(">", "b"), "c");
+        check(false, func(">", "b"), "B");
+        check(true, func("<=", "b"), "b");
+        check(true, func("<", "b"), "abc");
+
+        // values of different types never compare
+        check(false, func(">", 5), "6");
+        check(false, func("<", "b"), 1);
+        check(false, func(">=", true), true);
+        check(false, func("<=", new JSONObject()), new JSONObject());
+
+        // no operand, or an unknown function
+        check(false, new JSONObject().put("@func", ">"), 1);
+        check(false, func("~", 1), 1);
+        check(false, func(">", JSONObject.NULL), 1);
+    }
+
+    @Test
+    public void notEqual()
+    {
+        check(true, func("!=", 5), 6);
+        check(false, func("!=", 5), 5.0);
+        check(true, func("!=", 5), "5");
+        check(true, func("!=", "eu"), "us");
+        check(false, func("!=", "eu"), "eu");
+        check(false, func("!=", new JSONArray().put(1)), new JSONArray().put(1));
+        check(true, func("!=", new JSONArray().put(1)), new JSONArray().put(2));
+
+        // a condition as the operand is taken as an exact value
+        check(true, func("!=", func(">", 1)), 5);
+
+        // no operand
+        check(false, new JSONObject().put("@func", "!="), 5);
+    }
+
+    @Test
+    public void between()
+    {
+        check(true, between(1, 10), 1);
+        check(true, between(1, 10), 10);
+        check(true, between(1, 10), 5.5);
+        check(false, between(1, 10), 0);
+        check(false, between(1, 10), 10.01);
+        check(true, between("a", "c"), "b");
+        check(false, between("a", "c"), "d");
+
+        // a bound missing, or of a different type
+        check(false, between(1, null), 5);
+        check(false, between(null, 10), 5);
+        check(false, between(1, "z"), 5);
+        check(false, between(1, 10), "5");
+
+        // bounds in the wrong order match nothing
+        check(false, between(10, 1), 5);
+    }
+
+    @Test
+    public void missingKeys()
+    {
+        JSONObject filters = new JSONObject()
+            .put("mode", "ffa")
+            .put("level", func(">=", 10))
+            .put("region", func("!=", "eu"));
+
+        CompiledRoomsFilter compiled = new CompiledRoomsFilter(filters);
+
+        JSONObject settings = new JSONObject().put("mode", "ffa").put("level", 12).put("region", "us");
+        assertTrue(compiled.matches(settings));
+
+        // not even "!=" matches a key that is missing or null
+        settings.remove("region");
+        assertFalse(serverMatches(filters, settings));
+        assertFalse(compiled.matches(settings));
+
+        settings.put("region", JSONObject.NULL);
+        assertFalse(serverMatches(filters, settings));
+        assertFalse(compiled.matches(settings));
+
+        assertFalse(compiled.matches((JSONObject) null));
+
+        // no conditions at all match anything
+        assertTrue(new CompiledRoomsFilter(new JSONObject()).matches(new JSONObject()));
+    }
+
+    @Test
+    public void operandsAreCopied()
+    {
+        JSONObject operand = new JSONObject().put("tags", new JSONArray().put("ranked"));
+        GameService.RoomsFilter filter = new GameService.RoomsFilter().putEquals("meta", operand);
+        CompiledRoomsFilter compiled = filter.compile();
+
+        JSONObject settings = new JSONObject()
+            .put("meta", new JSONObject().put("tags", new JSONArray().put("ranked")));
+
+        operand.getJSONArray("tags").put("casual");
+        operand.put("extra", 1);
+
+        assertTrue(compiled.matches(settings));
+    }
+
+    private static Object randomValue(Random random)
+    {
+        switch (random.nextInt(9))
+        {
+            case 0:
+                return random.nextInt(5);
+            case 1:
+                return random.nextInt(5) + 0.5;
+            case 2:
+                return (long) random.nextInt(5);
+            case 3:
+                return "s" + random.nextInt(5);
+            case 4:
+                return random.nextBoolean();
+            case 5:
+                return new JSONObject().put("x", random.nextInt(2));
+            case 6:
+                return new JSONArray().put(random.nextInt(2));
+            case 7:
+                return JSONObject.NULL;
+            default:
+                return "S" + random.nextInt(3);
+        }
+    }
+
+    @Test
+    public void agreesWithTheServerOnRandomFilters()
+    {
+        String[] keys = {"a", "b", "c"};
+        String[] funcs = {">", ">=", "<", "<=", "!=", "between", "??"};
+        Random random = new Random(1);
+
+        for (int i = 0; i < 100000; i++)
+        {
+            GameService.RoomsFilter filter = new GameService.RoomsFilter();
+            JSONObject filters = new JSONObject();
+
+            for (String key : keys)
+            {
+                int kind = random.nextInt(5);
+
+                if (kind == 0)
+                    continue;
+
+                Object condition;
+
+                if (kind == 1)
+                {
+                    condition = randomValue(random);
+                }
+                else
+                {
+                    String func = funcs[random.nextInt(funcs.length)];
+                    JSONObject cond = new JSONObject().put("@func", func);
+
+                    if ("between".equals(func))
+                    {
+                        if (random.nextInt(6) > 0)
+                            cond.put("@a", randomValue(random));
+
+                        if (random.nextInt(6) > 0)
+                            cond.put("@b", randomValue(random));
+                    }
+                    else if (random.nextInt(8) > 0)
+                    {
+                        cond.put("@value", randomValue(random));
+                    }
+
+                    condition = cond;
+                }
+
+                filters.put(key, condition);
+                filter.putEquals(key, condition);
+            }
+
+            JSONObject settings = new JSONObject();
+
+            for (String key : keys)
+            {
+                if (random.nextInt(4) > 0)
+                {
+                    settings.put(key, randomValue(random));
+                }
+            }
+
+            assertEquals(filters + " against " + settings,
+                serverMatches(filters, settings), filter.matches(settings));
+        }
+    }
+}
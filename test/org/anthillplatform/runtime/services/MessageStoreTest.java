@@ -0,0 +1,167 @@
+package org.anthillplatform.runtime.services;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageStoreTest
+{
+    private File file;
+
+    @Before
+    public void createFile() throws IOException
+    {
+        file = File.createTempFile("messages", ".store");
+        file.delete();
+    }
+
+    @After
+    public void deleteFile()
+    {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+        new File(file.getPath() + ".old").delete();
+    }
+
+    private static MessageService.Message message(String uuid, String recipient, long time)
+    {
+        return new MessageService.Message(uuid, "group", recipient, "sender", "chat",
+            new JSONObject().put("text", uuid), new Date(time), 1, null);
+    }
+
+    private static List<String> uuids(List<MessageService.Message> messages)
+    {
+        List<String> result = new ArrayList<String>();
+
+        for (MessageService.Message message : messages)
+        {
+            result.add(message.uuid);
+        }
+
+        return result;
+    }
+
+    private static List<String> expected(String... uuids)
+    {
+        List<String> result = new ArrayList<String>();
+
+        for (String uuid : uuids)
+        {
+            result.add(uuid);
+        }
+
+        return result;
+    }
+
+    @Test
+    public void pagesBackThroughTheHistory() throws IOException
+    {
+        MessageStore store = new MessageStore(file);
+
+        try
+        {
+            for (int i = 0; i < 10; i++)
+            {
+                store.put(message("m" + i, i % 2 == 0 ? "even" : "odd", 1000 * (i + 1)));
+            }
+
+            // two sent at the same time as m8
+            store.put(message("m8b", "even", 9000));
+
+            assertEquals(expected("m7", "m8", "m8b", "m9"), uuids(store.getMessages(4)));
+            assertEquals(expected("m6", "m8", "m8b"), uuids(store.getMessages("group", "even", null, 3)));
+
+            // only the ones strictly older than the time given
+            assertEquals(expected("m2", "m4", "m6"), uuids(store.getMessages("group", "even", new Date(9000), 3)));
+            assertEquals(expected("m0"), uuids(store.getMessages("group", "even", new Date(2000), 3)));
+            assertEquals(expected(), uuids(store.getMessages("group", "even", new Date(1000), 3)));
+            assertEquals(expected(), uuids(store.getMessages("group", "nobody", null, 3)));
+            assertEquals(expected(), uuids(store.getMessages(0)));
+        }
+        finally
+        {
+            store.close();
+        }
+    }
+
+    @Test
+    public void compactionKeepsTheHistory() throws IOException
+    {
+        MessageStore store = new MessageStore(file);
+
+        try
+        {
+            for (int i = 0; i < 20; i++)
+            {
+                store.put(message("m" + i, "g", 1000 * (i + 1)));
+            }
+
+            for (int i = 0; i < 20; i += 2)
+            {
+                store.delete("m" + i);
+            }
+
+            store.update("m1", new JSONObject().put("text", "edited"));
+            store.compact();
+
+            // still appends after the compaction
+            store.put(message("m20", "g", 21000));
+        }
+        finally
+        {
+            store.close();
+        }
+
+        MessageStore reopened = new MessageStore(file);
+
+        try
+        {
+            assertEquals(11, reopened.size());
+            assertFalse(reopened.contains("m0"));
+            assertEquals("edited", reopened.get("m1").payload.getString("text"));
+            assertEquals(new Date(21000), reopened.getLastMessageTime());
+        }
+        finally
+        {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void recoversFromAnInterruptedCompaction() throws IOException
+    {
+        MessageStore store = new MessageStore(file);
+
+        try
+        {
+            store.put(message("m1", "g", 1000));
+        }
+        finally
+        {
+            store.close();
+        }
+
+        // as if it stopped right after moving the old file aside
+        assertTrue(file.renameTo(new File(file.getPath() + ".old")));
+
+        MessageStore reopened = new MessageStore(file);
+
+        try
+        {
+            assertTrue(reopened.contains("m1"));
+        }
+        finally
+        {
+            reopened.close();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.anthillplatform.runtime.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BackoffTest
+{
+    @Test
+    public void delaysStayUnderAGrowingCap()
+    {
+        Backoff backoff = new Backoff(100, 1000, 0);
+
+        for (int round = 0; round < 200; round++)
+        {
+            backoff.reset();
+
+            long cap = 100;
+
+            for (int attempt = 0; attempt < 8; attempt++)
+            {
+                long delay = backoff.nextDelay();
+
+                assertTrue(delay >= 0);
+                assertTrue("attempt " + attempt + " gave " + delay, delay <= Math.min(cap, 1000));
+
+                cap *= 2;
+            }
+        }
+    }
+
+    @Test
+    public void delaysAreJittered()
+    {
+        Backoff backoff = new Backoff(1000, 1000, 0);
+        long first = backoff.nextDelay();
+
+        for (int i = 0; i < 100; i++)
+        {
+            if (backoff.nextDelay() != first)
+                return;
+        }
+
+        fail("The same delay every time");
+    }
+
+    @Test
+    public void manyAttemptsDoNotOverflow()
+    {
+        Backoff backoff = new Backoff(Backoff.DEFAULT_INITIAL_DELAY, Backoff.DEFAULT_MAX_DELAY, 0);
+
+        for (int i = 0; i < 100; i++)
+        {
+            long delay = backoff.nextDelay();
+
+            assertTrue(delay >= 0 && delay <= Backoff.DEFAULT_MAX_DELAY);
+        }
+
+        assertEquals(100, backoff.getAttempt());
+    }
+
+    @Test
+    public void attemptsRunOutUntilReset()
+    {
+        Backoff backoff = new Backoff(10, 100, 3);
+
+        assertTrue(backoff.nextDelay() >= 0);
+        assertTrue(backoff.nextDelay() >= 0);
+        assertTrue(backoff.nextDelay() >= 0);
+        assertEquals(-1, backoff.nextDelay());
+        assertEquals(3, backoff.getAttempt());
+
+        backoff.reset();
+
+        assertEquals(0, backoff.getAttempt());
+        assertTrue(backoff.nextDelay() <= 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBadDelays()
+    {
+        new Backoff(1000, 100, 0);
+    }
+}
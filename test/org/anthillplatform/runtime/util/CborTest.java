@@ -0,0 +1,165 @@
+package org.anthillplatform.runtime.util;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class CborTest
+{
+    private static byte[] bytes(int... values)
+    {
+        byte[] result = new byte[values.length];
+
+        for (int i = 0; i < values.length; i++)
+        {
+            result[i] = (byte)values[i];
+        }
+
+        return result;
+    }
+
+    private static void assertDecodeFails(int... data)
+    {
+        try
+        {
+            Cbor.decode(bytes(data));
+            fail("Decoded malformed data");
+        }
+        catch (JSONException ignored)
+        {
+            //
+        }
+    }
+
+    @Test
+    public void roundTrip()
+    {
+        JSONObject nested = new JSONObject();
+        nested.put("empty", "");
+        nested.put("unicode", "привет 😀");
+        nested.put("list", new JSONArray().put(1).put("two").put(3.5).put(JSONObject.NULL).put(new JSONArray()));
+
+        JSONObject message = new JSONObject();
+        message.put("jsonrpc", "2.0");
+        message.put("id", 42);
+        message.put("small", 23);
+        message.put("byte", 255);
+        message.put("short", 65535);
+        message.put("int", Integer.MAX_VALUE);
+        message.put("negative", -1000);
+        message.put("long", 1L << 40);
+        message.put("minLong", Long.MIN_VALUE);
+        message.put("double", -0.125);
+        message.put("yes", true);
+        message.put("no", false);
+        message.put("nothing", JSONObject.NULL);
+        message.put("params", nested);
+
+        Object decoded = Cbor.decode(Cbor.encode(message));
+
+        assertTrue(decoded instanceof JSONObject);
+        assertTrue(message.similar(decoded));
+        assertEquals(Long.MIN_VALUE, ((JSONObject) decoded).getLong("minLong"));
+        assertEquals(1L << 40, ((JSONObject) decoded).get("long"));
+    }
+
+    @Test
+    public void encodesLikeTheSpec()
+    {
+        // examples from RFC 7049, appendix A
+        assertArrayEquals(bytes(0x00), Cbor.encode(0));
+        assertArrayEquals(bytes(0x17), Cbor.encode(23));
+        assertArrayEquals(bytes(0x18, 0x18), Cbor.encode(24));
+        assertArrayEquals(bytes(0x19, 0x03, 0xe8), Cbor.encode(1000));
+        assertArrayEquals(bytes(0x1a, 0x00, 0x0f, 0x42, 0x40), Cbor.encode(1000000));
+        assertArrayEquals(bytes(0x20), Cbor.encode(-1));
+        assertArrayEquals(bytes(0x39, 0x03, 0xe7), Cbor.encode(-1000));
+        assertArrayEquals(bytes(0x61, 0x61), Cbor.encode("a"));
+        assertArrayEquals(bytes(0xf5), Cbor.encode(true));
+        assertArrayEquals(bytes(0xf6), Cbor.encode(JSONObject.NULL));
+        assertArrayEquals(bytes(0x83, 0x01, 0x02, 0x03), Cbor.encode(new JSONArray().put(1).put(2).put(3)));
+        assertArrayEquals(bytes(0xfb, 0x3f, 0xf1, 0x99, 0x99, 0x99, 0x99, 0x99, 0x9a), Cbor.encode(1.1));
+    }
+
+    @Test
+    public void decodesWhatOtherEncodersProduce()
+    {
+        // half and single precision floats
+        assertEquals(1.0, Cbor.decode(bytes(0xf9, 0x3c, 0x00)));
+        assertEquals(-4.0, Cbor.decode(bytes(0xf9, 0xc4, 0x00)));
+        assertEquals(5.960464477539063e-8, Cbor.decode(bytes(0xf9, 0x00, 0x01)));
+        assertEquals(Double.POSITIVE_INFINITY, Cbor.decode(bytes(0xf9, 0x7c, 0x00)));
+        assertEquals(100000.0, Cbor.decode(bytes(0xfa, 0x47, 0xc3, 0x50, 0x00)));
+
+        // indefinite length text, array and map
+        assertEquals("streaming", Cbor.decode(bytes(0x7f, 0x65, 0x73, 0x74, 0x72, 0x65, 0x61,
+            0x64, 0x6d, 0x69, 0x6e, 0x67, 0xff)));
+        assertTrue(new JSONArray().put(1).put(new JSONArray().put(2).put(3)).similar(
+            Cbor.decode(bytes(0x9f, 0x01, 0x82, 0x02, 0x03, 0xff))));
+        assertTrue(new JSONObject().put("a", 1).put("b", new JSONArray()).similar(
+            Cbor.decode(bytes(0xbf, 0x61, 0x61, 0x01, 0x61, 0x62, 0x9f, 0xff, 0xff))));
+
+        // a tag is skipped, undefined is taken as null
+        assertEquals(1363896240, Cbor.decode(bytes(0xc1, 0x1a, 0x51, 0x4b, 0x67, 0xb0)));
+        assertEquals(JSONObject.NULL, Cbor.decode(bytes(0xf7)));
+
+        // integers that do not fit into a long
+        assertEquals(new BigDecimal(new BigInteger("18446744073709551615")),
+            Cbor.decode(bytes(0x1b, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff)));
+        assertEquals(new BigDecimal(new BigInteger("-18446744073709551616")),
+            Cbor.decode(bytes(0x3b, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff)));
+    }
+
+    @Test
+    public void decodesDirectBuffers()
+    {
+        byte[] encoded = Cbor.encode(new JSONObject().put("text", "value"));
+        ByteBuffer direct = ByteBuffer.allocateDirect(encoded.length);
+        direct.put(encoded);
+        direct.flip();
+
+        assertTrue(new JSONObject().put("text", "value").similar(Cbor.decode(direct)));
+    }
+
+    @Test
+    public void rejectsMalformedInput()
+    {
+        // nothing at all, truncated values
+        assertDecodeFails();
+        assertDecodeFails(0x19, 0x03);
+        assertDecodeFails(0x63, 0x61, 0x62);
+        assertDecodeFails(0x82, 0x01);
+        assertDecodeFails(0xa1, 0x61, 0x61);
+        assertDecodeFails(0x9f, 0x01);
+
+        // a length far beyond the data
+        assertDecodeFails(0x7b, 0x7f, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff);
+
+        // reserved argument sizes
+        assertDecodeFails(0x1c);
+        assertDecodeFails(0x1f);
+
+        // breaks where there should be none
+        assertDecodeFails(0xff);
+        assertDecodeFails(0x82, 0x01, 0xff);
+        assertDecodeFails(0xbf, 0x61, 0x61, 0xff);
+
+        // not what JSON can express: byte strings, non-text keys, other simple values
+        assertDecodeFails(0x41, 0x00);
+        assertDecodeFails(0xa1, 0x01, 0x02);
+        assertDecodeFails(0xf0);
+
+        // a chunk of a different type inside of indefinite text
+        assertDecodeFails(0x7f, 0x01, 0xff);
+
+        // more than one value
+        assertDecodeFails(0x01, 0x02);
+    }
+}
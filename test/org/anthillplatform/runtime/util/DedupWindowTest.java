@@ -0,0 +1,103 @@
+package org.anthillplatform.runtime.util;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DedupWindowTest
+{
+    @Test
+    public void tellsTheIdsSeenBefore()
+    {
+        DedupWindow window = new DedupWindow(4);
+
+        assertTrue(window.add("a"));
+        assertTrue(window.add("b"));
+        assertFalse(window.add("a"));
+        assertTrue(window.contains("b"));
+        assertFalse(window.contains("c"));
+        assertEquals(2, window.size());
+    }
+
+    @Test
+    public void forgetsTheOldestOnceFull()
+    {
+        DedupWindow window = new DedupWindow(3);
+
+        window.add("1");
+        window.add("2");
+        window.add("3");
+        window.add("4");
+
+        assertEquals(3, window.size());
+        assertFalse(window.contains("1"));
+        assertTrue(window.contains("2"));
+        assertTrue(window.contains("4"));
+
+        // seen again after being forgotten counts as new
+        assertTrue(window.add("1"));
+        assertFalse(window.contains("2"));
+    }
+
+    @Test
+    public void matchesAnExactWindowUnderChurn()
+    {
+        // lots of evictions, so the probe chains get shifted back over and over
+        int capacity = 37;
+        DedupWindow window = new DedupWindow(capacity);
+        ArrayDeque<String> order = new ArrayDeque<String>();
+        HashSet<String> expected = new HashSet<String>();
+        Random random = new Random(7);
+
+        for (int i = 0; i < 20000; i++)
+        {
+            String id = "id-" + random.nextInt(120);
+            boolean fresh = !expected.contains(id);
+
+            assertEquals(id, fresh, window.add(id));
+
+            if (fresh)
+            {
+                if (order.size() == capacity)
+                {
+                    expected.remove(order.poll());
+                }
+
+                order.add(id);
+                expected.add(id);
+            }
+
+            assertEquals(expected.size(), window.size());
+        }
+
+        for (int i = 0; i < 120; i++)
+        {
+            String id = "id-" + i;
+            assertEquals(id, expected.contains(id), window.contains(id));
+        }
+    }
+
+    @Test
+    public void clearForgetsEverything()
+    {
+        DedupWindow window = new DedupWindow(8);
+
+        window.add("a");
+        window.add("b");
+        window.clear();
+
+        assertEquals(0, window.size());
+        assertFalse(window.contains("a"));
+        assertTrue(window.add("a"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNoCapacity()
+    {
+        new DedupWindow(0);
+    }
+}
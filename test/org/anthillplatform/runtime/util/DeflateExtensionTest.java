@@ -0,0 +1,213 @@
+package org.anthillplatform.runtime.util;
+
+import org.java_websocket.framing.ContinuousFrame;
+import org.java_websocket.framing.FramedataImpl1;
+import org.java_websocket.framing.TextFrame;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class DeflateExtensionTest
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int THRESHOLD = 64;
+
+    private static byte[] bytesOf(FramedataImpl1 frame)
+    {
+        ByteBuffer payload = frame.getPayloadData().duplicate();
+        byte[] data = new byte[payload.remaining()];
+        payload.get(data);
+        return data;
+    }
+
+    private static TextFrame frame(byte[] payload)
+    {
+        TextFrame frame = new TextFrame();
+        frame.setPayload(ByteBuffer.wrap(payload));
+        frame.setFin(true);
+        return frame;
+    }
+
+    private static byte[] encode(DeflateExtension extension, byte[] data)
+    {
+        TextFrame frame = frame(data);
+        extension.encodeFrame(frame);
+        assertTrue(frame.isRSV1());
+        return bytesOf(frame);
+    }
+
+    private static byte[] message(int size)
+    {
+        StringBuilder text = new StringBuilder();
+
+        while (text.length() < size)
+        {
+            text.append("{\"jsonrpc\":\"2.0\",\"method\":\"update\",\"params\":").append(text.length()).append("}");
+        }
+
+        return text.substring(0, size).getBytes(UTF8);
+    }
+
+    @Test
+    public void offersWhatIsConfigured()
+    {
+        assertEquals("permessage-deflate",
+            new DeflateExtension(THRESHOLD, true, 15, 6).getProvidedExtensionAsClient());
+
+        assertEquals("permessage-deflate; client_no_context_takeover; server_no_context_takeover; server_max_window_bits=10",
+            new DeflateExtension(THRESHOLD, false, 10, 6).getProvidedExtensionAsClient());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesTooSmallServerWindow()
+    {
+        new DeflateExtension(THRESHOLD, true, 7, 6);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesTooLargeServerWindow()
+    {
+        new DeflateExtension(THRESHOLD, true, 16, 6);
+    }
+
+    @Test
+    public void acceptsOnlyTheFullClientWindow()
+    {
+        DeflateExtension extension = new DeflateExtension(THRESHOLD, true, 10, 6);
+
+        assertTrue(extension.acceptProvidedExtensionAsClient("permessage-deflate"));
+        assertTrue(extension.acceptProvidedExtensionAsClient("permessage-deflate; server_max_window_bits=10"));
+        assertTrue(extension.acceptProvidedExtensionAsClient("permessage-deflate; client_max_window_bits=15"));
+        assertTrue(extension.acceptProvidedExtensionAsClient("x-webkit-deflate-frame, permessage-deflate"));
+
+        assertFalse(extension.acceptProvidedExtensionAsClient("permessage-deflate; client_max_window_bits=14"));
+        assertFalse(extension.acceptProvidedExtensionAsClient("permessage-deflate; client_max_window_bits=8"));
+        assertFalse(extension.acceptProvidedExtensionAsClient("permessage-deflate; client_max_window_bits=bits"));
+        assertFalse(extension.acceptProvidedExtensionAsClient("x-webkit-deflate-frame"));
+        assertFalse(extension.acceptProvidedExtensionAsServer("permessage-deflate"));
+    }
+
+    @Test
+    public void leavesSmallMessagesAlone() throws Exception
+    {
+        DeflateExtension client = new DeflateExtension(THRESHOLD, true, 15, 6);
+        DeflateExtension server = new DeflateExtension(THRESHOLD, true, 15, 6);
+
+        byte[] data = message(THRESHOLD - 1);
+        TextFrame frame = frame(data);
+
+        client.encodeFrame(frame);
+
+        assertFalse(frame.isRSV1());
+        assertArrayEquals(data, bytesOf(frame));
+
+        server.decodeFrame(frame);
+
+        assertArrayEquals(data, bytesOf(frame));
+    }
+
+    @Test
+    public void roundTripsLargeMessages() throws Exception
+    {
+        DeflateExtension client = new DeflateExtension(THRESHOLD, true, 15, 6);
+        DeflateExtension server = new DeflateExtension(THRESHOLD, true, 15, 6);
+
+        // several in a row, so the ones after the first refer back to the shared context
+        for (int size = THRESHOLD; size < 64 * 1024; size *= 4)
+        {
+            byte[] data = message(size);
+            TextFrame frame = frame(data);
+
+            client.encodeFrame(frame);
+
+            assertTrue(frame.isRSV1());
+            assertTrue(bytesOf(frame).length < data.length);
+
+            server.decodeFrame(frame);
+
+            assertFalse(frame.isRSV1());
+            assertArrayEquals("size " + size, data, bytesOf(frame));
+        }
+    }
+
+    @Test
+    public void inflatesFragmentedMessages() throws Exception
+    {
+        DeflateExtension client = new DeflateExtension(THRESHOLD, true, 15, 6);
+        DeflateExtension server = new DeflateExtension(THRESHOLD, true, 15, 6);
+
+        byte[] data = message(4096);
+        TextFrame frame = frame(data);
+        client.encodeFrame(frame);
+
+        byte[] compressed = bytesOf(frame);
+        int half = compressed.length / 2;
+
+        TextFrame first = new TextFrame();
+        first.setPayload(ByteBuffer.wrap(Arrays.copyOfRange(compressed, 0, half)));
+        first.setFin(false);
+        first.setRSV1(true);
+
+        ContinuousFrame last = new ContinuousFrame();
+        last.setPayload(ByteBuffer.wrap(Arrays.copyOfRange(compressed, half, compressed.length)));
+        last.setFin(true);
+
+        server.decodeFrame(first);
+        server.decodeFrame(last);
+
+        byte[] inflated = new byte[first.getPayloadData().remaining() + last.getPayloadData().remaining()];
+        first.getPayloadData().duplicate().get(inflated, 0, first.getPayloadData().remaining());
+        last.getPayloadData().duplicate().get(inflated, first.getPayloadData().remaining(), last.getPayloadData().remaining());
+
+        assertArrayEquals(data, inflated);
+    }
+
+    @Test
+    public void keepsTheContextUnlessTheServerSaysOtherwise() throws Exception
+    {
+        byte[] data = message(1024);
+
+        DeflateExtension takeover = new DeflateExtension(THRESHOLD, true, 15, 6);
+        assertTrue(takeover.acceptProvidedExtensionAsClient("permessage-deflate"));
+
+        byte[] first = encode(takeover, data);
+        byte[] second = encode(takeover, data);
+
+        // the repeated message is a reference back to the first one
+        assertTrue(second.length < first.length);
+
+        DeflateExtension noTakeover = new DeflateExtension(THRESHOLD, true, 15, 6);
+        assertTrue(noTakeover.acceptProvidedExtensionAsClient("permessage-deflate; client_no_context_takeover"));
+
+        assertArrayEquals(first, encode(noTakeover, data));
+        assertArrayEquals(first, encode(noTakeover, data));
+    }
+
+    @Test
+    public void roundTripsWithoutContextTakeover() throws Exception
+    {
+        DeflateExtension client = new DeflateExtension(THRESHOLD, false, 15, 6);
+        DeflateExtension server = new DeflateExtension(THRESHOLD, false, 15, 6);
+
+        assertTrue(client.acceptProvidedExtensionAsClient(client.getProvidedExtensionAsClient()));
+        assertTrue(server.acceptProvidedExtensionAsClient(client.getProvidedExtensionAsClient()));
+
+        byte[] data = message(1024);
+        byte[] first = encode(client, data);
+
+        for (int i = 0; i < 3; i++)
+        {
+            TextFrame frame = frame(data);
+            client.encodeFrame(frame);
+
+            assertArrayEquals(first, bytesOf(frame));
+
+            server.decodeFrame(frame);
+            assertArrayEquals(data, bytesOf(frame));
+        }
+    }
+}
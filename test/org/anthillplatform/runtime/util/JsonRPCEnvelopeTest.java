@@ -0,0 +1,221 @@
+package org.anthillplatform.runtime.util;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class JsonRPCEnvelopeTest
+{
+    private static final String[] VALID = {
+        "{\"jsonrpc\":\"2.0\",\"id\":5,\"method\":\"join\",\"params\":{\"room\":{\"id\":\"10\",\"tags\":[1,2,[3,{}]]}}}",
+        "{\"jsonrpc\":\"2.0\",\"id\":7,\"result\":[\"x\",null,true,false,-1.5e3]}",
+        "{\"jsonrpc\":\"2.0\",\"id\":\"8\",\"error\":{\"code\":-32000,\"message\":\"failed\",\"data\":\"d\"}}",
+        "{\"jsonrpc\":\"2.0\",\"method\":\"notify\",\"params\":[\"a\",{\"b\":[]}]}",
+        "{\"jsonrpc\":\"2.0\",\"id\":9,\"result\":null}",
+        "{\"jsonrpc\":\"2.0\",\"id\":10,\"result\":\"done\",\"extra\":{\"ignored\":[1,{\"x\":\"}\"}]}}",
+        "{\"id\":11,\"params\":0,\"method\":\"order\",\"jsonrpc\":\"2.0\"}",
+        "{}",
+        " \t\n{ \"jsonrpc\" : \"2.0\" ,\r\n \"id\" : 12 , \"method\" : \"spaced\" , \"params\" : { \"a\" : [ 1 , 2 ] } } \n",
+        "{\"jsonrpc\":2,\"id\":1.9,\"method\":5,\"error\":\"not an object\"}",
+    };
+
+    private static final String[] ESCAPED = {
+        "{\"jsonrpc\":\"2.0\",\"id\":1,\"meth\\u006fd\":\"escaped key\"}",
+        "{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"quote \\\" inside\",\"params\":{\"k\\\"ey\":\"v\\\\\"}}",
+        "{\"jsonrpc\":\"2.0\",\"id\":3,\"method\":\"m\",\"params\":{\"text\":\"}]{[,:\\\"}\"}}",
+        "{\"jsonrpc\":\"2.0\",\"id\":4,\"method\":\"ends with \\\\\",\"params\":[\"\\\\\",\"\\\\\\\"\"]}",
+        "{\"jsonrpc\":\"2.0\",\"id\":5,\"method\":\"\\u043f\\u0440\\u0438\\u0432\\u0435\\u0442\\n\\t\\/\"}",
+        "{\"jsonrpc\":\"2.0\",\"id\":6,\"result\":\"\\\"}\",\"\\u0072esult2\":\"{\"}",
+    };
+
+    private static final String[] MALFORMED = {
+        "",
+        "   ",
+        "[]",
+        "\"text\"",
+        "{",
+        "{\"id\"",
+        "{\"id\":",
+        "{\"id\":1",
+        "{\"id\":1,",
+        "{\"id\" 1}",
+        "{\"id\":1 \"method\":\"m\"}",
+        "{\"id\":1,\"method\":\"m}",
+        "{\"id\":1,\"method\":\"m\\\"}",
+        "{\"id\":1,\"params\":{\"a\":[1,2}}",
+        "{\"id\":1,\"params\":{\"a\":[1,2]}",
+        "{\"id\":1,\"params\":[1,2,3}",
+        "{\"id\":1,\"params\":{\"a\" 1}}",
+        "{\"id\":1,\"params\":{\"a\":1 \"b\":2}}",
+        "{\"id\":1,\"result\":[\"unterminated]}",
+        "{\"id\":1,\"error\":{\"code\":}}",
+        "{\"id\":5.\"method\":\"m\"}",
+        "{\"jsonrpc\":-2.0\",\"id\":7}",
+        "{\"id\":1,\"id\":2}",
+        "{\"method\":\"a\",\"meth\\u006fd\":\"b\"}",
+        "{\"params\":[],\"params\":{}}",
+    };
+
+    private static void assertSameValue(String what, Object expected, Object actual)
+    {
+        if (expected instanceof JSONObject)
+        {
+            assertTrue(what + ": " + actual, actual instanceof JSONObject && ((JSONObject) expected).similar(actual));
+        }
+        else if (expected instanceof JSONArray)
+        {
+            assertTrue(what + ": " + actual, actual instanceof JSONArray && ((JSONArray) expected).similar(actual));
+        }
+        else
+        {
+            assertEquals(what, expected, actual);
+        }
+    }
+
+    /**
+     * Scans the frame, and checks it reads the same as the frame fully parsed
+     */
+    private static void assertScannedAsParsed(String frame)
+    {
+        JsonRPCEnvelope parsed = new JsonRPCEnvelope(new JSONObject(frame));
+        JsonRPCEnvelope scanned = JsonRPCEnvelope.scan(frame);
+
+        assertSameValue(frame + " version", parsed.getVersion(), scanned.getVersion());
+        assertEquals(frame + " id", parsed.getId(), scanned.getId());
+        assertEquals(frame + " method", parsed.getMethod(), scanned.getMethod());
+
+        assertEquals(frame + " has params", parsed.hasParams(), scanned.hasParams());
+        assertSameValue(frame + " params", parsed.getParams(), scanned.getParams());
+
+        assertEquals(frame + " has result", parsed.hasResult(), scanned.hasResult());
+        assertSameValue(frame + " result", parsed.getResult(), scanned.getResult());
+
+        assertEquals(frame + " has error", parsed.hasError(), scanned.hasError());
+        assertSameValue(frame + " error", parsed.getError(), scanned.getError());
+    }
+
+    /**
+     * Scans the frame and reads every field, so the lazily parsed ones get validated too
+     */
+    private static void scanFully(String frame)
+    {
+        JsonRPCEnvelope scanned = JsonRPCEnvelope.scan(frame);
+
+        scanned.getParams();
+        scanned.getResult();
+        scanned.getError();
+    }
+
+    @Test
+    public void readsValidEnvelopesAsParsed()
+    {
+        for (String frame : VALID)
+        {
+            assertScannedAsParsed(frame);
+        }
+    }
+
+    @Test
+    public void decodesEscapedKeysAndValues()
+    {
+        for (String frame : ESCAPED)
+        {
+            assertScannedAsParsed(frame);
+        }
+
+        assertEquals("escaped key", JsonRPCEnvelope.scan(ESCAPED[0]).getMethod());
+        assertEquals("\"}", JsonRPCEnvelope.scan(ESCAPED[5]).getResult());
+    }
+
+    @Test
+    public void rejectsMalformedEnvelopes()
+    {
+        for (String frame : MALFORMED)
+        {
+            try
+            {
+                new JSONObject(frame);
+                fail("Parsed: " + frame);
+            }
+            catch (JSONException expected)
+            {
+                //
+            }
+
+            try
+            {
+                scanFully(frame);
+                fail("Scanned: " + frame);
+            }
+            catch (JSONException expected)
+            {
+                //
+            }
+        }
+    }
+
+    @Test
+    public void skippedFieldsAreValidatedOnAccess()
+    {
+        JsonRPCEnvelope scanned = JsonRPCEnvelope.scan("{\"id\":1,\"params\":{\"a\" 1}}");
+        assertEquals(1, scanned.getId());
+        assertTrue(scanned.hasParams());
+
+        try
+        {
+            scanned.getParams();
+            fail("Malformed params parsed");
+        }
+        catch (JSONException expected)
+        {
+            //
+        }
+    }
+
+    @Test
+    public void agreesWithTheParserOnMangledFrames()
+    {
+        Random random = new Random(20180130);
+        String alphabet = "{}[]\",:\\ 0a-.e";
+
+        for (int n = 0; n < 20000; n++)
+        {
+            String seed = n % 2 == 0 ? VALID[random.nextInt(VALID.length)] : ESCAPED[random.nextInt(ESCAPED.length)];
+            StringBuilder frame = new StringBuilder(seed);
+            int edits = 1 + random.nextInt(2);
+
+            for (int k = 0; k < edits && frame.length() > 0; k++)
+            {
+                int at = random.nextInt(frame.length());
+                char c = alphabet.charAt(random.nextInt(alphabet.length()));
+
+                switch (random.nextInt(3))
+                {
+                    case 0: frame.deleteCharAt(at); break;
+                    case 1: frame.insert(at, c); break;
+                    default: frame.setCharAt(at, c); break;
+                }
+            }
+
+            String text = frame.toString();
+
+            try
+            {
+                new JSONObject(text);
+                scanFully(text);
+            }
+            catch (JSONException e)
+            {
+                // either rejects it, nothing to compare
+                continue;
+            }
+
+            assertScannedAsParsed(text);
+        }
+    }
+}
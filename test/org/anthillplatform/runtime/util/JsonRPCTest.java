@@ -0,0 +1,145 @@
+package org.anthillplatform.runtime.util;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class JsonRPCTest
+{
+    /**
+     * Keeps what is sent instead of sending it
+     */
+    private static class Recorder extends JsonRPC
+    {
+        private final List<JSONObject> sent = new ArrayList<JSONObject>();
+
+        @Override
+        protected synchronized boolean send(String data)
+        {
+            sent.add(new JSONObject(data));
+            return true;
+        }
+
+        @Override
+        public void onError(int code, String message, String data)
+        {
+            //
+        }
+
+        private synchronized int countErrors()
+        {
+            int count = 0;
+
+            for (JSONObject message : sent)
+            {
+                if (message.has("error"))
+                {
+                    count++;
+                }
+            }
+
+            return count;
+        }
+    }
+
+    private static String call(int id)
+    {
+        return new JSONObject()
+            .put("jsonrpc", "2.0")
+            .put("method", "wait")
+            .put("id", id)
+            .put("params", new JSONObject().put("n", id))
+            .toString();
+    }
+
+    @Test
+    public void pendingCallsLimitHoldsUnderParallelDispatch() throws Exception
+    {
+        final int limit = 4;
+        final int calls = 64;
+
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        Recorder rpc = new Recorder();
+
+        try
+        {
+            // every call gets a key of its own, so they are all handled in parallel
+            rpc.setDispatcher(executor, new JsonRPC.DispatchKey()
+            {
+                @Override
+                public Object keyOf(String method, Object params)
+                {
+                    return ((JSONObject) params).getInt("n");
+                }
+            });
+
+            rpc.setMaxPendingCalls(limit);
+
+            rpc.addHandler("wait", new JsonRPC.MethodHandler()
+            {
+                @Override
+                public Object called(Object params)
+                {
+                    try
+                    {
+                        // long enough for the others to overlap
+                        Thread.sleep(20);
+                    }
+                    catch (InterruptedException ignored)
+                    {
+                        //
+                    }
+
+                    // never resolved, so the call stays pending
+                    return new JsonRPC.Deferred();
+                }
+            });
+
+            for (int i = 1; i <= calls; i++)
+            {
+                rpc.received(call(i));
+            }
+
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+            assertEquals(limit, rpc.getPendingCallsCount());
+            assertEquals(calls - limit, rpc.countErrors());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void immediateResponsesDoNotHoldASlot()
+    {
+        Recorder rpc = new Recorder();
+        rpc.setMaxPendingCalls(1);
+
+        rpc.addHandler("wait", new JsonRPC.MethodHandler()
+        {
+            @Override
+            public Object called(Object params)
+            {
+                return "done";
+            }
+        });
+
+        for (int i = 1; i <= 10; i++)
+        {
+            rpc.received(call(i));
+        }
+
+        assertEquals(0, rpc.getPendingCallsCount());
+        assertEquals(0, rpc.countErrors());
+    }
+}
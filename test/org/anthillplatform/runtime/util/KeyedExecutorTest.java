@@ -0,0 +1,156 @@
+package org.anthillplatform.runtime.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class KeyedExecutorTest
+{
+    private static final int KEYS = 8;
+    private static final int TASKS = 2000;
+
+    /**
+     * What each key's tasks have run, in the order they ran
+     */
+    private static class Log
+    {
+        private final Map<Integer, List<Integer>> runs = new HashMap<Integer, List<Integer>>();
+
+        private Runnable task(final int key, final int n)
+        {
+            return new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    synchronized (runs)
+                    {
+                        List<Integer> keyRuns = runs.get(key);
+
+                        if (keyRuns == null)
+                        {
+                            keyRuns = new ArrayList<Integer>();
+                            runs.put(key, keyRuns);
+                        }
+
+                        keyRuns.add(n);
+                    }
+                }
+            };
+        }
+
+        private void assertAllRanInOrder()
+        {
+            synchronized (runs)
+            {
+                for (int key = 0; key < KEYS; key++)
+                {
+                    List<Integer> expected = new ArrayList<Integer>();
+
+                    for (int n = key; n < TASKS; n += KEYS)
+                    {
+                        expected.add(n);
+                    }
+
+                    assertEquals("key " + key, expected, runs.get(key));
+                }
+            }
+        }
+    }
+
+    private static void submitAll(KeyedExecutor executor, Log log)
+    {
+        for (int n = 0; n < TASKS; n++)
+        {
+            executor.execute(n % KEYS, log.task(n % KEYS, n));
+        }
+    }
+
+    @Test
+    public void keepsTheOrderOfEachKey() throws InterruptedException
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        Log log = new Log();
+
+        submitAll(new KeyedExecutor(pool), log);
+
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+        log.assertAllRanInOrder();
+    }
+
+    @Test
+    public void runsWhatASaturatedExecutorRejects() throws InterruptedException
+    {
+        // a single slot in the queue, the rest gets rejected
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(1), new ThreadPoolExecutor.AbortPolicy());
+
+        Log log = new Log();
+
+        submitAll(new KeyedExecutor(pool), log);
+
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+        log.assertAllRanInOrder();
+    }
+
+    @Test
+    public void runsEverythingOnceTheExecutorIsShutDown()
+    {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        pool.shutdown();
+
+        Log log = new Log();
+
+        submitAll(new KeyedExecutor(pool), log);
+
+        log.assertAllRanInOrder();
+    }
+
+    @Test
+    public void failingTaskDoesNotStopTheKey() throws InterruptedException
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        KeyedExecutor executor = new KeyedExecutor(pool);
+        final List<String> runs = new ArrayList<String>();
+
+        executor.execute("a", new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                throw new IllegalStateException("expected in the test");
+            }
+        });
+
+        executor.execute("a", new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                synchronized (runs)
+                {
+                    runs.add("after");
+                }
+            }
+        });
+
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(1, runs.size());
+    }
+}
@@ -0,0 +1,133 @@
+package org.anthillplatform.runtime.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class TimestampsTest
+{
+    private final TimeZone original = Timestamps.getTimeZone();
+
+    @After
+    public void restoreTimeZone()
+    {
+        Timestamps.setTimeZone(original);
+    }
+
+    private static SimpleDateFormat formatIn(TimeZone zone)
+    {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        format.setTimeZone(zone);
+        format.setLenient(false);
+        return format;
+    }
+
+    private static void assertUnparseable(String value)
+    {
+        try
+        {
+            Timestamps.parse(value);
+            fail("Parsed \"" + value + "\"");
+        }
+        catch (ParseException ignored)
+        {
+            //
+        }
+    }
+
+    @Test
+    public void agreesWithSimpleDateFormat() throws ParseException
+    {
+        String[] zones = {"UTC", "Europe/London", "America/New_York", "Asia/Kolkata", "Australia/Lord_Howe"};
+        Random random = new Random(11);
+
+        for (String id : zones)
+        {
+            TimeZone zone = TimeZone.getTimeZone(id);
+            SimpleDateFormat format = formatIn(zone);
+
+            Timestamps.setTimeZone(zone);
+
+            for (int i = 0; i < 2000; i++)
+            {
+                // whole seconds between 1900 and 2100
+                long millis = (-2208988800L + (long)(random.nextDouble() * 6311433600L)) * 1000L;
+                String expected = format.format(new Date(millis));
+
+                assertEquals(id, expected, Timestamps.format(millis));
+                assertEquals(id + " " + expected, format.parse(expected), Timestamps.parse(expected));
+            }
+        }
+    }
+
+    @Test
+    public void parsesAroundDaylightSavingTransitions() throws ParseException
+    {
+        TimeZone zone = TimeZone.getTimeZone("Europe/Berlin");
+        SimpleDateFormat format = formatIn(zone);
+
+        // the times skipped in spring are taken as if the clocks were not moved yet
+        format.setLenient(true);
+
+        Timestamps.setTimeZone(zone);
+
+        // the last Sundays of March and October 2018, every 15 minutes around the switch
+        for (String day : new String[]{"2018-03-25", "2018-10-28"})
+        {
+            for (int minutes = 0; minutes < 6 * 60; minutes += 15)
+            {
+                String value = String.format("%s %02d:%02d:00", day, minutes / 60, minutes % 60);
+                assertEquals(value, format.parse(value), Timestamps.parse(value));
+            }
+        }
+    }
+
+    @Test
+    public void ignoresWhatFollowsTheSeconds() throws ParseException
+    {
+        Timestamps.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        Date expected = Timestamps.parse("2020-02-29 23:59:59");
+
+        assertEquals(expected, Timestamps.parse("2020-02-29T23:59:59"));
+        assertEquals(expected, Timestamps.parse("2020-02-29 23:59:59.123456"));
+        assertEquals(expected, Timestamps.parse("2020-02-29 23:59:59+00:00"));
+        assertEquals("2020-02-29 23:59:59", Timestamps.format(expected));
+    }
+
+    @Test
+    public void rejectsInvalidTimestamps()
+    {
+        assertUnparseable(null);
+        assertUnparseable("");
+        assertUnparseable("2020-01-01");
+        assertUnparseable("2020-01-01 12:00");
+        assertUnparseable("2020/01/01 12:00:00");
+        assertUnparseable("2020-01-01_12:00:00");
+        assertUnparseable("2020-0a-01 12:00:00");
+        assertUnparseable("2020-13-01 12:00:00");
+        assertUnparseable("2020-00-01 12:00:00");
+        assertUnparseable("2019-02-29 12:00:00");
+        assertUnparseable("1900-02-29 12:00:00");
+        assertUnparseable("2020-04-31 12:00:00");
+        assertUnparseable("2020-01-01 24:00:00");
+        assertUnparseable("2020-01-01 12:60:00");
+        assertUnparseable("2020-01-01 12:00:60");
+    }
+
+    @Test
+    public void fallsBackToTheDefault()
+    {
+        Date def = new Date(0);
+
+        assertSame(def, Timestamps.parse("not a date", def));
+        assertNull(Timestamps.parse(null, null));
+    }
+}
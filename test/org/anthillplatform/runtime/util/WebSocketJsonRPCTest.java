@@ -0,0 +1,276 @@
+package org.anthillplatform.runtime.util;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.ServerHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class WebSocketJsonRPCTest
+{
+    private static final String HOST = "127.0.0.1";
+    private static final int FRAMES = 1000;
+
+    /**
+     * Counts the frames received, and answers nothing
+     */
+    private static class CountingServer extends WebSocketServer
+    {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final AtomicInteger received = new AtomicInteger();
+
+        private CountingServer()
+        {
+            super(new InetSocketAddress(HOST, 0));
+        }
+
+        @Override
+        public void onStart()
+        {
+            started.countDown();
+        }
+
+        @Override
+        public void onOpen(WebSocket connection, ClientHandshake handshake)
+        {
+            //
+        }
+
+        @Override
+        public void onClose(WebSocket connection, int code, String reason, boolean remote)
+        {
+            //
+        }
+
+        @Override
+        public void onMessage(WebSocket connection, String message)
+        {
+            received.incrementAndGet();
+        }
+
+        @Override
+        public void onMessage(WebSocket connection, ByteBuffer message)
+        {
+            received.incrementAndGet();
+        }
+
+        @Override
+        public void onError(WebSocket connection, Exception e)
+        {
+            //
+        }
+    }
+
+    private static class Connection extends WebSocketJsonRPC
+    {
+        private final CountDownLatch opened = new CountDownLatch(1);
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        private Connection(URI uri)
+        {
+            super(uri);
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshake)
+        {
+            opened.countDown();
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote)
+        {
+            super.onClose(code, reason, remote);
+            closed.countDown();
+        }
+
+        @Override
+        public void onError(Exception e)
+        {
+            //
+        }
+
+        @Override
+        protected void onError(int code, String message, String data)
+        {
+            //
+        }
+    }
+
+    private CountingServer server;
+    private URI uri;
+
+    @Before
+    public void startServer() throws Exception
+    {
+        server = new CountingServer();
+        server.setReuseAddr(true);
+        server.start();
+
+        assertTrue(server.started.await(5, TimeUnit.SECONDS));
+        uri = new URI("ws://" + HOST + ":" + server.getPort() + "/");
+    }
+
+    @After
+    public void stopServer() throws Exception
+    {
+        server.stop(1000);
+    }
+
+    private void awaitReceived(int count) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (server.received.get() < count && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+
+        assertEquals(count, server.received.get());
+    }
+
+    private static String payload(int i)
+    {
+        StringBuilder text = new StringBuilder();
+
+        for (int j = 0; j < 64; j++)
+        {
+            text.append(i);
+        }
+
+        return text.toString();
+    }
+
+    @Test
+    public void closeSendsWhatIsQueued() throws Exception
+    {
+        Connection connection = new Connection(uri);
+        assertTrue(connection.connectBlocking(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < FRAMES; i++)
+        {
+            assertTrue(connection.rpc("ping", payload(i)));
+        }
+
+        connection.close();
+
+        assertTrue(connection.closed.await(5, TimeUnit.SECONDS));
+        awaitReceived(FRAMES);
+    }
+
+    @Test
+    public void closeAllFlushesEveryConnection() throws Exception
+    {
+        // plain connections only, so no runtime to take a TLS context from
+        ConnectionManager manager = new ConnectionManager(null);
+        Connection[] connections = new Connection[4];
+
+        for (int i = 0; i < connections.length; i++)
+        {
+            connections[i] = new Connection(uri);
+            manager.connect(connections[i]);
+        }
+
+        for (Connection connection : connections)
+        {
+            assertTrue(connection.opened.await(5, TimeUnit.SECONDS));
+
+            for (int i = 0; i < FRAMES; i++)
+            {
+                assertTrue(connection.rpc("ping", payload(i)));
+            }
+        }
+
+        manager.closeAll();
+
+        for (Connection connection : connections)
+        {
+            assertTrue(connection.closed.await(5, TimeUnit.SECONDS));
+        }
+
+        awaitReceived(FRAMES * connections.length);
+        assertEquals(0, manager.getConnectionsCount());
+    }
+
+    @Test
+    public void closeNowDoesNotWait() throws Exception
+    {
+        Connection connection = new Connection(uri);
+        assertTrue(connection.connectBlocking(5, TimeUnit.SECONDS));
+
+        connection.closeNow();
+
+        assertTrue(connection.closed.await(5, TimeUnit.SECONDS));
+        assertTrue(connection.flush(System.nanoTime()));
+    }
+
+    @Test
+    public void requestNotSentFailsTheHandler() throws Exception
+    {
+        Connection connection = new Connection(uri);
+        final AtomicInteger error = new AtomicInteger();
+
+        // never opened
+        assertFalse(connection.request("ping", new JsonRPC.ResponseHandler()
+        {
+            @Override
+            public void success(Object response)
+            {
+                fail("Not sent, but succeeded");
+            }
+
+            @Override
+            public void error(int code, String message, String data)
+            {
+                error.set(code);
+            }
+        }, "payload"));
+
+        assertEquals(JsonRPC.NOT_SENT_ERROR, error.get());
+        assertEquals(0, connection.getPendingRequestsCount());
+    }
+
+    @Test
+    public void requestsLeftOnCloseAreCancelled() throws Exception
+    {
+        Connection connection = new Connection(uri);
+        assertTrue(connection.connectBlocking(5, TimeUnit.SECONDS));
+
+        final AtomicInteger error = new AtomicInteger();
+
+        // the server never answers
+        assertTrue(connection.request("ping", new JsonRPC.ResponseHandler()
+        {
+            @Override
+            public void success(Object response)
+            {
+                fail("Succeeded with no response");
+            }
+
+            @Override
+            public void error(int code, String message, String data)
+            {
+                error.set(code);
+            }
+        }, "payload"));
+
+        connection.close();
+        assertTrue(connection.closed.await(5, TimeUnit.SECONDS));
+
+        assertEquals(WebSocketJsonRPC.CONNECTION_CLOSED_ERROR, error.get());
+        assertEquals(1, connection.getMetrics().getRequestsCancelled());
+        assertEquals(0, connection.getMetrics().getRequestErrors());
+        assertNull(connection.getMetrics().getRequestLatency("ping"));
+    }
+}